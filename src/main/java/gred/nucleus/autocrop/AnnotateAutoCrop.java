@@ -72,6 +72,34 @@ public class AnnotateAutoCrop {
 	}
 	
 	
+	/**
+	 * Constructor for autocrop with the Z projection computed by the {@link AutoCrop} class (the image is not opened
+	 * again).
+	 *
+	 * @param boxesCoordinates   List of coordinates (coordinates of nuclei cropped)
+	 * @param imageFile          File of current image analysed
+	 * @param zProjection        Max intensity Z projection of the image
+	 * @param outputDirPath      Path to the output folder
+	 * @param prefix             Name of raw image (use for z projection)
+	 * @param autocropParameters Autocrop parameters used to crop nuclei
+	 */
+	public AnnotateAutoCrop(List<String> boxesCoordinates,
+	                        File imageFile,
+	                        ImagePlus zProjection,
+	                        String outputDirPath,
+	                        String prefix,
+	                        AutocropParameters autocropParameters) {
+		this.autocropParameters = autocropParameters;
+		this.currentFile = imageFile;
+		this.zProjection = zProjection;
+		this.boxCoordinates = boxesCoordinates;
+		this.outputDirPath = outputDirPath;
+		this.outputFilesPrefix = prefix;
+		Directory dirOutput = new Directory(this.outputDirPath + "zprojection");
+		dirOutput.checkAndCreateDir();
+	}
+	
+	
 	/**
 	 * Constructor for re-generate projection after segmentation
 	 *
@@ -124,12 +152,14 @@ public class AnnotateAutoCrop {
 	
 	/**
 	 * Main method to generate Z projection of wide field 3D image. Parameter use are max intensity projection
-	 * (projectionMax method) and contrast modification of 0,3.
+	 * (projectionMax method) and contrast modification of 0,3. An image already projected is not projected again.
 	 */
 	public void run() {
 		LOGGER.info("Z projection annotation.");
-		ZProjector zProjectionTmp = new ZProjector(this.zProjection);
-		this.zProjection = projectionMax(zProjectionTmp);
+		if (this.zProjection.getStackSize() > 1) {
+			ZProjector zProjectionTmp = new ZProjector(this.zProjection);
+			this.zProjection = projectionMax(zProjectionTmp);
+		}
 		adjustContrast(0.3);
 		ImageConverter converter = new ImageConverter(this.zProjection);
 		converter.convertToRGB();
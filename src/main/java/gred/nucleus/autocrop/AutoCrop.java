@@ -11,16 +11,14 @@ import fr.igred.omero.roi.ShapeList;
 import gred.nucleus.files.Directory;
 import gred.nucleus.files.OutputTextFile;
 import gred.nucleus.files.OutputTiff;
+import gred.nucleus.imageprocessing.SliceHistograms;
 import gred.nucleus.imageprocessing.Thresholding;
-import gred.nucleus.utils.Histogram;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
 import ij.plugin.ChannelSplitter;
-import ij.plugin.Duplicator;
 import ij.plugin.GaussianBlur3D;
-import inra.ijpb.binary.BinaryImages;
-import inra.ijpb.label.LabelImages;
+import ij.plugin.ZProjector;
 import loci.formats.FormatException;
 import loci.plugins.BF;
 import loci.plugins.in.ImporterOptions;
@@ -34,6 +32,7 @@ import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -74,25 +73,31 @@ public class AutoCrop {
 	/** File to process (Image input) */
 	File currentFile;
 	/** Raw image */
-	private ImagePlus        rawImg;
+	private ImagePlus                   rawImg;
 	/** Segmented image */
-	private ImagePlus        imageSeg;
-	/** Segmented image connect component labelled */
-	private ImagePlus        imageSegLabelled;
+	private ImagePlus                   imageSeg;
 	/** The path of the image to be processed */
-	private String           imageFilePath;
+	private String                      imageFilePath;
 	/** Number of channels in current image */
-	private int              channelNumbers   = 1;
+	private int                         channelNumbers          = 1;
 	/** Get current info image analyse */
-	private String           infoImageAnalysis;
+	private String                      infoImageAnalysis;
 	/** OTSU threshold  used to compute segmented image */
-	private int              otsuThreshold;
+	private int                         otsuThreshold;
 	/** Slice start to compute OTSU */
-	private String           sliceUsedForOTSU;
+	private String                      sliceUsedForOTSU;
 	/** Default threshold */
-	private boolean          defaultThreshold = false;
+	private boolean                     defaultThreshold        = false;
 	/** List of boxes  to crop link to label value */
-	private Map<Double, Box> boxes            = new HashMap<>();
+	private Map<Double, Box>            boxes                   = new HashMap<>();
+	/** Channels of the raw image kept in memory to crop the boxes (null if not loaded) */
+	private ImagePlus[]                 cropChannels;
+	/** Connected components of the segmented image (null if not computed) */
+	private StreamingComponentLabelling components;
+	/** Components touching the border removed */
+	private boolean                     borderComponentsRemoved = false;
+	/** Max intensity Z projection of the channel used to compute the threshold (null if not computed) */
+	private ImagePlus                   zProjection;
 	
 	
 	/**
@@ -113,11 +118,16 @@ public class AutoCrop {
 		this.outputDirPath = this.autocropParameters.getOutputFolder();
 		this.outputFilesPrefix = outputFilesPrefix;
 		setChannelNumbers();
-		if (this.rawImg.getBitDepth() > 8) {
-			this.imageSeg =
-					Thresholding.contrastAnd8bits(getImageChannel(this.autocropParameters.getChannelToComputeThreshold()));
+		if (this.autocropParameters.getTileSize() > 0) {
+			this.imageSeg = null;
 		} else {
-			this.imageSeg = getImageChannel(this.autocropParameters.getChannelToComputeThreshold());
+			ImagePlus thresholdChannel = getImageChannel(this.autocropParameters.getChannelToComputeThreshold());
+			this.zProjection = projectionMax(thresholdChannel);
+			if (this.rawImg.getBitDepth() > 8) {
+				this.imageSeg = Thresholding.contrastAnd8bits(thresholdChannel);
+			} else {
+				this.imageSeg = thresholdChannel;
+			}
 		}
 		this.infoImageAnalysis = autocropParametersAnalyse.getAnalysisParameters();
 	}
@@ -170,9 +180,40 @@ public class AutoCrop {
 	 * @throws FormatException
 	 */
 	public ImagePlus getImageChannel(int channelNumber) throws IOException, FormatException {
-		ImagePlus[] currentImage = BF.openImagePlus(this.imageFilePath);
-		currentImage = ChannelSplitter.split(currentImage[0]);
-		return currentImage[channelNumber];
+		if (this.cropChannels != null && this.cropChannels[channelNumber] != null) {
+			return this.cropChannels[channelNumber].duplicate();
+		}
+		ImporterOptions options = new ImporterOptions();
+		options.setId(this.imageFilePath);
+		options.setCBegin(0, channelNumber);
+		options.setCEnd(0, channelNumber);
+		return BF.openImagePlus(options)[0];
+	}
+	
+	
+	/**
+	 * Computes the max intensity Z projection of an image.
+	 *
+	 * @param image image to project
+	 *
+	 * @return Z projection
+	 */
+	private static ImagePlus projectionMax(ImagePlus image) {
+		ZProjector projector = new ZProjector(image);
+		projector.setMethod(ZProjector.MAX_METHOD);
+		projector.doProjection();
+		return projector.getProjection();
+	}
+	
+	
+	/**
+	 * Getter for the max intensity Z projection of the channel used to compute the threshold, computed when the
+	 * channel is loaded so the image does not have to be opened again to annotate the boxes.
+	 *
+	 * @return Z projection, null if the image is processed by tiles
+	 */
+	public ImagePlus getZProjection() {
+		return this.zProjection;
 	}
 	
 	
@@ -184,18 +225,37 @@ public class AutoCrop {
 	
 	
 	/**
-	 * Method to check multichannel and initialising channelNumbers variable
+	 * Method to check multichannel and initialising channelNumbers variable. If the image is larger than the crop
+	 * memory limit or processed by tiles, only the metadata are read (virtual stack of the first channel).
 	 *
 	 * @throws IOException
 	 * @throws FormatException
 	 */
 	public void setChannelNumbers() throws IOException, FormatException {
+		if (this.autocropParameters.getCropMemoryLimit() > 0 || this.autocropParameters.getTileSize() > 0) {
+			ImporterOptions options = new ImporterOptions();
+			options.setId(this.imageFilePath);
+			options.setVirtual(true);
+			ImagePlus image     = BF.openImagePlus(options)[0];
+			long      imageSize = (long) image.getWidth() * image.getHeight() * image.getStackSize() *
+			                      image.getBytesPerPixel();
+			if (this.autocropParameters.getTileSize() > 0 || !fitsInMemory(imageSize)) {
+				this.channelNumbers = Math.max(1, image.getNChannels());
+				options.setCBegin(0, 0);
+				options.setCEnd(0, 0);
+				this.rawImg = BF.openImagePlus(options)[0];
+				return;
+			}
+		}
 		ImagePlus[] currentImage = BF.openImagePlus(this.imageFilePath);
 		currentImage = ChannelSplitter.split(currentImage[0]);
 		this.rawImg = currentImage[0];
 		if (currentImage.length > 1) {
 			this.channelNumbers = currentImage.length;
 		}
+		if (fitsInMemory(getImageSize())) {
+			this.cropChannels = currentImage;
+		}
 	}
 	
 	
@@ -214,6 +274,8 @@ public class AutoCrop {
 	 * <p> TODO add case where voxel are not anisotropic for Gaussian Blur Case where OTSU threshold is under 20
 	 * computation using only half of last slice (useful in case of top slice with lot of noise) If OTSU threshold is
 	 * still under 20 threshold default threshold value is 20.
+	 * <p>The histograms of the slices are computed once after the blur (see {@link SliceHistograms}), so the OTSU
+	 * threshold of the last slices is computed without copying them.
 	 */
 	public void thresholdKernels() {
 		LOGGER.info("Thresholding kernels.");
@@ -222,25 +284,17 @@ public class AutoCrop {
 		}
 		this.sliceUsedForOTSU = "default";
 		GaussianBlur3D.blur(this.imageSeg, 0.5, 0.5, 1);
-		int thresh = Thresholding.computeOTSUThreshold(this.imageSeg);
+		SliceHistograms histograms = new SliceHistograms(this.imageSeg);
+		int             depth      = histograms.getSize();
+		int             thresh     = Thresholding.computeOTSUThreshold(histograms.getHistogram(0, depth));
 		if (thresh < this.autocropParameters.getThresholdOTSUComputing()) {
-			ImagePlus imp2;
-			if (autocropParameters.getSlicesOTSUComputing() == 0) {
-				this.sliceUsedForOTSU =
-						"Start:" + this.imageSeg.getStackSize() / 2 + "-" + this.imageSeg.getStackSize();
-				imp2 = new Duplicator().run(this.imageSeg,
-				                            this.imageSeg.getStackSize() / 2,
-				                            this.imageSeg.getStackSize());
-			} else {
-				this.sliceUsedForOTSU = "Start:" +
-				                        this.autocropParameters.getSlicesOTSUComputing() +
-				                        "-" +
-				                        this.imageSeg.getStackSize();
-				imp2 = new Duplicator().run(this.imageSeg,
-				                            this.autocropParameters.getSlicesOTSUComputing(),
-				                            this.imageSeg.getStackSize());
+			int firstSlice = this.autocropParameters.getSlicesOTSUComputing();
+			if (firstSlice == 0) {
+				firstSlice = depth / 2;
 			}
-			int thresh2 = Thresholding.computeOTSUThreshold(imp2);
+			this.sliceUsedForOTSU = "Start:" + firstSlice + "-" + depth;
+			int thresh2 = Thresholding.computeOTSUThreshold(
+					histograms.getHistogram(Math.min(Math.max(firstSlice - 1, 0), depth), depth));
 			if (thresh2 < this.autocropParameters.getThresholdOTSUComputing()) {
 				thresh = this.autocropParameters.getThresholdOTSUComputing();
 				this.defaultThreshold = true;
@@ -253,33 +307,37 @@ public class AutoCrop {
 	}
 	
 	
-	/** MorpholibJ Method computing connected components using OTSU segmented image */
+	/**
+	 * Method computing the 26-connected components using OTSU segmented image. The components are labelled slice by
+	 * slice with their volumes and bounding boxes, without a label image (see {@link StreamingComponentLabelling}).
+	 */
 	public void computeConnectedComponent() {
 		LOGGER.info("Computing connected components.");
-		this.imageSegLabelled = BinaryImages.componentsLabeling(this.imageSeg, 26, 32);
+		this.components = new StreamingComponentLabelling(this.imageSeg);
+		this.borderComponentsRemoved = false;
 	}
 	
 	
 	/**
 	 * Initializes hashMap boxes containing connected components pixel value associate to number of voxels composing it.
 	 * Filter connected components based on minimum volume (default 1 ) and maximum volume (default 2147483647)
+	 * <p>The volumes are computed with the connected components (see {@link StreamingComponentLabelling}).
 	 */
 	public void componentSizeFilter() {
 		LOGGER.info("Filtering components by size.");
-		Histogram histogram = new Histogram();
-		histogram.run(this.imageSegLabelled);
-		Map<Double, Integer> histogramData = histogram.getHistogram();
-		for (Map.Entry<Double, Integer> entry : new TreeMap<>(histogramData).entrySet()) {
-			Double  key   = entry.getKey();
-			Integer value = entry.getValue();
-			if (!((value * getVoxelVolume() < this.autocropParameters.getMinVolumeNucleus()) ||
-			      (value * getVoxelVolume() > this.autocropParameters.getMaxVolumeNucleus())) && value > 1) {
-				Box initializedBox = new Box(Short.MAX_VALUE,
-				                             Short.MIN_VALUE,
-				                             Short.MAX_VALUE,
-				                             Short.MIN_VALUE,
-				                             Short.MAX_VALUE,
-				                             Short.MIN_VALUE);
+		for (int label = 1; label <= this.components.getNumberOfComponents(); ++label) {
+			if (this.borderComponentsRemoved && this.components.isOnBorder(label)) {
+				continue;
+			}
+			double key   = label;
+			long   value = this.components.getVoxelCount(label);
+			if (value > 0 && isNucleusSize(value)) {
+				Box initializedBox = new Box(Integer.MAX_VALUE,
+				                             Integer.MIN_VALUE,
+				                             Integer.MAX_VALUE,
+				                             Integer.MIN_VALUE,
+				                             Integer.MAX_VALUE,
+				                             Integer.MIN_VALUE);
 				this.boxes.put(key, initializedBox);
 			}
 		}
@@ -287,10 +345,74 @@ public class AutoCrop {
 	}
 	
 	
-	/** MorpholibJ Method filtering border connect component */
+	/**
+	 * Checks if the volume of a connected component is within the volume range of the nuclei.
+	 *
+	 * @param voxelCount number of voxels of the component
+	 *
+	 * @return true if the component is kept
+	 */
+	private boolean isNucleusSize(long voxelCount) {
+		return !((voxelCount * getVoxelVolume() < this.autocropParameters.getMinVolumeNucleus()) ||
+		         (voxelCount * getVoxelVolume() > this.autocropParameters.getMaxVolumeNucleus())) && voxelCount > 1;
+	}
+	
+	
+	/**
+	 * Detection of the bounding box of each object of the image by tiles, for images too large to be thresholded in
+	 * memory. This replaces {@link AutoCrop#thresholdKernels()}, {@link AutoCrop#computeConnectedComponent()},
+	 * {@link AutoCrop#componentBorderFilter()}, {@link AutoCrop#componentSizeFilter()} and
+	 * {@link AutoCrop#computeBoxes2()}: the OTSU threshold is computed on the histogram of the whole image gathered
+	 * tile by tile, and the components crossing the tile borders are merged (see {@link TiledComponentLabelling}).
+	 *
+	 * @throws IOException
+	 * @throws FormatException
+	 */
+	public void computeTiledBoxes() throws IOException, FormatException {
+		LOGGER.info("Computing boxes by tiles.");
+		try (RegionCropReader reader = new RegionCropReader(this.imageFilePath)) {
+			TiledComponentLabelling labelling =
+					new TiledComponentLabelling(reader,
+					                            this.autocropParameters.getChannelToComputeThreshold(),
+					                            this.autocropParameters.getTileSize());
+			labelling.computeHistograms();
+			int depth = reader.getSizeZ();
+			this.sliceUsedForOTSU = "default";
+			int thresh = Thresholding.computeOTSUThreshold(labelling.getHistogram(0, depth));
+			if (thresh < this.autocropParameters.getThresholdOTSUComputing()) {
+				int firstSlice = this.autocropParameters.getSlicesOTSUComputing();
+				if (firstSlice == 0) {
+					firstSlice = depth / 2;
+				}
+				this.sliceUsedForOTSU = "Start:" + firstSlice + "-" + depth;
+				int thresh2 = Thresholding.computeOTSUThreshold(labelling.getHistogram(firstSlice - 1, depth));
+				if (thresh2 < this.autocropParameters.getThresholdOTSUComputing()) {
+					thresh = this.autocropParameters.getThresholdOTSUComputing();
+					this.defaultThreshold = true;
+				} else {
+					thresh = thresh2;
+				}
+			}
+			this.otsuThreshold = thresh;
+			labelling.computeComponents(thresh);
+			double[]  labels           = labelling.getLabels();
+			long[]    counts           = labelling.getVoxelCounts();
+			Box[]     componentBoxes   = labelling.getBoxes();
+			boolean[] borderComponents = labelling.getBorderComponents();
+			for (int i = 0; i < labels.length; ++i) {
+				if (!borderComponents[i] && isNucleusSize(counts[i])) {
+					this.boxes.put(labels[i], componentBoxes[i]);
+				}
+			}
+		}
+		LOGGER.debug("Number of objects found: {}", this.boxes.size());
+	}
+	
+	
+	/** Method filtering border connect component (faces of the image, as LabelImages.removeBorderLabels) */
 	public void componentBorderFilter() {
 		LOGGER.info("Filtering components on border.");
-		LabelImages.removeBorderLabels(this.imageSegLabelled);
+		this.borderComponentsRemoved = true;
 	}
 	
 	
@@ -306,22 +428,16 @@ public class AutoCrop {
 	public void computeBoxes2() {
 		LOGGER.info("Computing boxes.");
 		try {
-			ImageStack imageStackInput = this.imageSegLabelled.getStack();
-			Box        box;
-			for (short k = 0; k < this.imageSegLabelled.getNSlices(); ++k) {
-				for (short i = 0; i < this.imageSegLabelled.getWidth(); ++i) {
-					for (short j = 0; j < this.imageSegLabelled.getHeight(); ++j) {
-						if ((imageStackInput.getVoxel(i, j, k) > 0) &&
-						    (this.boxes.containsKey(imageStackInput.getVoxel(i, j, k)))) {
-							box = this.boxes.get(imageStackInput.getVoxel(i, j, k));
-							box.setXMin((short) Math.min(i, box.getXMin()));
-							box.setXMax((short) Math.max(i, box.getXMax()));
-							box.setYMin((short) Math.min(j, box.getYMin()));
-							box.setYMax((short) Math.max(j, box.getYMax()));
-							box.setZMin((short) Math.min(k, box.getZMin()));
-							box.setZMax((short) Math.max(k, box.getZMax()));
-						}
-					}
+			for (Map.Entry<Double, Box> entry : this.boxes.entrySet()) {
+				Box labelBox = this.components.getBox(entry.getKey().intValue());
+				if (labelBox != null) {
+					Box box = entry.getValue();
+					box.setXMin(Math.min(labelBox.getXMin(), box.getXMin()));
+					box.setXMax(Math.max(labelBox.getXMax(), box.getXMax()));
+					box.setYMin(Math.min(labelBox.getYMin(), box.getYMin()));
+					box.setYMax(Math.max(labelBox.getYMax(), box.getYMax()));
+					box.setZMin(Math.min(labelBox.getZMin(), box.getZMin()));
+					box.setZMax(Math.max(labelBox.getZMax(), box.getZMax()));
 				}
 			}
 		} catch (Exception e) {
@@ -352,26 +468,26 @@ public class AutoCrop {
 			zMin = Math.max(1, zMin);
 			
 			int width = box.getXMax() + (2 * this.autocropParameters.getXCropBoxSize()) - box.getXMin();
-			if (width > imageSeg.getWidth()) {
-				width = imageSeg.getWidth() - 1;
+			if (width > this.rawImg.getWidth()) {
+				width = this.rawImg.getWidth() - 1;
 			}
-			if (width + xMin >= this.imageSeg.getWidth() || width < 0) {
-				width = this.imageSeg.getWidth() - xMin;
+			if (width + xMin >= this.rawImg.getWidth() || width < 0) {
+				width = this.rawImg.getWidth() - xMin;
 			}
 			int height = box.getYMax() + (2 * this.autocropParameters.getYCropBoxSize()) - box.getYMin();
-			if ((height + yMin) >= this.imageSeg.getHeight() || (height < 0)) {
-				height = this.imageSeg.getHeight() - yMin;
+			if ((height + yMin) >= this.rawImg.getHeight() || (height < 0)) {
+				height = this.rawImg.getHeight() - yMin;
 			}
 			int depth = box.getZMax() + (2 * this.autocropParameters.getZCropBoxSize()) - box.getZMin();
-			if (depth + zMin >= this.imageSeg.getNSlices() || depth < 0) {
-				depth = this.imageSeg.getNSlices() - zMin;
+			if (depth + zMin >= this.rawImg.getNSlices() || depth < 0) {
+				depth = this.rawImg.getNSlices() - zMin;
 			}
-			box.setXMin((short) xMin);
-			box.setXMax((short) (xMin + width));
-			box.setYMin((short) yMin);
-			box.setYMax((short) (yMin + height));
-			box.setZMin((short) zMin);
-			box.setZMax((short) (zMin + depth));
+			box.setXMin(xMin);
+			box.setXMax(xMin + width);
+			box.setYMin(yMin);
+			box.setYMax(yMin + height);
+			box.setZMin(zMin);
+			box.setZMax(zMin + depth);
 			entry.setValue(box);
 		}
 	}
@@ -390,6 +506,7 @@ public class AutoCrop {
 		dirOutput.checkAndCreateDir();
 		info.append(getSpecificImageInfo()).append(HEADERS);
 		for (int c = 0; c < this.channelNumbers; c++) {
+			Map<Double, ImagePlus> croppedImages = cropBoxes(c);
 			for (Map.Entry<Double, Box> entry : new TreeMap<>(this.boxes).entrySet()) {
 				int i = entry.getKey().intValue();
 				LOGGER.info("Processing box number: {}", i);
@@ -400,12 +517,7 @@ public class AutoCrop {
 				int       width  = box.getXMax() - box.getXMin();
 				int       height = box.getYMax() - box.getYMin();
 				int       depth  = box.getZMax() - box.getZMin();
-				ImagePlus croppedImage;
-				if (this.rawImg.getNSlices() > 1) {
-					croppedImage = cropImage(xMin, yMin, zMin, width, height, depth, c);
-				} else {
-					croppedImage = cropImage2D(xMin, yMin, width, height, c);
-				}
+				ImagePlus croppedImage = croppedImages.get(entry.getKey());
 				Calibration cal = this.rawImg.getCalibration();
 				croppedImage.setCalibration(cal);
 				String tiffPath = dirOutput.getDirPath() + File.separator +
@@ -444,6 +556,7 @@ public class AutoCrop {
 			}
 		}
 		this.infoImageAnalysis += info.toString();
+		this.cropChannels = null;
 	}
 	
 	
@@ -543,6 +656,7 @@ public class AutoCrop {
 		dirOutput.checkAndCreateDir();
 		info.append(getSpecificImageInfo()).append(HEADERS);
 		for (int c = 0; c < this.channelNumbers; c++) {
+			Map<Double, ImagePlus> croppedImages = cropBoxes(c);
 			for (Map.Entry<Double, Box> entry : new TreeMap<>(this.boxes).entrySet()) {
 				int i = entry.getKey().intValue();
 				LOGGER.info("Processing box number: {}", i);
@@ -553,12 +667,7 @@ public class AutoCrop {
 				int       width  = box.getXMax() - box.getXMin();
 				int       height = box.getYMax() - box.getYMin();
 				int       depth  = box.getZMax() - box.getZMin();
-				ImagePlus croppedImage;
-				if (this.rawImg.getNSlices() > 1) {
-					croppedImage = cropImage(xMin, yMin, zMin, width, height, depth, c);
-				} else {
-					croppedImage = cropImage2D(xMin, yMin, width, height, c);
-				}
+				ImagePlus croppedImage = croppedImages.get(entry.getKey());
 				Calibration cal = this.rawImg.getCalibration();
 				croppedImage.setCalibration(cal);
 				String tiffPath = dirOutput.getDirPath() + File.separator +
@@ -598,6 +707,7 @@ public class AutoCrop {
 			}
 		}
 		this.infoImageAnalysis += info.toString();
+		this.cropChannels = null;
 	}
 	
 	
@@ -650,7 +760,8 @@ public class AutoCrop {
 	
 	
 	/**
-	 * Crop of the bounding box on 3D image. The coordinates are inputs of this methods
+	 * Crop of the bounding box on 3D image. The coordinates are inputs of this methods. The box is cropped from the
+	 * channel kept in memory, or read from the file if the image is larger than the crop memory limit.
 	 *
 	 * @param xMin:          coordinate x min of the crop
 	 * @param yMin:          coordinate y min of the crop
@@ -664,14 +775,16 @@ public class AutoCrop {
 	 */
 	public ImagePlus cropImage(int xMin, int yMin, int zMin, int width, int height, int depth, int channelNumber)
 	throws IOException, FormatException {
-		ImporterOptions options = new ImporterOptions();
-		options.setId(this.imageFilePath);
-		options.setAutoscale(true);
-		options.setCrop(true);
-		ImagePlus[] imps = BF.openImagePlus(options);
-		ImagePlus   sort = new ImagePlus();
-		imps = ChannelSplitter.split(imps[0]);
-		sort.setStack(imps[channelNumber].getStack().crop(xMin, yMin, zMin, width, height, depth));
+		ImagePlus channel = getCropChannel(channelNumber);
+		ImagePlus sort    = new ImagePlus();
+		if (channel != null) {
+			sort.setStack(channel.getStack().crop(xMin, yMin, zMin, width, height, depth));
+		} else {
+			try (RegionCropReader reader = new RegionCropReader(this.imageFilePath)) {
+				sort = reader.crop(new Box(xMin, xMin + width, yMin, yMin + height, zMin, zMin + depth),
+				                   channelNumber);
+			}
+		}
 		return sort;
 	}
 	
@@ -689,15 +802,127 @@ public class AutoCrop {
 	 */
 	public ImagePlus cropImage2D(int xMin, int yMin, int width, int height, int channelNumber)
 	throws IOException, FormatException {
+		return cropImage(xMin, yMin, 0, width, height, 1, channelNumber);
+	}
+	
+	
+	/**
+	 * Crops all the boxes on a channel: from the channel in memory, or by reading the windows of the boxes plane by
+	 * plane if the channel is larger than the crop memory limit.
+	 *
+	 * @param channelNumber channel to crop
+	 *
+	 * @return cropped images, with the keys of the boxes
+	 *
+	 * @throws IOException
+	 * @throws FormatException
+	 */
+	private Map<Double, ImagePlus> cropBoxes(int channelNumber) throws IOException, FormatException {
+		Map<Double, Box> cropBoxes = new HashMap<>(this.boxes.size());
+		for (Map.Entry<Double, Box> entry : this.boxes.entrySet()) {
+			Box box = entry.getValue();
+			if (this.rawImg.getNSlices() > 1) {
+				cropBoxes.put(entry.getKey(), box);
+			} else {
+				cropBoxes.put(entry.getKey(),
+				              new Box(box.getXMin(), box.getXMax(), box.getYMin(), box.getYMax(), 0, 1));
+			}
+		}
+		Map<Double, ImagePlus> croppedImages = new HashMap<>(cropBoxes.size());
+		ImagePlus              channel       = getCropChannel(channelNumber);
+		if (channel != null) {
+			for (Map.Entry<Double, Box> entry : cropBoxes.entrySet()) {
+				Box       box          = entry.getValue();
+				ImagePlus croppedImage = new ImagePlus();
+				croppedImage.setStack(channel.getStack().crop(box.getXMin(),
+				                                              box.getYMin(),
+				                                              box.getZMin(),
+				                                              box.getXMax() - box.getXMin(),
+				                                              box.getYMax() - box.getYMin(),
+				                                              box.getZMax() - box.getZMin()));
+				croppedImages.put(entry.getKey(), croppedImage);
+			}
+		} else {
+			try (RegionCropReader reader = new RegionCropReader(this.imageFilePath)) {
+				croppedImages.putAll(reader.cropAll(cropBoxes, channelNumber, getCropWindowLimit()));
+			}
+		}
+		return croppedImages;
+	}
+	
+	
+	/**
+	 * Returns a channel of the raw image to crop the boxes. The whole image is read once if it fits in the crop memory
+	 * limit, otherwise only the channel is read (previous channel released).
+	 *
+	 * @param channelNumber channel to crop
+	 *
+	 * @return channel, null if a channel does not fit in the crop memory limit or if the image is tiled
+	 *
+	 * @throws IOException
+	 * @throws FormatException
+	 */
+	private ImagePlus getCropChannel(int channelNumber) throws IOException, FormatException {
+		if (this.cropChannels == null) {
+			this.cropChannels = new ImagePlus[this.channelNumbers];
+		}
+		if (this.cropChannels[channelNumber] == null) {
+			if (fitsInMemory(getImageSize())) {
+				this.cropChannels = ChannelSplitter.split(BF.openImagePlus(getImporterOptions())[0]);
+			} else if (fitsInMemory(getImageSize() / this.channelNumbers)) {
+				Arrays.fill(this.cropChannels, null);
+				ImporterOptions options = getImporterOptions();
+				options.setCBegin(0, channelNumber);
+				options.setCEnd(0, channelNumber);
+				this.cropChannels[channelNumber] = BF.openImagePlus(options)[0];
+			}
+		}
+		return this.cropChannels[channelNumber];
+	}
+	
+	
+	/** @return Bio-Formats options to read the raw image */
+	private ImporterOptions getImporterOptions() throws IOException {
 		ImporterOptions options = new ImporterOptions();
 		options.setId(this.imageFilePath);
 		options.setAutoscale(true);
-		options.setCrop(true);
-		ImagePlus[] imps = BF.openImagePlus(options);
-		ImagePlus   sort = imps[channelNumber];
-		sort.setRoi(xMin, yMin, width, height);
-		sort.crop();
-		return sort;
+		return options;
+	}
+	
+	
+	/** @return size of the raw image (all channels) in bytes */
+	private long getImageSize() {
+		return (long) this.rawImg.getWidth() * this.rawImg.getHeight() * this.rawImg.getStackSize() *
+		       this.rawImg.getBytesPerPixel() * this.channelNumbers;
+	}
+	
+	
+	/**
+	 * Checks if data can be kept in memory to crop the boxes. Tiled images are always cropped by regions.
+	 *
+	 * @param size size of the data in bytes
+	 *
+	 * @return true if the image is not tiled and if there is no crop memory limit or the size is under the limit
+	 */
+	private boolean fitsInMemory(long size) {
+		long limit = this.autocropParameters.getCropMemoryLimit() * 1024L * 1024L;
+		return this.autocropParameters.getTileSize() <= 0 && (limit == 0 || size <= limit);
+	}
+	
+	
+	/**
+	 * Maximal size of a window read on a plane to crop several boxes at once: the crop memory limit, or one tile if
+	 * the image is tiled without limit.
+	 *
+	 * @return size in bytes, 0 for no limit
+	 */
+	private long getCropWindowLimit() {
+		long limit    = this.autocropParameters.getCropMemoryLimit() * 1024L * 1024L;
+		long tileSize = this.autocropParameters.getTileSize();
+		if (limit == 0 && tileSize > 0) {
+			limit = tileSize * tileSize * this.rawImg.getBytesPerPixel();
+		}
+		return limit;
 	}
 	
 	
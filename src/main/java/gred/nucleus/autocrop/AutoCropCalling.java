@@ -8,6 +8,7 @@ import gred.nucleus.files.Directory;
 import gred.nucleus.files.FilesNames;
 import gred.nucleus.files.OutputTextFile;
 import ij.IJ;
+import loci.formats.FormatException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,8 +16,14 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 
 /**
@@ -33,6 +40,14 @@ public class AutoCropCalling {
 	/** Column names */
 	private static final String HEADERS = "FileName\tNumberOfCrop\tOTSUThreshold\tDefaultOTSUThreshold\n";
 	
+	/** Number of bytes in a MB */
+	static final long MB = 1024L * 1024L;
+	
+	/** Bytes per voxel of the 8-bit segmented image of the detection */
+	private static final int SEGMENTATION_BYTES_PER_VOXEL = 1;
+	/** Bytes per pixel of the two label slices of the connected components (see StreamingComponentLabelling) */
+	private static final int LABELLING_BYTES_PER_PIXEL    = 2 * Integer.BYTES;
+	
 	/** image prefix name */
 	private String             prefix                = "";
 	/** Get general information of cropping analyse */
@@ -56,19 +71,84 @@ public class AutoCropCalling {
 	 * Run auto crop on image's folder: -If input is a file: open the image with bio-formats plugin to obtain the
 	 * metadata then run the auto crop. -If input is directory, listed the file, foreach tif file loaded file with
 	 * bio-formats, run the auto crop.
+	 * <p>With more than one thread, the images are processed in parallel (see {@link #runFiles(List)}).
 	 */
 	public void runFolder() {
 		Directory directoryInput = new Directory(this.autocropParameters.getInputFolder());
 		directoryInput.listImageFiles(this.autocropParameters.getInputFolder());
 		directoryInput.checkIfEmpty();
 		directoryInput.checkAndActualiseNDFiles();
-		for (short i = 0; i < directoryInput.getNumberFiles(); ++i) {
-			runFile(directoryInput.getFile(i).getAbsolutePath());
+		if (this.autocropParameters.getNumberOfThreads() > 1 && directoryInput.getNumberFiles() > 1) {
+			List<String> files = new ArrayList<>(directoryInput.getNumberFiles());
+			for (short i = 0; i < directoryInput.getNumberFiles(); ++i) {
+				files.add(directoryInput.getFile(i).getAbsolutePath());
+			}
+			runFiles(files);
+		} else {
+			for (short i = 0; i < directoryInput.getNumberFiles(); ++i) {
+				runFile(directoryInput.getFile(i).getAbsolutePath());
+			}
 		}
 		saveGeneralInfo();
 	}
 	
 	
+	/**
+	 * Run auto crop on several images in parallel, with a pool of {@link AutocropParameters#getNumberOfThreads()}
+	 * threads.
+	 * <p>An image is started only when its estimated memory footprint (see
+	 * {@link #estimateMemory(String, AutocropParameters)}) is available on the heap, next to the images already
+	 * running. The crop information of the images is added in the order of the list, whatever the order in which they
+	 * end, and the images which failed are reported once all of them are processed.
+	 *
+	 * @param files paths of the images
+	 */
+	public void runFiles(List<String> files) {
+		int             heapSize = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / MB);
+		final Semaphore memory   = new Semaphore(heapSize, true);
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(this.autocropParameters.getNumberOfThreads(), files.size()));
+		List<Future<String>> results  = new ArrayList<>(files.size());
+		List<String>         failures = new ArrayList<>();
+		for (final String file : files) {
+			final int footprint = Math.min(heapSize, estimateMemory(file, this.autocropParameters));
+			results.add(executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws InterruptedException {
+					memory.acquire(footprint);
+					try {
+						return cropFile(file);
+					} finally {
+						memory.release(footprint);
+					}
+				}
+			}));
+		}
+		executor.shutdown();
+		for (int i = 0; i < results.size(); ++i) {
+			try {
+				String info = results.get(i).get();
+				if (info == null) {
+					failures.add(new File(files.get(i)).getName());
+				} else {
+					this.outputCropGeneralInfo += info;
+				}
+			} catch (ExecutionException e) {
+				LOGGER.error("Cannot run autocrop on: " + files.get(i), e);
+				failures.add(new File(files.get(i)).getName());
+			} catch (InterruptedException e) {
+				LOGGER.error("Autocrop interrupted.", e);
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		if (!failures.isEmpty()) {
+			IJ.error("Cannot run autocrop on " + String.join(", ", failures));
+		}
+	}
+	
+	
 	/**
 	 * Run auto crop on one image : -If input is a file: open the image with bio-formats plugin to obtain the metadata
 	 * then run the auto crop. -If input is directory, listed the file, foreach tif file loaded file with bio-formats,
@@ -77,32 +157,102 @@ public class AutoCropCalling {
 	 * @param file
 	 */
 	public void runFile(String file) {
+		this.prefix = new FilesNames(file).prefixNameFile();
+		String info = cropFile(file);
+		if (info == null) {
+			IJ.error("Cannot run autocrop on " + new File(file).getName());
+		} else {
+			this.outputCropGeneralInfo += info;
+		}
+	}
+	
+	
+	/**
+	 * Run auto crop and the annotation of the boxes on one image. A failure is only logged, as this method is called
+	 * by the worker threads of {@link #runFiles(List)}: the callers report it.
+	 *
+	 * @param file path of the image
+	 *
+	 * @return crop information of the image, null if the auto crop failed
+	 */
+	private String cropFile(String file) {
 		File currentFile = new File(file);
 		LOGGER.info("Current file: {}", currentFile.getAbsolutePath());
 		String     fileImg          = currentFile.toString();
 		FilesNames outPutFilesNames = new FilesNames(fileImg);
-		this.prefix = outPutFilesNames.prefixNameFile();
+		String     imagePrefix      = outPutFilesNames.prefixNameFile();
 		try {
-			AutoCrop autoCrop = new AutoCrop(currentFile, this.prefix, this.autocropParameters);
-			autoCrop.thresholdKernels();
-			autoCrop.computeConnectedComponent();
-			autoCrop.componentBorderFilter();
-			autoCrop.componentSizeFilter();
-			autoCrop.computeBoxes2();
+			AutoCrop autoCrop = new AutoCrop(currentFile, imagePrefix, this.autocropParameters);
+			if (this.autocropParameters.getTileSize() > 0) {
+				autoCrop.computeTiledBoxes();
+			} else {
+				autoCrop.thresholdKernels();
+				autoCrop.computeConnectedComponent();
+				autoCrop.componentBorderFilter();
+				autoCrop.componentSizeFilter();
+				autoCrop.computeBoxes2();
+			}
 			autoCrop.addCROPParameter();
 			autoCrop.boxIntersection();
 			autoCrop.cropKernels2();
 			autoCrop.writeAnalyseInfo();
-			AnnotateAutoCrop annotate = new AnnotateAutoCrop(autoCrop.getFileCoordinates(),
-			                                                 currentFile,
-			                                                 this.autocropParameters.getOutputFolder() + File.separator,
-			                                                 this.prefix,
-			                                                 this.autocropParameters);
-			annotate.run();
-			this.outputCropGeneralInfo += autoCrop.getImageCropInfo();
+			if (this.autocropParameters.getTileSize() > 0) {
+				LOGGER.info("Tiled autocrop: no annotated projection for {}", currentFile.getName());
+			} else {
+				AnnotateAutoCrop annotate = new AnnotateAutoCrop(autoCrop.getFileCoordinates(),
+				                                                 currentFile,
+				                                                 autoCrop.getZProjection(),
+				                                                 this.autocropParameters.getOutputFolder() +
+				                                                 File.separator,
+				                                                 imagePrefix,
+				                                                 this.autocropParameters);
+				annotate.run();
+			}
+			return autoCrop.getImageCropInfo();
 		} catch (Exception e) {
 			LOGGER.error("Cannot run autocrop on: " + currentFile.getName(), e);
-			IJ.error("Cannot run autocrop on " + currentFile.getName());
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * Estimates the memory used to run auto crop on an image, from its metadata: the raw image (unless it is larger
+	 * than the crop memory limit, then it is read by regions) and the working images of the detection: the duplicated
+	 * threshold channel, the 8-bit segmented image and two int slices of labels. Tiled images only hold the working
+	 * images of one tile and the seams between the tiles (see
+	 * {@link TiledComponentLabelling#estimateMemory(int, int, int, int, int)}).
+	 *
+	 * @param file               path of the image
+	 * @param autocropParameters parameters of the auto crop
+	 *
+	 * @return estimated memory in MB, 0 if the metadata can't be read
+	 */
+	static int estimateMemory(String file, AutocropParameters autocropParameters) {
+		try (RegionCropReader reader = new RegionCropReader(file)) {
+			long size;
+			if (autocropParameters.getTileSize() > 0) {
+				size = TiledComponentLabelling.estimateMemory(reader.getSizeX(),
+				                                              reader.getSizeY(),
+				                                              reader.getSizeZ(),
+				                                              reader.getBytesPerPixel(),
+				                                              autocropParameters.getTileSize());
+			} else {
+				long planeSize = (long) reader.getSizeX() * reader.getSizeY();
+				long rawSize   = planeSize * reader.getImageCount() * reader.getBytesPerPixel();
+				long limit     = (long) autocropParameters.getCropMemoryLimit() * MB;
+				if (limit > 0 && rawSize > limit) {
+					rawSize = 0;
+				}
+				long workingSize = planeSize * reader.getSizeZ() *
+				                   (reader.getBytesPerPixel() + SEGMENTATION_BYTES_PER_VOXEL) +
+				                   planeSize * LABELLING_BYTES_PER_PIXEL;
+				size = rawSize + workingSize;
+			}
+			return (int) Math.min(Integer.MAX_VALUE, (size + MB - 1) / MB);
+		} catch (IOException | FormatException e) {
+			LOGGER.warn("{}: can't read the metadata to estimate the memory used.", file, e);
+			return 0;
 		}
 	}
 	
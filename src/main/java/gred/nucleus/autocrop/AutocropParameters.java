@@ -37,6 +37,12 @@ public class AutocropParameters extends PluginParameters {
 	private int     boxesPercentSurfaceToFilter = 50;
 	/** Activation of boxes regrouping */
 	private boolean boxesRegrouping             = true;
+	/** Maximal size of the image kept in memory to crop the boxes (in MB), 0 for no limit */
+	private int     cropMemoryLimit             = 0;
+	/** Size of the XY tiles used to detect the nuclei (in pixels), 0 to process the whole image */
+	private int     tileSize                    = 0;
+	/** Number of images of a folder processed at the same time */
+	private int     numberOfThreads             = 1;
 	
 	
 	public AutocropParameters() {
@@ -305,6 +311,15 @@ public class AutocropParameters extends PluginParameters {
 				case "boxesRegrouping":
 					this.boxesRegrouping = Boolean.parseBoolean(prop.getProperty("boxesRegrouping"));
 					break;
+				case "cropMemoryLimit":
+					this.cropMemoryLimit = Integer.parseInt(prop.getProperty("cropMemoryLimit"));
+					break;
+				case "tileSize":
+					this.tileSize = Integer.parseInt(prop.getProperty("tileSize"));
+					break;
+				case "numberOfThreads":
+					this.numberOfThreads = Integer.parseInt(prop.getProperty("numberOfThreads"));
+					break;
 			}
 		}
 	}
@@ -325,7 +340,10 @@ public class AutocropParameters extends PluginParameters {
 		                   + "#slicesOTSUComputing: " + slicesOTSUComputing + "\n"
 		                   + "#channelToComputeThreshold: " + channelToComputeThreshold + "\n"
 		                   + "#maxVolumeNucleus:" + maxVolumeNucleus + "\n"
-		                   + "#minVolumeNucleus: " + minVolumeNucleus + "\n";
+		                   + "#minVolumeNucleus: " + minVolumeNucleus + "\n"
+		                   + "#cropMemoryLimit: " + cropMemoryLimit + "\n"
+		                   + "#tileSize: " + tileSize + "\n"
+		                   + "#numberOfThreads: " + numberOfThreads + "\n";
 		return this.headerInfo;
 	}
 	
@@ -429,4 +447,64 @@ public class AutocropParameters extends PluginParameters {
 		return this.boxesPercentSurfaceToFilter;
 	}
 	
+	
+	/**
+	 * Getter for the maximal size of the image kept in memory to crop the boxes. Larger images are read box by box.
+	 *
+	 * @return size in MB, 0 for no limit
+	 */
+	public int getCropMemoryLimit() {
+		return this.cropMemoryLimit;
+	}
+	
+	
+	/**
+	 * Setter for the maximal size of the image kept in memory to crop the boxes.
+	 *
+	 * @param cropMemoryLimit size in MB, 0 for no limit
+	 */
+	public void setCropMemoryLimit(int cropMemoryLimit) {
+		this.cropMemoryLimit = Math.max(0, cropMemoryLimit);
+	}
+	
+	
+	/**
+	 * Getter for the size of the tiles used to detect the nuclei on images too large to be thresholded in memory.
+	 *
+	 * @return size in pixels, 0 if the whole image is processed
+	 */
+	public int getTileSize() {
+		return this.tileSize;
+	}
+	
+	
+	/**
+	 * Setter for the size of the tiles used to detect the nuclei.
+	 *
+	 * @param tileSize size in pixels, 0 to process the whole image
+	 */
+	public void setTileSize(int tileSize) {
+		this.tileSize = Math.max(0, tileSize);
+	}
+	
+	
+	/**
+	 * Getter for the number of images of a folder processed at the same time.
+	 *
+	 * @return number of images
+	 */
+	public int getNumberOfThreads() {
+		return this.numberOfThreads;
+	}
+	
+	
+	/**
+	 * Setter for the number of images of a folder processed at the same time.
+	 *
+	 * @param numberOfThreads number of images, 1 to process the images one after the other
+	 */
+	public void setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = Math.max(1, numberOfThreads);
+	}
+	
 }
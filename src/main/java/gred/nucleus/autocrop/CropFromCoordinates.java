@@ -8,10 +8,20 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 
 public class CropFromCoordinates {
@@ -19,6 +29,10 @@ public class CropFromCoordinates {
 	private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 	
 	Map<String, String> coordinateToRawImage = new HashMap<>();
+	/** Maximal size of an image kept in memory to crop the boxes (in MB), 0 for no limit */
+	private int         cropMemoryLimit      = 0;
+	/** Number of raw images cropped at the same time */
+	private int         numberOfThreads      = Runtime.getRuntime().availableProcessors();
 	
 	
 	/**
@@ -43,19 +57,193 @@ public class CropFromCoordinates {
 	}
 	
 	
+	/**
+	 * Crops the boxes of the coordinate files. The coordinate files are grouped by raw image, so each raw image is
+	 * opened once, and the raw images are cropped in parallel. A raw image is started only when its estimated memory
+	 * footprint is available on the heap, next to the images already running.
+	 *
+	 * @throws IOException     if a raw image or a coordinate file cannot be read (first error, once all the images are
+	 *                         processed)
+	 * @throws FormatException if something goes wrong performing a file format operation
+	 */
 	public void runCropFromCoordinate() throws IOException, FormatException {
+		Map<String, List<File>> rawImageToCoordinates = new TreeMap<>();
+		for (Map.Entry<String, String> listOfFile : this.coordinateToRawImage.entrySet()) {
+			List<File> coordinateFiles = rawImageToCoordinates.get(listOfFile.getValue());
+			if (coordinateFiles == null) {
+				coordinateFiles = new ArrayList<>();
+				rawImageToCoordinates.put(listOfFile.getValue(), coordinateFiles);
+			}
+			coordinateFiles.add(new File(listOfFile.getKey()));
+		}
 		
-		for (Map.Entry<String, String> listOfFile : coordinateToRawImage.entrySet()) {
-			File coordinateFile = new File(listOfFile.getKey());
-			File rawImage       = new File(listOfFile.getValue());
-			AutocropParameters autocropParameters =
+		long            start    = System.currentTimeMillis();
+		int             heapSize = (int) Math.min(Integer.MAX_VALUE,
+		                                          Runtime.getRuntime().maxMemory() / AutoCropCalling.MB);
+		final Semaphore memory   = new Semaphore(heapSize, true);
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(this.numberOfThreads, rawImageToCoordinates.size())));
+		List<String>       rawImages = new ArrayList<>(rawImageToCoordinates.keySet());
+		List<Future<Long>> results   = new ArrayList<>(rawImages.size());
+		for (final String rawImagePath : rawImages) {
+			final File               rawImage           = new File(rawImagePath);
+			final Map<Double, Box>   boxes              = readBoxes(rawImage, rawImageToCoordinates.get(rawImagePath));
+			final AutocropParameters autocropParameters =
 					new AutocropParameters(rawImage.getParent(), rawImage.getParent());
-			Map<Double, Box> boxes            = readCoordinatesTXT(coordinateFile);
-			FilesNames       outPutFilesNames = new FilesNames(listOfFile.getValue());
-			String           prefix           = outPutFilesNames.prefixNameFile();
-			AutoCrop         autoCrop         = new AutoCrop(rawImage, prefix, autocropParameters, boxes);
-			autoCrop.cropKernels3();
+			autocropParameters.setCropMemoryLimit(this.cropMemoryLimit);
+			final int footprint = Math.min(heapSize, estimateMemory(rawImagePath, boxes, this.cropMemoryLimit));
+			results.add(executor.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					memory.acquire(footprint);
+					try {
+						long imageStart = System.currentTimeMillis();
+						cropRawImage(rawImage, boxes, autocropParameters);
+						return System.currentTimeMillis() - imageStart;
+					} finally {
+						memory.release(footprint);
+					}
+				}
+			}));
+		}
+		executor.shutdown();
+		
+		ExecutionException failure = null;
+		for (int i = 0; i < results.size(); ++i) {
+			try {
+				LOGGER.info("[{}/{}] {}: {} coordinate file(s) cropped in {} ms",
+				            i + 1,
+				            results.size(),
+				            rawImages.get(i),
+				            rawImageToCoordinates.get(rawImages.get(i)).size(),
+				            results.get(i).get());
+			} catch (ExecutionException e) {
+				LOGGER.error("Cannot crop from coordinates: " + rawImages.get(i), e.getCause());
+				if (failure == null) {
+					failure = e;
+				}
+			} catch (InterruptedException e) {
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Crop from coordinates interrupted.");
+			}
+		}
+		LOGGER.info("Crop from coordinates: {} raw image(s), {} coordinate file(s) in {} ms",
+		            rawImages.size(),
+		            this.coordinateToRawImage.size(),
+		            System.currentTimeMillis() - start);
+		if (failure != null) {
+			Throwable cause = failure.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof FormatException) {
+				throw (FormatException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException("Cannot crop from coordinates", cause);
+		}
+	}
+	
+	
+	/**
+	 * Reads the boxes of the coordinate files of one raw image. If several coordinate files have a box with the same
+	 * number, the box of the last file is kept (the crops have the same name).
+	 *
+	 * @param rawImage        raw image
+	 * @param coordinateFiles coordinate files of the raw image
+	 *
+	 * @return boxes to crop in the raw image
+	 */
+	private Map<Double, Box> readBoxes(File rawImage, List<File> coordinateFiles) {
+		Map<Double, Box> boxes = new HashMap<>();
+		for (File coordinateFile : coordinateFiles) {
+			Map<Double, Box> fileBoxes = readCoordinatesTXT(coordinateFile);
+			for (Double key : fileBoxes.keySet()) {
+				if (boxes.containsKey(key)) {
+					LOGGER.warn("{}: box {} is also in another coordinate file of {}.",
+					            coordinateFile.getName(),
+					            key.intValue(),
+					            rawImage.getName());
+				}
+			}
+			boxes.putAll(fileBoxes);
 		}
+		return boxes;
+	}
+	
+	
+	/**
+	 * Crops the boxes of one raw image, opening the raw image once.
+	 *
+	 * @param rawImage           raw image
+	 * @param boxes              boxes to crop
+	 * @param autocropParameters parameters of the crop
+	 *
+	 * @throws IOException     if the raw image cannot be opened
+	 * @throws FormatException if something goes wrong performing a file format operation
+	 */
+	private void cropRawImage(File rawImage, Map<Double, Box> boxes, AutocropParameters autocropParameters)
+	throws IOException, FormatException {
+		FilesNames outPutFilesNames = new FilesNames(rawImage.getAbsolutePath());
+		String     prefix           = outPutFilesNames.prefixNameFile();
+		AutoCrop   autoCrop         = new AutoCrop(rawImage, prefix, autocropParameters, boxes);
+		autoCrop.cropKernels3();
+	}
+	
+	
+	/**
+	 * Estimates the memory used to crop the boxes of a raw image, from its metadata: the raw channels kept in memory
+	 * (all of them, or one at a time, if they fit in the crop memory limit) and the crops of one channel. No
+	 * thresholding is done when cropping from coordinates.
+	 *
+	 * @param rawImagePath    path of the raw image
+	 * @param boxes           boxes to crop
+	 * @param cropMemoryLimit maximal size of an image kept in memory (in MB), 0 for no limit
+	 *
+	 * @return estimated memory in MB, 0 if the metadata can't be read
+	 */
+	static int estimateMemory(String rawImagePath, Map<Double, Box> boxes, int cropMemoryLimit) {
+		try (RegionCropReader reader = new RegionCropReader(rawImagePath)) {
+			long planeSize   = (long) reader.getSizeX() * reader.getSizeY() * reader.getBytesPerPixel();
+			long imageSize   = planeSize * reader.getImageCount();
+			long channelSize = planeSize * reader.getSizeZ();
+			long limit       = cropMemoryLimit * AutoCropCalling.MB;
+			long size        = 0;
+			if (limit == 0 || imageSize <= limit) {
+				size = imageSize;
+			} else if (channelSize <= limit) {
+				size = channelSize;
+			}
+			for (Box box : boxes.values()) {
+				size += (long) (box.getXMax() - box.getXMin()) * (box.getYMax() - box.getYMin()) *
+				        (box.getZMax() - box.getZMin()) * reader.getBytesPerPixel();
+			}
+			return (int) Math.min(Integer.MAX_VALUE, (size + AutoCropCalling.MB - 1) / AutoCropCalling.MB);
+		} catch (IOException | FormatException e) {
+			LOGGER.warn("{}: can't read the metadata to estimate the memory used.", rawImagePath, e);
+			return 0;
+		}
+	}
+	
+	
+	/**
+	 * Sets the maximal size of an image kept in memory to crop the boxes. Larger images are read window by window.
+	 *
+	 * @param cropMemoryLimit size in MB, 0 for no limit
+	 */
+	public void setCropMemoryLimit(int cropMemoryLimit) {
+		this.cropMemoryLimit = Math.max(0, cropMemoryLimit);
+	}
+	
+	
+	/**
+	 * Sets the number of raw images cropped at the same time.
+	 *
+	 * @param numberOfThreads number of raw images, 1 to crop the images one after the other
+	 */
+	public void setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = Math.max(1, numberOfThreads);
 	}
 	
 	
@@ -70,16 +258,16 @@ public class CropFromCoordinates {
 				if ((!(line.matches("^#.*")))
 				    && (!(line.matches("^FileName.*")))) {
 					String[] splitLine = line.split("\\t");
-					short    xMax      = (short) (Integer.parseInt(splitLine[3]) + Integer.parseInt(splitLine[6]));
+					int      xMax      = Integer.parseInt(splitLine[3]) + Integer.parseInt(splitLine[6]);
 					
-					short yMax = (short) (Integer.parseInt(splitLine[4]) + Integer.parseInt(splitLine[7]));
-					short zMax = (short) (Integer.parseInt(splitLine[5]) + Integer.parseInt(splitLine[8]));
+					int yMax = Integer.parseInt(splitLine[4]) + Integer.parseInt(splitLine[7]);
+					int zMax = Integer.parseInt(splitLine[5]) + Integer.parseInt(splitLine[8]);
 					
-					Box box = new Box(Short.parseShort(splitLine[3]),
+					Box box = new Box(Integer.parseInt(splitLine[3]),
 					                  xMax,
-					                  Short.parseShort(splitLine[4]),
+					                  Integer.parseInt(splitLine[4]),
 					                  yMax,
-					                  Short.parseShort(splitLine[5]),
+					                  Integer.parseInt(splitLine[5]),
 					                  zMax);
 					
 					boxLists.put(Double.valueOf(splitLine[2]), box);
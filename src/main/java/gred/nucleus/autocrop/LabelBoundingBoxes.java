@@ -0,0 +1,135 @@
+package gred.nucleus.autocrop;
+
+import java.util.Arrays;
+
+
+/**
+ * Bounding boxes and numbers of voxels of labels, kept in tables indexed by the label.
+ * <p>
+ * The tables are updated voxel by voxel, and the statistics of a label can be added to another label (of the same or
+ * of other tables), for instance to gather provisional labels in components.
+ *
+ * @author Tristan Dubos and Axel Poulet
+ */
+public class LabelBoundingBoxes {
+	/** Number of voxels of each label */
+	private long[] counts   = new long[1];
+	/** Bounds of each label: xMin, yMin, zMin, xMax, yMax, zMax */
+	private int[]  bounds   = new int[6];
+	/** Highest label */
+	private int    maxLabel = 0;
+	
+	
+	/** @return highest label with voxels or added from other tables, 0 if there is none */
+	public int getMaxLabel() {
+		return this.maxLabel;
+	}
+	
+	
+	/**
+	 * Returns the number of voxels of a label.
+	 *
+	 * @param label label
+	 *
+	 * @return number of voxels, 0 if the label has no voxel
+	 */
+	public long getCount(int label) {
+		return label > 0 && label <= this.maxLabel ? this.counts[label] : 0;
+	}
+	
+	
+	/**
+	 * Returns the bounding box of a label (max coordinates included).
+	 *
+	 * @param label label
+	 *
+	 * @return bounding box, null if the label has no voxel
+	 */
+	public Box getBox(int label) {
+		if (getCount(label) == 0) {
+			return null;
+		}
+		int b = 6 * label;
+		return new Box(this.bounds[b],
+		               this.bounds[b + 3],
+		               this.bounds[b + 1],
+		               this.bounds[b + 4],
+		               this.bounds[b + 2],
+		               this.bounds[b + 5]);
+	}
+	
+	
+	/**
+	 * Adds a voxel to a label.
+	 *
+	 * @param label label (> 0)
+	 * @param x     x coordinate of the voxel
+	 * @param y     y coordinate of the voxel
+	 * @param z     z coordinate of the voxel
+	 */
+	public void addVoxel(int label, int x, int y, int z) {
+		if (label > this.maxLabel) {
+			ensureCapacity(label);
+		}
+		int b = 6 * label;
+		if (this.counts[label]++ == 0) {
+			this.bounds[b] = x;
+			this.bounds[b + 1] = y;
+			this.bounds[b + 2] = z;
+			this.bounds[b + 3] = x;
+			this.bounds[b + 4] = y;
+			this.bounds[b + 5] = z;
+		} else {
+			this.bounds[b] = Math.min(this.bounds[b], x);
+			this.bounds[b + 1] = Math.min(this.bounds[b + 1], y);
+			this.bounds[b + 2] = Math.min(this.bounds[b + 2], z);
+			this.bounds[b + 3] = Math.max(this.bounds[b + 3], x);
+			this.bounds[b + 4] = Math.max(this.bounds[b + 4], y);
+			this.bounds[b + 5] = Math.max(this.bounds[b + 5], z);
+		}
+	}
+	
+	
+	/**
+	 * Adds the voxels and the bounds of a label of other tables to a label of these tables.
+	 *
+	 * @param label      label (> 0)
+	 * @param other      tables of the other label
+	 * @param otherLabel other label
+	 */
+	public void addLabel(int label, LabelBoundingBoxes other, int otherLabel) {
+		if (label > this.maxLabel) {
+			ensureCapacity(label);
+		}
+		if (other.getCount(otherLabel) == 0) {
+			return;
+		}
+		int b = 6 * label;
+		int o = 6 * otherLabel;
+		if (this.counts[label] == 0) {
+			System.arraycopy(other.bounds, o, this.bounds, b, 6);
+		} else {
+			for (int n = 0; n < 3; ++n) {
+				this.bounds[b + n] = Math.min(this.bounds[b + n], other.bounds[o + n]);
+				this.bounds[b + 3 + n] = Math.max(this.bounds[b + 3 + n], other.bounds[o + 3 + n]);
+			}
+		}
+		this.counts[label] += other.counts[otherLabel];
+	}
+	
+	
+	/**
+	 * Grows the tables to a label.
+	 *
+	 * @param label highest label
+	 */
+	private void ensureCapacity(int label) {
+		if (label >= this.counts.length) {
+			int capacity = Math.max(label + 1, Math.max(1024, 2 * this.counts.length));
+			this.counts = Arrays.copyOf(this.counts, capacity);
+			this.bounds = Arrays.copyOf(this.bounds, 6 * capacity);
+		}
+		this.maxLabel = label;
+	}
+	
+}
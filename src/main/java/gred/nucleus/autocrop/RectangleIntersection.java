@@ -7,6 +7,8 @@ import java.awt.Rectangle;
 import java.awt.geom.Rectangle2D;
 import java.lang.invoke.MethodHandles;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -22,6 +24,9 @@ import java.util.TreeMap;
  * SurfaceB intersect SurfaceA >50%
  * <p> You can define the percent of surface intersection parameter in Autocrop parameters:
  * <p> Parameter : int boxesPercentSurfaceToFilter
+ * <p>
+ * Each group of boxes connected by such intersections is replaced by its bounding box, until no more boxes are merged.
+ * The intersecting pairs are found with a sweep over the boxes sorted by x, and grouped with a union-find.
  */
 
 
@@ -29,25 +34,14 @@ public class RectangleIntersection {
 	/** Logger */
 	private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 	
-	/** List of boxes Rectangle : xMin , yMin , width , height */
-	List<Rectangle>       listRectangle      = new ArrayList<>();
-	/** Slice coordinate associated to the rectangles(boxes) */
-	List<String>          zSlices            = new ArrayList<>();
-	/** List of rectangle intersected detected */
-	List<String>          rectangleIntersect = new ArrayList<>();
-	/** Number of intersections per rectangles */
-	Map<Integer, Integer> countIntersect     = new HashMap<>();
-	/** Final list of rectangles after re rectangle computations */
-	List<String>          finalListRectangle = new ArrayList<>();
-	/** Boolean to check if new rectangles are computed */
-	boolean               newBoxesAdded      = false;
+	/** Boxes to merge (max coordinates excluded) */
+	private final List<Box>          boxes = new ArrayList<>();
 	/** Autocrop parameter */
-	AutocropParameters    autocropParameters;
+	private final AutocropParameters autocropParameters;
 	
 	
 	/**
-	 * Constructor getting list of boxes computed in autocrop class. Initialisation of a list of 2D rectangles and a
-	 * list of Z stack associated (zMin-zMax).
+	 * Constructor getting list of boxes computed in autocrop class, in the order of their labels.
 	 *
 	 * @param boxes              List of boxes
 	 * @param autocropParameters Autocrop parameters
@@ -55,13 +49,13 @@ public class RectangleIntersection {
 	public RectangleIntersection(Map<Double, Box> boxes, AutocropParameters autocropParameters) {
 		this.autocropParameters = autocropParameters;
 		for (Map.Entry<Double, Box> entry : new TreeMap<>(boxes).entrySet()) {
-			Box box       = entry.getValue();
-			int boxWidth  = box.getXMax() - box.getXMin();
-			int boxHeight = box.getYMax() - box.getYMin();
-			int boxSlice  = box.getZMax() - box.getZMin();
-			
-			this.listRectangle.add(new Rectangle(box.getXMin(), box.getYMin(), boxWidth, boxHeight));
-			this.zSlices.add(box.getZMin() + "-" + boxSlice);
+			Box box = entry.getValue();
+			this.boxes.add(new Box(box.getXMin(),
+			                       box.getXMax(),
+			                       box.getYMin(),
+			                       box.getYMax(),
+			                       box.getZMin(),
+			                       box.getZMax()));
 		}
 	}
 	
@@ -83,174 +77,124 @@ public class RectangleIntersection {
 	}
 	
 	
-	/**
-	 * Class to run the boxes merge process
-	 * <p> Step 1 : detecting boxes intersections</li>
-	 * <p> Step 2 : group rectangle intersecting</li>
-	 * <p> Step 3 : compile new rectangle</li>
-	 */
+	/** Merges the intersecting boxes until no more boxes are merged. */
 	public void runRectangleRecompilation() {
-		this.newBoxesAdded = true;
-		int tours = 0;
-		while (this.newBoxesAdded) {
-			tours++;
-			computeIntersection();
-			rectangleRegroup();
-			recompileRectangle();
+		boolean newBoxesAdded = true;
+		while (newBoxesAdded) {
+			newBoxesAdded = mergeIntersectingBoxes();
 		}
 	}
 	
 	
-	/** Regroup list of rectangles intersecting */
-	public void computeIntersection() {
-		this.rectangleIntersect.clear();
-		
-		for (int i = 0; i < this.listRectangle.size(); i++) {
-			for (int y = 0; y < this.listRectangle.size(); y++) {
-				
-				if (((i != y)) &&
-				    (!((this.rectangleIntersect.contains(i + "-" + y)))) &&
-				    (!((this.rectangleIntersect.contains(y + "-" + i))))) {
-					
-					if (listRectangle.get(i).intersects(this.listRectangle.get(y))) {
-						
-						if (percentOf2Rectangles(this.listRectangle.get(i), this.listRectangle.get(y)) >
-						    autocropParameters.getBoxesPercentSurfaceToFilter() ||
-						    percentOf2Rectangles(this.listRectangle.get(y), this.listRectangle.get(i)) >
-						    autocropParameters.getBoxesPercentSurfaceToFilter()) {
-							
-							this.rectangleIntersect.add(i + "-" + y);
-							this.rectangleIntersect.add(y + "-" + i);
-							if (this.countIntersect.containsKey(i)) {
-								this.countIntersect.put(i, this.countIntersect.get(i) + 1);
-							} else {
-								this.countIntersect.put(i, 1);
-							}
-						}
-					}
+	/**
+	 * Replaces each group of intersecting boxes by its bounding box. The boxes which are not merged keep their order,
+	 * the new boxes are added after them in the order of their first box.
+	 *
+	 * @return true if boxes were merged
+	 */
+	private boolean mergeIntersectingBoxes() {
+		int         nbBoxes    = this.boxes.size();
+		int[]       parent     = new int[nbBoxes];
+		Rectangle[] rectangles = new Rectangle[nbBoxes];
+		Integer[]   order      = new Integer[nbBoxes];
+		for (int i = 0; i < nbBoxes; ++i) {
+			Box box = this.boxes.get(i);
+			parent[i] = i;
+			order[i] = i;
+			rectangles[i] = new Rectangle(box.getXMin(),
+			                              box.getYMin(),
+			                              box.getXMax() - box.getXMin(),
+			                              box.getYMax() - box.getYMin());
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer box1, Integer box2) {
+				return Integer.compare(boxes.get(box1).getXMin(), boxes.get(box2).getXMin());
+			}
+		});
+		int percent = this.autocropParameters.getBoxesPercentSurfaceToFilter();
+		for (int a = 0; a < nbBoxes; ++a) {
+			int i    = order[a];
+			int xMax = this.boxes.get(i).getXMax();
+			for (int b = a + 1; b < nbBoxes && this.boxes.get(order[b]).getXMin() < xMax; ++b) {
+				int j = order[b];
+				if (rectangles[i].intersects(rectangles[j]) &&
+				    (percentOf2Rectangles(rectangles[i], rectangles[j]) > percent ||
+				     percentOf2Rectangles(rectangles[j], rectangles[i]) > percent)) {
+					union(parent, i, j);
 				}
 			}
 		}
+		
+		int[] groupSizes = new int[nbBoxes];
+		for (int i = 0; i < nbBoxes; ++i) {
+			groupSizes[find(parent, i)]++;
+		}
+		List<Box>         mergedBoxes   = new ArrayList<>(nbBoxes);
+		Map<Integer, Box> newBoxes      = new TreeMap<>();
+		int               nbMergedBoxes = 0;
+		for (int i = 0; i < nbBoxes; ++i) {
+			int root = find(parent, i);
+			Box box  = this.boxes.get(i);
+			if (groupSizes[root] == 1) {
+				mergedBoxes.add(box);
+			} else if (newBoxes.containsKey(root)) {
+				Box newBox = newBoxes.get(root);
+				newBox.setXMin(Math.min(newBox.getXMin(), box.getXMin()));
+				newBox.setXMax(Math.max(newBox.getXMax(), box.getXMax()));
+				newBox.setYMin(Math.min(newBox.getYMin(), box.getYMin()));
+				newBox.setYMax(Math.max(newBox.getYMax(), box.getYMax()));
+				newBox.setZMin(Math.min(newBox.getZMin(), box.getZMin()));
+				newBox.setZMax(Math.max(newBox.getZMax(), box.getZMax()));
+				nbMergedBoxes++;
+			} else {
+				newBoxes.put(root, new Box(box.getXMin(),
+				                           box.getXMax(),
+				                           box.getYMin(),
+				                           box.getYMax(),
+				                           box.getZMin(),
+				                           box.getZMax()));
+				nbMergedBoxes++;
+			}
+		}
+		LOGGER.debug("{} boxes will be merged in {} new boxes", nbMergedBoxes, newBoxes.size());
+		mergedBoxes.addAll(newBoxes.values());
+		this.boxes.clear();
+		this.boxes.addAll(mergedBoxes);
+		return !newBoxes.isEmpty();
 	}
 	
 	
-	/** Regroup of rectangle intersecting recursively */
-	public void rectangleRegroup() {
-		this.finalListRectangle.clear();
-		for (Map.Entry<Integer, Integer> entry : this.countIntersect.entrySet()) {
-			StringBuilder listRectangleConnected          = new StringBuilder(String.valueOf(entry.getKey()));
-			String        listRectangleConnectedStartTurn = String.valueOf(entry.getKey());
-			for (int i = 0; i < this.rectangleIntersect.size(); i++) {
-				
-				String[] splitIntersect = this.rectangleIntersect.get(i).split("-");
-				if (splitIntersect[0].equals(Integer.toString(entry.getKey()))) {
-					String[] splitList = this.rectangleIntersect.get(i).split("-");
-					listRectangleConnected.append("-").append(splitList[splitList.length - 1]);
-					this.rectangleIntersect.remove(i);
-					this.rectangleIntersect.remove(splitList[splitList.length - 1] + "-" + entry.getKey());
-					List<String> listToIterateThrough = new ArrayList<>();
-					listToIterateThrough.add(splitList[splitList.length - 1]);
-					while (!listToIterateThrough.isEmpty()) {
-						for (int y = 0; y < this.rectangleIntersect.size(); y++) {
-							String[] splitIntersect2 = this.rectangleIntersect.get(y).split("-");
-							if (splitIntersect2[0].equals(listToIterateThrough.get(0))) {
-								String[] splitList2 = this.rectangleIntersect.get(y).split("-");
-								listToIterateThrough.add(splitList2[splitList.length - 1]);
-								listRectangleConnected.append("-").append(splitList2[splitList.length - 1]);
-								String[] splitCurrentRectangleConnected = listRectangleConnected.toString().split("-");
-								this.rectangleIntersect.remove(y);
-								this.rectangleIntersect.remove(splitList2[splitList.length - 1] +
-								                               "-" +
-								                               listToIterateThrough.get(0));
-								for (String s : splitCurrentRectangleConnected) {
-									this.rectangleIntersect.remove(splitList2[splitList.length - 1] + "-" + s);
-									this.rectangleIntersect.remove(s + "-" + splitList2[splitList.length - 1]);
-								}
-								y = 0;
-							}
-						}
-						listToIterateThrough.remove(0);
-					}
-				}
-				if (!(listRectangleConnected.toString().equals(listRectangleConnectedStartTurn))) {
-					i--;
-					listRectangleConnectedStartTurn = listRectangleConnected.toString();
-				}
-			}
-			this.finalListRectangle.add(listRectangleConnected.toString());
+	/**
+	 * Finds the root of a box in the union-find (path halving).
+	 *
+	 * @param parent parent of each box
+	 * @param box    box index
+	 *
+	 * @return root index (first box of the group)
+	 */
+	private static int find(int[] parent, int box) {
+		int b = box;
+		while (parent[b] != b) {
+			parent[b] = parent[parent[b]];
+			b = parent[b];
 		}
+		return b;
 	}
 	
 	
-	/** Compile of new rectangle by getting extreme coordinate of a group of rectangles. */
-	public void recompileRectangle() {
-		this.newBoxesAdded = false;
-		List<Rectangle> listOfRectangleToAdd       = new ArrayList<>();
-		List<String>    listOfRectangleZSliceToAdd = new ArrayList<>();
-		List<Rectangle> listOfRectangleToRemove    = new ArrayList<>();
-		for (String value : this.finalListRectangle) {
-			String[] splitList2       = value.split("-");
-			double   xMixNewRectangle = 0;
-			double   yMinNewRectangle = 0;
-			double   maxWidth         = 0;
-			double   maxHeight        = 0;
-			int      minZSlice        = 0;
-			int      maxZSlice        = 0;
-			if (splitList2.length > 1) {
-				for (String s : splitList2) {
-					int tmp = Integer.parseInt(s);
-					if ((this.listRectangle.get(tmp).getX() < xMixNewRectangle) || (xMixNewRectangle == 0)) {
-						xMixNewRectangle = this.listRectangle.get(tmp).getX();
-					}
-					if ((this.listRectangle.get(tmp).getY() < yMinNewRectangle) || (yMinNewRectangle == 0)) {
-						yMinNewRectangle = this.listRectangle.get(tmp).getY();
-					}
-					if (((this.listRectangle.get(tmp).getX() + this.listRectangle.get(tmp).getWidth()) > maxWidth) ||
-					    (maxWidth == 0)) {
-						maxWidth = this.listRectangle.get(tmp).getX() + this.listRectangle.get(tmp).getWidth();
-					}
-					if (((this.listRectangle.get(tmp).getY() + this.listRectangle.get(tmp).getHeight()) > maxHeight) ||
-					    (maxHeight == 0)) {
-						maxHeight = this.listRectangle.get(tmp).getY() + this.listRectangle.get(tmp).getHeight();
-					}
-					
-					String[] zSliceTMP = this.zSlices.get(tmp).split("-");
-					if ((Integer.parseInt(zSliceTMP[0]) < minZSlice) || (minZSlice == 0)) {
-						minZSlice = Integer.parseInt(zSliceTMP[0]);
-					}
-					if (((Integer.parseInt(zSliceTMP[0] + Integer.valueOf(zSliceTMP[1])) > maxZSlice) ||
-					     (maxZSlice == 0))) {
-						maxZSlice = Integer.parseInt(zSliceTMP[0]) + Integer.parseInt(zSliceTMP[1]);
-					}
-					listOfRectangleToRemove.add(new Rectangle((int) this.listRectangle.get(tmp).getX(),
-					                                          (int) this.listRectangle.get(tmp).getY(),
-					                                          (int) this.listRectangle.get(tmp).getWidth(),
-					                                          (int) this.listRectangle.get(tmp).getHeight()));
-				}
-				
-				maxZSlice -= minZSlice;
-				listOfRectangleZSliceToAdd.add(minZSlice + "-" + maxZSlice);
-				maxWidth = (int) maxWidth - (int) xMixNewRectangle;
-				maxHeight = (int) maxHeight - (int) yMinNewRectangle;
-				listOfRectangleToAdd.add(new Rectangle((int) xMixNewRectangle,
-				                                       (int) yMinNewRectangle,
-				                                       (int) maxWidth,
-				                                       (int) maxHeight));
-			}
-		}
-		LOGGER.debug("{} boxes will be merged in {} new boxes",
-		             listOfRectangleToRemove.size(),
-		             listOfRectangleToAdd.size());
-		for (int i = 0; i < listOfRectangleToAdd.size(); i++) {
-			this.newBoxesAdded = true;
-			listRectangle.add(listOfRectangleToAdd.get(i));
-			zSlices.add(listOfRectangleZSliceToAdd.get(i));
-		}
-		for (Rectangle rectangle : listOfRectangleToRemove) {
-			this.newBoxesAdded = true;
-			int indexRectangleRemove = listRectangle.indexOf(rectangle);
-			listRectangle.remove(indexRectangleRemove);
-			zSlices.remove(indexRectangleRemove);
+	/**
+	 * Groups two boxes in the union-find.
+	 *
+	 * @param parent parent of each box
+	 * @param box1   first box index
+	 * @param box2   second box index
+	 */
+	private static void union(int[] parent, int box1, int box2) {
+		int root1 = find(parent, box1);
+		int root2 = find(parent, box2);
+		if (root1 != root2) {
+			parent[Math.max(root1, root2)] = Math.min(root1, root2);
 		}
 	}
 	
@@ -261,26 +205,21 @@ public class RectangleIntersection {
 	 * @return list of new boxes
 	 */
 	public Map<Double, Box> getNewBoxes() {
-		Map<Double, Box> boxes = new HashMap<>();
-		
-		
-		for (int i = 0; i < listRectangle.size(); i++) {
-			String[] zSliceTMP = this.zSlices.get(i).split("-");
-			short    tmpXMax   = (short) (this.listRectangle.get(i).getX() + this.listRectangle.get(i).getWidth());
-			short    tmpYMax   = (short) (this.listRectangle.get(i).getY() + this.listRectangle.get(i).getHeight());
-			short    tmpZMax   = (short) (Short.parseShort(zSliceTMP[0]) + Short.parseShort(zSliceTMP[1]));
-			if (tmpZMax == 0) {
-				tmpZMax = 1;
+		Map<Double, Box> newBoxes = new HashMap<>();
+		for (int i = 0; i < this.boxes.size(); i++) {
+			Box box  = this.boxes.get(i);
+			int zMax = box.getZMax();
+			if (zMax == 0) {
+				zMax = 1;
 			}
-			Box box = new Box((short) (this.listRectangle.get(i).getX()),
-			                  tmpXMax,
-			                  (short) (this.listRectangle.get(i).getY()),
-			                  tmpYMax,
-			                  Short.parseShort(zSliceTMP[0]),
-			                  tmpZMax);
-			boxes.put((double) i, box);
+			newBoxes.put((double) i, new Box(box.getXMin(),
+			                                 box.getXMax(),
+			                                 box.getYMin(),
+			                                 box.getYMax(),
+			                                 box.getZMin(),
+			                                 zMax));
 		}
-		return boxes;
+		return newBoxes;
 	}
 	
 }
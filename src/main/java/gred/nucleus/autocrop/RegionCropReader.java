@@ -0,0 +1,205 @@
+package gred.nucleus.autocrop;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import loci.formats.ChannelSeparator;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.plugins.util.ImageProcessorReader;
+import loci.plugins.util.LociPrefs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Crops boxes from an image file without reading the whole image: only the XY window of the boxes is read on each plane
+ * (Bio-Formats region reads), so the memory used is proportional to the size of the crops and not to the size of the
+ * image.
+ *
+ * @author Tristan Dubos and Axel Poulet
+ */
+public class RegionCropReader implements AutoCloseable {
+	/** Reader of the image planes */
+	private final ImageProcessorReader reader;
+	
+	
+	/**
+	 * Constructor: opens the image file (metadata only).
+	 *
+	 * @param imageFilePath path of the image
+	 *
+	 * @throws IOException
+	 * @throws FormatException
+	 */
+	public RegionCropReader(String imageFilePath) throws IOException, FormatException {
+		this.reader = new ImageProcessorReader(new ChannelSeparator(LociPrefs.makeImageReader()));
+		this.reader.setId(imageFilePath);
+	}
+	
+	
+	/**
+	 * Crops a box on a channel, reading only the window of the box on each of its slices.
+	 *
+	 * @param box           box to crop (max coordinates excluded)
+	 * @param channelNumber channel to crop
+	 *
+	 * @return cropped image
+	 *
+	 * @throws IOException
+	 * @throws FormatException
+	 */
+	public ImagePlus crop(Box box, int channelNumber) throws IOException, FormatException {
+		int        width  = box.getXMax() - box.getXMin();
+		int        height = box.getYMax() - box.getYMin();
+		ImageStack stack  = new ImageStack(width, height);
+		for (int z = box.getZMin(); z < box.getZMax(); ++z) {
+			stack.addSlice(readWindow(z, channelNumber, box.getXMin(), box.getYMin(), width, height));
+		}
+		ImagePlus croppedImage = new ImagePlus();
+		croppedImage.setStack(stack);
+		return croppedImage;
+	}
+	
+	
+	/**
+	 * Crops all the boxes on a channel, plane by plane: on each plane, the window containing all the boxes present on
+	 * the plane is read once and the boxes are cut from it. If this window is larger than the window size limit, each
+	 * box is read separately.
+	 *
+	 * @param boxes           boxes to crop (max coordinates excluded)
+	 * @param channelNumber   channel to crop
+	 * @param windowSizeLimit maximal size of a window read on a plane (in bytes), 0 for no limit
+	 *
+	 * @return cropped images, with the keys of the boxes
+	 *
+	 * @throws IOException
+	 * @throws FormatException
+	 */
+	public Map<Double, ImagePlus> cropAll(Map<Double, Box> boxes, int channelNumber, long windowSizeLimit)
+	throws IOException, FormatException {
+		Map<Double, ImageStack> stacks = new HashMap<>(boxes.size());
+		int                     zMin   = Integer.MAX_VALUE;
+		int                     zMax   = Integer.MIN_VALUE;
+		for (Map.Entry<Double, Box> entry : boxes.entrySet()) {
+			Box box = entry.getValue();
+			stacks.put(entry.getKey(),
+			           new ImageStack(box.getXMax() - box.getXMin(), box.getYMax() - box.getYMin()));
+			zMin = Math.min(zMin, box.getZMin());
+			zMax = Math.max(zMax, box.getZMax());
+		}
+		List<Map.Entry<Double, Box>> planeBoxes = new ArrayList<>(boxes.size());
+		for (int z = zMin; z < zMax; ++z) {
+			planeBoxes.clear();
+			int xMin = Integer.MAX_VALUE;
+			int yMin = Integer.MAX_VALUE;
+			int xMax = Integer.MIN_VALUE;
+			int yMax = Integer.MIN_VALUE;
+			for (Map.Entry<Double, Box> entry : boxes.entrySet()) {
+				Box box = entry.getValue();
+				if (z >= box.getZMin() && z < box.getZMax()) {
+					planeBoxes.add(entry);
+					xMin = Math.min(xMin, box.getXMin());
+					yMin = Math.min(yMin, box.getYMin());
+					xMax = Math.max(xMax, box.getXMax());
+					yMax = Math.max(yMax, box.getYMax());
+				}
+			}
+			if (planeBoxes.isEmpty()) {
+				continue;
+			}
+			long windowSize = (long) (xMax - xMin) * (yMax - yMin) * getBytesPerPixel();
+			if (windowSizeLimit == 0 || windowSize <= windowSizeLimit) {
+				ImageProcessor window = readWindow(z, channelNumber, xMin, yMin, xMax - xMin, yMax - yMin);
+				for (Map.Entry<Double, Box> entry : planeBoxes) {
+					Box box = entry.getValue();
+					window.setRoi(box.getXMin() - xMin,
+					              box.getYMin() - yMin,
+					              box.getXMax() - box.getXMin(),
+					              box.getYMax() - box.getYMin());
+					stacks.get(entry.getKey()).addSlice(window.crop());
+				}
+			} else {
+				for (Map.Entry<Double, Box> entry : planeBoxes) {
+					Box box = entry.getValue();
+					stacks.get(entry.getKey()).addSlice(readWindow(z,
+					                                               channelNumber,
+					                                               box.getXMin(),
+					                                               box.getYMin(),
+					                                               box.getXMax() - box.getXMin(),
+					                                               box.getYMax() - box.getYMin()));
+				}
+			}
+		}
+		Map<Double, ImagePlus> croppedImages = new HashMap<>(boxes.size());
+		for (Map.Entry<Double, ImageStack> entry : stacks.entrySet()) {
+			ImagePlus croppedImage = new ImagePlus();
+			croppedImage.setStack(entry.getValue());
+			croppedImages.put(entry.getKey(), croppedImage);
+		}
+		return croppedImages;
+	}
+	
+	
+	/**
+	 * Reads a window of a plane.
+	 *
+	 * @param z             slice of the plane
+	 * @param channelNumber channel of the plane
+	 * @param x             x coordinate of the window
+	 * @param y             y coordinate of the window
+	 * @param width         width of the window
+	 * @param height        height of the window
+	 *
+	 * @return pixels of the window
+	 *
+	 * @throws IOException
+	 * @throws FormatException
+	 */
+	private ImageProcessor readWindow(int z, int channelNumber, int x, int y, int width, int height)
+	throws IOException, FormatException {
+		return this.reader.openProcessors(this.reader.getIndex(z, channelNumber, 0), x, y, width, height)[0];
+	}
+	
+	
+	/** @return width of the image */
+	public int getSizeX() {
+		return this.reader.getSizeX();
+	}
+	
+	
+	/** @return height of the image */
+	public int getSizeY() {
+		return this.reader.getSizeY();
+	}
+	
+	
+	/** @return number of slices of the image */
+	public int getSizeZ() {
+		return this.reader.getSizeZ();
+	}
+	
+	
+	/** @return number of planes of the image (all slices, channels and time points) */
+	public int getImageCount() {
+		return this.reader.getImageCount();
+	}
+	
+	
+	/** @return number of bytes of a pixel */
+	public int getBytesPerPixel() {
+		return FormatTools.getBytesPerPixel(this.reader.getPixelType());
+	}
+	
+	
+	/** Closes the image file. */
+	@Override
+	public void close() throws IOException {
+		this.reader.close();
+	}
+	
+}
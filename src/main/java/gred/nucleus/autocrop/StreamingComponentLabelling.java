@@ -0,0 +1,295 @@
+package gred.nucleus.autocrop;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+
+
+/**
+ * 26-connected components of a binary image (voxels > 0) computed slice by slice, without a label image.
+ * <p>
+ * Only the provisional labels of the current and previous slices are kept, with a union-find table of the equivalent
+ * labels and the statistics of each provisional label (number of voxels and bounds, see {@link LabelBoundingBoxes}).
+ * The components are labelled in the order of their first voxel, as MorphoLibJ does. A label image can be computed
+ * again on demand, with 16-bit labels when the number of components allows it.
+ *
+ * @author Tristan Dubos and Axel Poulet
+ */
+public class StreamingComponentLabelling {
+	/** Binary image */
+	private final ImagePlus binaryImage;
+	/** Width of the image */
+	private final int       width;
+	/** Height of the image */
+	private final int       height;
+	/** Number of slices of the image */
+	private final int       depth;
+	
+	/** Union-find parent of each provisional label */
+	private int[]              parent     = new int[1];
+	/** Number of voxels and bounds of each provisional label, then of each component */
+	private LabelBoundingBoxes statistics = new LabelBoundingBoxes();
+	
+	/** Component of each provisional label */
+	private int[] components;
+	/** Number of components */
+	private int   nbComponents;
+	
+	
+	/**
+	 * Computes the connected components of a binary image.
+	 *
+	 * @param binaryImage binary image (voxels > 0 are foreground)
+	 */
+	public StreamingComponentLabelling(ImagePlus binaryImage) {
+		this.binaryImage = binaryImage;
+		this.width = binaryImage.getWidth();
+		this.height = binaryImage.getHeight();
+		this.depth = binaryImage.getStackSize();
+		ImageStack stack     = binaryImage.getStack();
+		int[]      previous  = new int[this.width * this.height];
+		int[]      current   = new int[this.width * this.height];
+		int        nextLabel = 1;
+		for (int k = 0; k < this.depth; ++k) {
+			nextLabel = labelSlice(stack.getPixels(k + 1), k > 0 ? previous : null, current, k, nextLabel, true);
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		resolveComponents(nextLabel);
+	}
+	
+	
+	/**
+	 * Gives a provisional label to the foreground voxels of a slice, from the labels of their neighbours already
+	 * visited (previous slice, previous row and previous voxel of the row).
+	 *
+	 * @param pixels    pixels of the slice
+	 * @param previous  provisional labels of the previous slice, null on the first slice
+	 * @param current   provisional labels of the slice (output)
+	 * @param z         slice (from 0)
+	 * @param nextLabel next provisional label
+	 * @param record    true to merge the equivalent labels and add the voxels to the statistics
+	 *
+	 * @return next provisional label
+	 */
+	private int labelSlice(Object pixels, int[] previous, int[] current, int z, int nextLabel, boolean record) {
+		ImageProcessor processor = pixels instanceof byte[] ? null : this.binaryImage.getStack().getProcessor(z + 1);
+		for (int j = 0, n = 0; j < this.height; ++j) {
+			for (int i = 0; i < this.width; ++i, ++n) {
+				boolean foreground = processor == null ? ((byte[]) pixels)[n] != 0 : processor.getf(n) > 0;
+				if (!foreground) {
+					current[n] = 0;
+					continue;
+				}
+				int label = 0;
+				if (i > 0) {
+					label = merge(label, current[n - 1], record);
+				}
+				if (j > 0) {
+					for (int x = Math.max(0, i - 1); x <= Math.min(this.width - 1, i + 1); ++x) {
+						label = merge(label, current[n - this.width - i + x], record);
+					}
+				}
+				if (previous != null) {
+					for (int y = Math.max(0, j - 1); y <= Math.min(this.height - 1, j + 1); ++y) {
+						for (int x = Math.max(0, i - 1); x <= Math.min(this.width - 1, i + 1); ++x) {
+							label = merge(label, previous[x + y * this.width], record);
+						}
+					}
+				}
+				if (label == 0) {
+					label = nextLabel++;
+					if (record) {
+						ensureCapacity(label);
+					}
+				}
+				current[n] = label;
+				if (record) {
+					this.statistics.addVoxel(label, i, j, z);
+				}
+			}
+		}
+		return nextLabel;
+	}
+	
+	
+	/**
+	 * Merges the label of a voxel with the label of one of its neighbours.
+	 *
+	 * @param label          label of the voxel, 0 if none yet
+	 * @param neighbourLabel label of the neighbour, 0 for the background
+	 * @param record         true to record the equivalence of the labels
+	 *
+	 * @return label of the voxel
+	 */
+	private int merge(int label, int neighbourLabel, boolean record) {
+		if (neighbourLabel == 0) {
+			return label;
+		}
+		if (label == 0) {
+			return neighbourLabel;
+		}
+		if (record && label != neighbourLabel) {
+			union(label, neighbourLabel);
+		}
+		return label;
+	}
+	
+	
+	/**
+	 * Grows the union-find table of the provisional labels.
+	 *
+	 * @param label highest provisional label
+	 */
+	private void ensureCapacity(int label) {
+		if (label >= this.parent.length) {
+			this.parent = Arrays.copyOf(this.parent, Math.max(label + 1, Math.max(1024, 2 * this.parent.length)));
+		}
+		this.parent[label] = label;
+	}
+	
+	
+	/**
+	 * Finds the root of a provisional label (path halving).
+	 *
+	 * @param label provisional label
+	 *
+	 * @return root
+	 */
+	private int find(int label) {
+		int l = label;
+		while (this.parent[l] != l) {
+			this.parent[l] = this.parent[this.parent[l]];
+			l = this.parent[l];
+		}
+		return l;
+	}
+	
+	
+	/**
+	 * Merges two provisional labels, the root being the smallest label.
+	 *
+	 * @param label1 first provisional label
+	 * @param label2 second provisional label
+	 */
+	private void union(int label1, int label2) {
+		int root1 = find(label1);
+		int root2 = find(label2);
+		if (root1 != root2) {
+			this.parent[Math.max(root1, root2)] = Math.min(root1, root2);
+		}
+	}
+	
+	
+	/**
+	 * Gathers the provisional labels in components. The roots are the smallest provisional labels, given in the order
+	 * of the first voxels, so the components are numbered in the order of their first voxel.
+	 *
+	 * @param nextLabel next provisional label (number of provisional labels + 1)
+	 */
+	private void resolveComponents(int nextLabel) {
+		this.components = new int[nextLabel];
+		LabelBoundingBoxes componentStatistics = new LabelBoundingBoxes();
+		for (int label = 1; label < nextLabel; ++label) {
+			int root = find(label);
+			this.components[label] = root == label ? ++this.nbComponents : this.components[root];
+			componentStatistics.addLabel(this.components[label], this.statistics, label);
+		}
+		this.parent = null;
+		this.statistics = componentStatistics;
+	}
+	
+	
+	/** @return number of components (labels 1 to n) */
+	public int getNumberOfComponents() {
+		return this.nbComponents;
+	}
+	
+	
+	/**
+	 * Returns the number of voxels of a component.
+	 *
+	 * @param label label of the component
+	 *
+	 * @return number of voxels, 0 if there is no such component
+	 */
+	public long getVoxelCount(int label) {
+		return label <= this.nbComponents ? this.statistics.getCount(label) : 0;
+	}
+	
+	
+	/**
+	 * Returns the bounding box of a component (max coordinates included).
+	 *
+	 * @param label label of the component
+	 *
+	 * @return bounding box, null if there is no such component
+	 */
+	public Box getBox(int label) {
+		return label <= this.nbComponents ? this.statistics.getBox(label) : null;
+	}
+	
+	
+	/**
+	 * Checks if a component touches the border of the image (the first and last slices are borders of 3D images only,
+	 * as in LabelImages.removeBorderLabels).
+	 *
+	 * @param label label of the component
+	 *
+	 * @return true if the component touches the border
+	 */
+	public boolean isOnBorder(int label) {
+		Box box = getBox(label);
+		return box != null &&
+		       (box.getXMin() == 0 || box.getYMin() == 0 ||
+		        box.getXMax() == this.width - 1 || box.getYMax() == this.height - 1 ||
+		        this.depth > 1 && (box.getZMin() == 0 || box.getZMax() == this.depth - 1));
+	}
+	
+	
+	/**
+	 * Computes the label image of the components, labelling the slices again. The labels are 16-bit if there are less
+	 * than 65536 components, 32-bit otherwise.
+	 *
+	 * @param removeBorderComponents true to set the components touching the border to 0
+	 *
+	 * @return label image
+	 */
+	public ImagePlus getLabelledImage(boolean removeBorderComponents) {
+		ImageStack stack     = this.binaryImage.getStack();
+		ImageStack labels    = new ImageStack(this.width, this.height);
+		boolean    shortType = this.nbComponents <= 0xffff;
+		boolean[]  removed   = new boolean[this.nbComponents + 1];
+		int[]      previous  = new int[this.width * this.height];
+		int[]      current   = new int[this.width * this.height];
+		int        nextLabel = 1;
+		for (int label = 1; label <= this.nbComponents; ++label) {
+			removed[label] = removeBorderComponents && isOnBorder(label);
+		}
+		for (int k = 0; k < this.depth; ++k) {
+			nextLabel = labelSlice(stack.getPixels(k + 1), k > 0 ? previous : null, current, k, nextLabel, false);
+			ImageProcessor processor = shortType ?
+			                           new ShortProcessor(this.width, this.height) :
+			                           new FloatProcessor(this.width, this.height);
+			for (int n = 0; n < current.length; ++n) {
+				int label = this.components[current[n]];
+				if (label > 0 && !removed[label]) {
+					processor.setf(n, label);
+				}
+			}
+			labels.addSlice(processor);
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		ImagePlus labelledImage = new ImagePlus(this.binaryImage.getTitle() + "-lbl", labels);
+		labelledImage.setCalibration(this.binaryImage.getCalibration());
+		return labelledImage;
+	}
+	
+}
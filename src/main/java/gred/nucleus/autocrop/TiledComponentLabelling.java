@@ -0,0 +1,496 @@
+package gred.nucleus.autocrop;
+
+import gred.nucleus.connectedcomponent.ParallelComponentsLabeling;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.GaussianBlur3D;
+import ij.process.ByteProcessor;
+import loci.formats.FormatException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+
+/**
+ * Detection of the connected components of the thresholded image by overlapping XY tiles, for images too large to be
+ * kept in memory.
+ * <p>
+ * Each tile is read with a margin, converted to 8 bits, blurred and thresholded as in {@link AutoCrop}. The tiles
+ * overlap by one column and one row: the components of two neighbouring tiles sharing a voxel of the overlap are
+ * merged with a union-find, which gives the 26-connected components of the whole image. Each voxel is counted by the
+ * tile owning it, and the components are labelled in the order of their first voxel, as MorphoLibJ does.
+ *
+ * @author Tristan Dubos and Axel Poulet
+ */
+public class TiledComponentLabelling {
+	/** Margin read around the tiles, larger than the radius of the Gaussian blur kernel (sigma 0.5 in XY) */
+	private static final int    BLUR_MARGIN = 4;
+	/** Saturated percentage of the contrast enhancement (see Thresholding.contrastAnd8bits) */
+	private static final double SATURATED   = 0.05;
+	
+	/** Reader of the image */
+	private final RegionCropReader reader;
+	/** Channel to threshold */
+	private final int              channelNumber;
+	/** Size of the tiles in x and y */
+	private final int              tileSize;
+	/** Width of the image */
+	private final int              width;
+	/** Height of the image */
+	private final int              height;
+	/** Number of slices of the image */
+	private final int              depth;
+	
+	/** Conversion table of the raw values to 8 bits */
+	private int[]    lut;
+	/** Histogram of each slice of the blurred 8-bit image */
+	private long[][] sliceHistograms;
+	
+	/** Union-find parent of each tile component */
+	private int[]     parent     = new int[0];
+	/** Number of voxels of each tile component */
+	private long[]    counts     = new long[0];
+	/** Bounds of each tile component: xMin, yMin, zMin, xMax, yMax, zMax */
+	private int[]     bounds     = new int[0];
+	/** Raster index of the first voxel of each tile component */
+	private long[]    minIndices = new long[0];
+	/** Tile components touching the border of the image */
+	private boolean[] border     = new boolean[0];
+	
+	/** Labels of the components of the image */
+	private double[]  labels           = new double[0];
+	/** Number of voxels of the components of the image */
+	private long[]    voxelCounts      = new long[0];
+	/** Bounding boxes of the components of the image (max included) */
+	private Box[]     boxes            = new Box[0];
+	/** Components of the image touching the border */
+	private boolean[] borderComponents = new boolean[0];
+	
+	
+	/**
+	 * Constructor
+	 *
+	 * @param reader        reader of the image
+	 * @param channelNumber channel to threshold
+	 * @param tileSize      size of the tiles in x and y
+	 */
+	public TiledComponentLabelling(RegionCropReader reader, int channelNumber, int tileSize) {
+		if (reader.getBytesPerPixel() > 2) {
+			throw new IllegalArgumentException("Tiled autocrop needs an 8 or 16-bit image");
+		}
+		this.reader = reader;
+		this.channelNumber = channelNumber;
+		this.tileSize = Math.max(1, tileSize);
+		this.width = reader.getSizeX();
+		this.height = reader.getSizeY();
+		this.depth = reader.getSizeZ();
+	}
+	
+	
+	/**
+	 * Estimates the memory used to label an image by tiles: the raw and blurred 8-bit window of one tile with its
+	 * margin, the binary and 32-bit label images of the tile with the int label buffer of the labelling, and the seams
+	 * between the tiles.
+	 *
+	 * @param width         width of the image
+	 * @param height        height of the image
+	 * @param depth         number of slices of the image
+	 * @param bytesPerPixel bytes per pixel of the raw image
+	 * @param tileSize      size of the tiles in x and y
+	 *
+	 * @return estimated memory in bytes
+	 */
+	public static long estimateMemory(int width, int height, int depth, int bytesPerPixel, int tileSize) {
+		int  size       = Math.max(1, tileSize) + 1;
+		long coreSize   = (long) Math.min(size, width) * Math.min(size, height) * depth;
+		long windowSize = (long) Math.min(size + 2 * BLUR_MARGIN, width) *
+		                  Math.min(size + 2 * BLUR_MARGIN, height) * depth;
+		long seamsSize  = 2L * (width + Math.min(size, height)) * depth * Integer.BYTES;
+		return windowSize * (bytesPerPixel + 1) + coreSize * (1 + 2 * Integer.BYTES) + seamsSize;
+	}
+	
+	
+	/**
+	 * Computes the histogram of each slice of the blurred 8-bit image. 16-bit images are converted to 8 bits with the
+	 * contrast enhancement of the whole image, computed on a first pass over the tiles.
+	 *
+	 * @throws IOException
+	 * @throws FormatException
+	 */
+	public void computeHistograms() throws IOException, FormatException {
+		if (this.reader.getBytesPerPixel() == 1) {
+			this.lut = new int[256];
+			for (int v = 0; v < this.lut.length; ++v) {
+				this.lut[v] = v;
+			}
+		} else {
+			long[] rawHistogram = new long[65536];
+			for (int y0 = 0; y0 < this.height; y0 += this.tileSize) {
+				for (int x0 = 0; x0 < this.width; x0 += this.tileSize) {
+					int x1 = Math.min(x0 + this.tileSize, this.width);
+					int y1 = Math.min(y0 + this.tileSize, this.height);
+					ImageStack tile = this.reader.crop(new Box(x0, x1, y0, y1, 0, this.depth), this.channelNumber)
+					                             .getStack();
+					for (int k = 1; k <= this.depth; ++k) {
+						for (short pixel : (short[]) tile.getPixels(k)) {
+							rawHistogram[pixel & 0xffff]++;
+						}
+					}
+				}
+			}
+			computeConversion(rawHistogram);
+		}
+		this.sliceHistograms = new long[this.depth][256];
+		for (int y0 = 0; y0 < this.height; y0 += this.tileSize) {
+			for (int x0 = 0; x0 < this.width; x0 += this.tileSize) {
+				int        x1     = Math.min(x0 + this.tileSize, this.width);
+				int        y1     = Math.min(y0 + this.tileSize, this.height);
+				int        readX0 = Math.max(0, x0 - BLUR_MARGIN);
+				int        readY0 = Math.max(0, y0 - BLUR_MARGIN);
+				ImageStack tile   = readBlurredTile(readX0, readY0, x1, y1).getStack();
+				for (int k = 0; k < this.depth; ++k) {
+					byte[] pixels = (byte[]) tile.getPixels(k + 1);
+					for (int j = y0; j < y1; ++j) {
+						for (int i = x0; i < x1; ++i) {
+							this.sliceHistograms[k][pixels[(i - readX0) + (j - readY0) * tile.getWidth()] & 0xff]++;
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * Returns the histogram of a range of slices of the blurred 8-bit image.
+	 *
+	 * @param firstSlice first slice (included, from 0)
+	 * @param lastSlice  last slice (excluded)
+	 *
+	 * @return number of voxels of each value
+	 */
+	public long[] getHistogram(int firstSlice, int lastSlice) {
+		long[] histogram = new long[256];
+		for (int k = Math.max(0, firstSlice); k < Math.min(lastSlice, this.depth); ++k) {
+			for (int v = 0; v < histogram.length; ++v) {
+				histogram[v] += this.sliceHistograms[k][v];
+			}
+		}
+		return histogram;
+	}
+	
+	
+	/**
+	 * Computes the 26-connected components of the blurred 8-bit image thresholded (voxels greater or equal to the
+	 * threshold).
+	 *
+	 * @param threshold threshold
+	 *
+	 * @throws IOException
+	 * @throws FormatException
+	 */
+	public void computeComponents(int threshold) throws IOException, FormatException {
+		int   nbTileComponents = 0;
+		int[] previousRowSeam  = new int[this.width * this.depth];
+		int[] currentRowSeam   = new int[this.width * this.depth];
+		for (int y0 = 0; y0 < this.height; y0 += this.tileSize) {
+			int[] leftSeam = new int[0];
+			for (int x0 = 0; x0 < this.width; x0 += this.tileSize) {
+				int x1         = Math.min(x0 + this.tileSize, this.width);
+				int y1         = Math.min(y0 + this.tileSize, this.height);
+				int coreWidth  = Math.min(x1 + 1, this.width) - x0;
+				int coreHeight = Math.min(y1 + 1, this.height) - y0;
+				int readX0     = Math.max(0, x0 - BLUR_MARGIN);
+				int readY0     = Math.max(0, y0 - BLUR_MARGIN);
+				
+				ImageStack tile   = readBlurredTile(readX0, readY0, x0 + coreWidth, y0 + coreHeight).getStack();
+				ImageStack binary = new ImageStack(coreWidth, coreHeight);
+				for (int k = 1; k <= this.depth; ++k) {
+					byte[] pixels       = (byte[]) tile.getPixels(k);
+					byte[] binaryPixels = new byte[coreWidth * coreHeight];
+					for (int j = 0; j < coreHeight; ++j) {
+						for (int i = 0; i < coreWidth; ++i) {
+							int value = pixels[(x0 - readX0 + i) + (y0 - readY0 + j) * tile.getWidth()] & 0xff;
+							if (value >= threshold) {
+								binaryPixels[i + j * coreWidth] = (byte) 255;
+							}
+						}
+					}
+					binary.addSlice(new ByteProcessor(coreWidth, coreHeight, binaryPixels));
+				}
+				ImageStack labelled =
+						ParallelComponentsLabeling.componentsLabeling(new ImagePlus("", binary), 26, 32).getStack();
+				
+				int   nbLabels  = 0;
+				int[] rightSeam = new int[coreHeight * this.depth];
+				for (int k = 0; k < this.depth; ++k) {
+					float[] labelPixels = (float[]) labelled.getPixels(k + 1);
+					for (int j = 0; j < coreHeight; ++j) {
+						for (int i = 0; i < coreWidth; ++i) {
+							int label     = (int) labelPixels[i + j * coreWidth];
+							int component = label > 0 ? nbTileComponents + label - 1 : -1;
+							int x         = x0 + i;
+							int y         = y0 + j;
+							if (label > nbLabels) {
+								ensureCapacity(nbTileComponents + label);
+								nbLabels = label;
+							}
+							if (component >= 0 && i == 0 && x0 > 0 && leftSeam[j + k * coreHeight] > 0) {
+								union(component, leftSeam[j + k * coreHeight] - 1);
+							}
+							if (component >= 0 && j == 0 && y0 > 0 && previousRowSeam[x + k * this.width] > 0) {
+								union(component, previousRowSeam[x + k * this.width] - 1);
+							}
+							if (i == coreWidth - 1) {
+								rightSeam[j + k * coreHeight] = component + 1;
+							}
+							if (j == coreHeight - 1) {
+								currentRowSeam[x + k * this.width] = component + 1;
+							}
+							if (component >= 0 && x < x1 && y < y1) {
+								addVoxel(component, x, y, k);
+							}
+						}
+					}
+				}
+				leftSeam = rightSeam;
+				nbTileComponents += nbLabels;
+			}
+			int[] seam = previousRowSeam;
+			previousRowSeam = currentRowSeam;
+			currentRowSeam = seam;
+		}
+		resolveComponents(nbTileComponents);
+	}
+	
+	
+	/**
+	 * Reads a window of the channel, converts it to 8 bits and blurs it as {@link AutoCrop#thresholdKernels()}. The
+	 * window is extended by the blur margin after its end.
+	 *
+	 * @param readX0 x coordinate of the window
+	 * @param readY0 y coordinate of the window
+	 * @param x1     end of the window in x (excluded, before the margin)
+	 * @param y1     end of the window in y (excluded, before the margin)
+	 *
+	 * @return blurred 8-bit window
+	 *
+	 * @throws IOException
+	 * @throws FormatException
+	 */
+	private ImagePlus readBlurredTile(int readX0, int readY0, int x1, int y1) throws IOException, FormatException {
+		int readX1 = Math.min(x1 + BLUR_MARGIN, this.width);
+		int readY1 = Math.min(y1 + BLUR_MARGIN, this.height);
+		ImageStack rawTile = this.reader.crop(new Box(readX0, readX1, readY0, readY1, 0, this.depth),
+		                                      this.channelNumber).getStack();
+		ImageStack tile = new ImageStack(rawTile.getWidth(), rawTile.getHeight());
+		for (int k = 1; k <= this.depth; ++k) {
+			Object rawPixels = rawTile.getPixels(k);
+			byte[] pixels    = new byte[rawTile.getWidth() * rawTile.getHeight()];
+			for (int n = 0; n < pixels.length; ++n) {
+				int value = rawPixels instanceof byte[] ?
+				            ((byte[]) rawPixels)[n] & 0xff :
+				            ((short[]) rawPixels)[n] & 0xffff;
+				pixels[n] = (byte) this.lut[value];
+			}
+			tile.addSlice(new ByteProcessor(rawTile.getWidth(), rawTile.getHeight(), pixels));
+		}
+		ImagePlus blurredTile = new ImagePlus("", tile);
+		GaussianBlur3D.blur(blurredTile, 0.5, 0.5, 1);
+		return blurredTile;
+	}
+	
+	
+	/**
+	 * Computes the conversion of the raw values to 8 bits: linear between the values saturating {@link #SATURATED}
+	 * percent of the voxels, as the contrast enhancement of Thresholding.contrastAnd8bits.
+	 *
+	 * @param rawHistogram histogram of the raw image
+	 */
+	private void computeConversion(long[] rawHistogram) {
+		long total = 0;
+		for (long count : rawHistogram) {
+			total += count;
+		}
+		long threshold = (long) (total * SATURATED / 200.0);
+		int  hMin      = 0;
+		long count     = rawHistogram[0];
+		while (count <= threshold && hMin < rawHistogram.length - 1) {
+			count += rawHistogram[++hMin];
+		}
+		int hMax = rawHistogram.length - 1;
+		count = rawHistogram[hMax];
+		while (count <= threshold && hMax > 0) {
+			count += rawHistogram[--hMax];
+		}
+		this.lut = new int[rawHistogram.length];
+		for (int v = 0; v < this.lut.length; ++v) {
+			if (hMax <= hMin || v <= hMin) {
+				this.lut[v] = 0;
+			} else if (v >= hMax) {
+				this.lut[v] = 255;
+			} else {
+				this.lut[v] = Math.min(255, (int) ((v - hMin) * 256.0 / (hMax - hMin + 1)));
+			}
+		}
+	}
+	
+	
+	/**
+	 * Grows the tables of the tile components.
+	 *
+	 * @param size number of tile components needed
+	 */
+	private void ensureCapacity(int size) {
+		int capacity = this.parent.length;
+		if (size <= capacity) {
+			return;
+		}
+		int newCapacity = Math.max(size, Math.max(1024, 2 * capacity));
+		this.parent = Arrays.copyOf(this.parent, newCapacity);
+		this.counts = Arrays.copyOf(this.counts, newCapacity);
+		this.bounds = Arrays.copyOf(this.bounds, 6 * newCapacity);
+		this.minIndices = Arrays.copyOf(this.minIndices, newCapacity);
+		this.border = Arrays.copyOf(this.border, newCapacity);
+		for (int c = capacity; c < newCapacity; ++c) {
+			this.parent[c] = c;
+			this.minIndices[c] = Long.MAX_VALUE;
+			Arrays.fill(this.bounds, 6 * c, 6 * c + 3, Integer.MAX_VALUE);
+			Arrays.fill(this.bounds, 6 * c + 3, 6 * c + 6, Integer.MIN_VALUE);
+		}
+	}
+	
+	
+	/**
+	 * Adds a voxel to a tile component.
+	 *
+	 * @param component tile component
+	 * @param x         x coordinate of the voxel
+	 * @param y         y coordinate of the voxel
+	 * @param z         z coordinate of the voxel
+	 */
+	private void addVoxel(int component, int x, int y, int z) {
+		int b = 6 * component;
+		this.counts[component]++;
+		this.bounds[b] = Math.min(this.bounds[b], x);
+		this.bounds[b + 1] = Math.min(this.bounds[b + 1], y);
+		this.bounds[b + 2] = Math.min(this.bounds[b + 2], z);
+		this.bounds[b + 3] = Math.max(this.bounds[b + 3], x);
+		this.bounds[b + 4] = Math.max(this.bounds[b + 4], y);
+		this.bounds[b + 5] = Math.max(this.bounds[b + 5], z);
+		this.minIndices[component] = Math.min(this.minIndices[component],
+		                                      ((long) z * this.height + y) * this.width + x);
+		if (x == 0 || y == 0 || x == this.width - 1 || y == this.height - 1 ||
+		    this.depth > 1 && (z == 0 || z == this.depth - 1)) {
+			this.border[component] = true;
+		}
+	}
+	
+	
+	/**
+	 * Finds the root of a tile component (path halving).
+	 *
+	 * @param component tile component
+	 *
+	 * @return root
+	 */
+	private int find(int component) {
+		int c = component;
+		while (this.parent[c] != c) {
+			this.parent[c] = this.parent[this.parent[c]];
+			c = this.parent[c];
+		}
+		return c;
+	}
+	
+	
+	/**
+	 * Merges two tile components.
+	 *
+	 * @param component1 first tile component
+	 * @param component2 second tile component
+	 */
+	private void union(int component1, int component2) {
+		int root1 = find(component1);
+		int root2 = find(component2);
+		if (root1 != root2) {
+			this.parent[Math.max(root1, root2)] = Math.min(root1, root2);
+		}
+	}
+	
+	
+	/**
+	 * Gathers the tile components in the components of the image and labels them in the order of their first voxel.
+	 *
+	 * @param nbTileComponents number of tile components
+	 */
+	private void resolveComponents(int nbTileComponents) {
+		int nbComponents = 0;
+		for (int c = 0; c < nbTileComponents; ++c) {
+			int root = find(c);
+			if (root != c) {
+				int b = 6 * c;
+				int r = 6 * root;
+				this.counts[root] += this.counts[c];
+				for (int n = 0; n < 3; ++n) {
+					this.bounds[r + n] = Math.min(this.bounds[r + n], this.bounds[b + n]);
+					this.bounds[r + 3 + n] = Math.max(this.bounds[r + 3 + n], this.bounds[b + 3 + n]);
+				}
+				this.minIndices[root] = Math.min(this.minIndices[root], this.minIndices[c]);
+				this.border[root] |= this.border[c];
+			}
+		}
+		Integer[] roots = new Integer[nbTileComponents];
+		for (int c = 0; c < nbTileComponents; ++c) {
+			if (this.parent[c] == c && this.counts[c] > 0) {
+				roots[nbComponents++] = c;
+			}
+		}
+		Arrays.sort(roots, 0, nbComponents, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer root1, Integer root2) {
+				return Long.compare(minIndices[root1], minIndices[root2]);
+			}
+		});
+		this.labels = new double[nbComponents];
+		this.voxelCounts = new long[nbComponents];
+		this.boxes = new Box[nbComponents];
+		this.borderComponents = new boolean[nbComponents];
+		for (int n = 0; n < nbComponents; ++n) {
+			int root = roots[n];
+			int b    = 6 * root;
+			this.labels[n] = n + 1;
+			this.voxelCounts[n] = this.counts[root];
+			this.boxes[n] = new Box(this.bounds[b], this.bounds[b + 3],
+			                        this.bounds[b + 1], this.bounds[b + 4],
+			                        this.bounds[b + 2], this.bounds[b + 5]);
+			this.borderComponents[n] = this.border[root];
+		}
+	}
+	
+	
+	/** @return labels of the components, in the order of their first voxel */
+	public double[] getLabels() {
+		return this.labels;
+	}
+	
+	
+	/** @return number of voxels of each component, in the order of {@link #getLabels()} */
+	public long[] getVoxelCounts() {
+		return this.voxelCounts;
+	}
+	
+	
+	/** @return bounding box of each component (max included), in the order of {@link #getLabels()} */
+	public Box[] getBoxes() {
+		return this.boxes;
+	}
+	
+	
+	/** @return components touching the border of the image, in the order of {@link #getLabels()} */
+	public boolean[] getBorderComponents() {
+		return this.borderComponents;
+	}
+	
+}
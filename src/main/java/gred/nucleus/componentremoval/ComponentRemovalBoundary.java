@@ -19,13 +19,20 @@ import gred.nucleus.utils.Voxel;
  *
  * @author Remy Malgouyres, Tristan Dubos and Axel Poulet
  */
-public class ComponentRemovalBoundary implements ComponentRemovalPredicate {
+public class ComponentRemovalBoundary implements ComponentStatisticsPredicate {
 	
 	/**
 	 *
 	 */
 	@Override
 	public boolean keepVoxelComponent(Voxel voxel, ComponentInfo componentInfo) {
+		return keepComponent(componentInfo);
+	}
+	
+	
+	/** @return true if the component does not touch the border of the image */
+	@Override
+	public boolean keepComponent(ComponentInfo componentInfo) {
 		return !componentInfo.isOnTheBorder();
 	}
 	
@@ -19,10 +19,17 @@ import gred.nucleus.utils.Voxel;
  *
  * @author Remy Malgouyres, Tristan Dubos and Axel Poulet
  */
-public class ComponentRemovalNone implements ComponentRemovalPredicate {
+public class ComponentRemovalNone implements ComponentStatisticsPredicate {
 	/** @return true */
 	@Override
 	public boolean keepVoxelComponent(Voxel voxel, ComponentInfo componentInfo) {
+		return keepComponent(componentInfo);
+	}
+	
+	
+	/** @return true */
+	@Override
+	public boolean keepComponent(ComponentInfo componentInfo) {
 		return true;
 	}
 	
@@ -19,7 +19,7 @@ import gred.nucleus.utils.Voxel;
  *
  * @author Remy Malgouyres, Tristan Dubos and Axel Poulet
  */
-public class ComponentRemovalThresholdVolume implements ComponentRemovalPredicate {
+public class ComponentRemovalThresholdVolume implements ComponentStatisticsPredicate {
 	
 	private final int thresholdCardinality;
 	
@@ -37,7 +37,14 @@ public class ComponentRemovalThresholdVolume implements ComponentRemovalPredicat
 	/** @see  */
 	@Override
 	public boolean keepVoxelComponent(Voxel voxel, ComponentInfo componentInfo) {
-		return (componentInfo.getNumberOfPoints() >= this.thresholdCardinality);
+		return keepComponent(componentInfo);
+	}
+	
+	
+	/** @return true if the cardinality of the component reaches the threshold */
+	@Override
+	public boolean keepComponent(ComponentInfo componentInfo) {
+		return componentInfo.getNumberOfPoints() >= this.thresholdCardinality;
 	}
 	
 }
@@ -0,0 +1,23 @@
+package gred.nucleus.componentremoval;
+
+import gred.nucleus.connectedcomponent.ComponentInfo;
+
+
+/**
+ * Predicate which only depends on the statistics of the component (cardinality, contact with the border):
+ * it is tested once per component with keepComponent, instead of once per voxel.
+ *
+ * @author Tristan Dubos and Axel Poulet
+ */
+public interface ComponentStatisticsPredicate extends ComponentRemovalPredicate {
+	
+	/**
+	 * Tests the predicate once for a whole component.
+	 *
+	 * @param componentInfo The information concerning the connected component
+	 *
+	 * @return the predicate's value, which is the same for all the voxels of the component
+	 */
+	boolean keepComponent(ComponentInfo componentInfo);
+	
+}
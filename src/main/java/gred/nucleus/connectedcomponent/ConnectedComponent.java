@@ -11,10 +11,12 @@ package gred.nucleus.connectedcomponent;
 
 import gred.nucleus.componentremoval.ComponentRemovalNone;
 import gred.nucleus.componentremoval.ComponentRemovalPredicate;
+import gred.nucleus.componentremoval.ComponentStatisticsPredicate;
 import gred.nucleus.utils.Voxel;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
+import ij.process.ImageProcessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,8 +51,17 @@ public abstract class ConnectedComponent {
 	/** Components Information (cardinality, label, voxel representative, etc.) */
 	protected List<ComponentInfo> compInfo;
 	
-	/** Array containing the label of each voxel */
-	protected int[][][] labels;
+	/** Label of each voxel, indexed by x + y * width + z * width * height */
+	protected int[] labels;
+	
+	/** Width of the input image */
+	protected int width;
+	
+	/** Height of the input image */
+	protected int height;
+	
+	/** Number of slices of the input image */
+	protected int depth;
 	
 	/** Volume of a voxel (used for component size thresholding) */
 	protected double voxelVolume;
@@ -69,15 +80,10 @@ public abstract class ConnectedComponent {
 		
 		//LOGGER.debug("vol vx{}", voxelVolume);
 		this.foregroundColor = foregroundColor;
-		this.labels =
-				new int[this.inputImage.getWidth()][this.inputImage.getHeight()][this.inputImage.getNSlices()];
-		for (int i = 0; i < this.inputImage.getWidth(); i++) {
-			for (int j = 0; j < this.inputImage.getHeight(); j++) {
-				for (int k = 0; k < this.inputImage.getNSlices(); k++) {
-					this.labels[i][j][k] = 0;
-				}
-			}
-		}
+		this.width = this.inputImage.getWidth();
+		this.height = this.inputImage.getHeight();
+		this.depth = this.inputImage.getNSlices();
+		this.labels = new int[this.width * this.height * this.depth];
 		this.compInfo = new ArrayList<>();
 	}
 	
@@ -119,7 +125,7 @@ public abstract class ConnectedComponent {
 	 *
 	 * @return an instance of a concrete derived class for ConnectedComponent
 	 *
-	 * @throws Exception in case the number of connected components exceeds the Short.MAX_VALUE (32767)
+	 * @throws Exception in case the number of connected components exceeds the Integer.MAX_VALUE
 	 */
 	public static ConnectedComponent getLabelledConnectedComponent(ImagePlus inputImage,
 	                                                               int foregroundColor,
@@ -160,7 +166,7 @@ public abstract class ConnectedComponent {
 	 *
 	 * @return an instance of a concrete derived class for ConnectedComponent
 	 *
-	 * @throws Exception in case the number of connected components exceeds the Short.MAX_VALUE (32767)
+	 * @throws Exception in case the number of connected components exceeds the Integer.MAX_VALUE
 	 */
 	public static ConnectedComponent getLabelledConnectedComponent(ImagePlus inputImage,
 	                                                               int foregroundColor,
@@ -194,7 +200,7 @@ public abstract class ConnectedComponent {
 	 * @return the label of the input voxel (0 if not in any connected component)
 	 */
 	public int getLabel(int x, int y) {
-		return this.labels[x][y][0];
+		return this.labels[x + y * this.width];
 	}
 	
 	
@@ -208,7 +214,7 @@ public abstract class ConnectedComponent {
 	 * @return the label of the input voxel (0 if not in any connected component)
 	 */
 	public int getLabel(int x, int y, int z) {
-		return this.labels[x][y][z];
+		return this.labels[x + (y + z * this.height) * this.width];
 	}
 	
 	
@@ -221,7 +227,7 @@ public abstract class ConnectedComponent {
 	 * @param label the label of the input voxel (0 if not in any connected component)
 	 */
 	protected void setLabel(int x, int y, int z, int label) {
-		this.labels[x][y][z] = label;
+		this.labels[x + (y + z * this.height) * this.width] = label;
 	}
 	
 	
@@ -234,7 +240,7 @@ public abstract class ConnectedComponent {
 	 * @return the ComponentInfo instance of the component with the considered label. returns null if the component info
 	 * is undefined
 	 */
-	public ComponentInfo getComponentInfo(short label) {
+	public ComponentInfo getComponentInfo(int label) {
 		try {
 			ComponentInfo ci = this.compInfo.get(label - 1);
 			if (ci.getNumberOfPoints() == 0) {
@@ -266,7 +272,7 @@ public abstract class ConnectedComponent {
 	/**
 	 * labels the connected components of the input image (attribute this.ip)
 	 *
-	 * @throws Exception in case the number of connected components exceeds the Short.MAX_VALUE (32767)
+	 * @throws Exception in case the number of connected components exceeds the Integer.MAX_VALUE
 	 */
 	abstract void doLabelConnectedComponent() throws Exception;
 	
@@ -304,6 +310,8 @@ public abstract class ConnectedComponent {
 	 *    <li>Possibly remove the components with size bellow some threshold</li>
 	 *    <li>Possibly keep (or remove) the components with a voxel satisfying a predicate</li>
 	 * </ul>
+	 * Component predicates are tested once per component, other predicates on the voxels of each component until one
+	 * satisfies it. The voxels are then relabelled in a single pass.
 	 *
 	 * @param removeBorderComponent    true if the components which are on the edge of the image should be removed by
 	 *                                 filtering
@@ -323,96 +331,73 @@ public abstract class ConnectedComponent {
 	                                boolean setRandomColors) {
 		LOGGER.debug("Là, on des compO : {}", this.voxelVolume);
 		
-		List<Boolean> existsVoxelSatisfyingPredicate = new ArrayList<>();
-		for (int i = 0; i < this.compInfo.size(); ++i) {
-			existsVoxelSatisfyingPredicate.add(Boolean.FALSE);
-		}
-		
-		// Check the predicate
-		Voxel voxelToTest = new Voxel();
-		for (voxelToTest.setX((short) 0);
-		     voxelToTest.getX() < this.inputImage.getWidth();
-		     voxelToTest.incrementCoordinate(0)) {
-			for (voxelToTest.setY((short) 0);
-			     voxelToTest.getY() < this.inputImage.getHeight();
-			     voxelToTest.incrementCoordinate(1)) {
-				for (voxelToTest.setZ((short) 0);
-				     voxelToTest.getZ() < this.inputImage.getNSlices();
-				     voxelToTest.incrementCoordinate(2)) {
-					// get the voxel's label
-					int label = getLabel(voxelToTest.getX(), voxelToTest.getY(), voxelToTest.getZ());
-					if (label > 0) { // if not a background voxel
-						ComponentInfo ci = this.compInfo.get(label - 1);
-						// test the predicate
-						if (removalPredicate.keepVoxelComponent(voxelToTest, ci)) {
-							existsVoxelSatisfyingPredicate.set(label - 1, Boolean.TRUE);
+		int       nbComponents                   = this.compInfo.size();
+		boolean[] existsVoxelSatisfyingPredicate = new boolean[nbComponents + 1];
+		if (removalPredicate instanceof ComponentStatisticsPredicate) {
+			// The predicate is the same for all the voxels of a component: test it once per component
+			ComponentStatisticsPredicate statisticsPredicate = (ComponentStatisticsPredicate) removalPredicate;
+			for (int label = 1; label <= nbComponents; ++label) {
+				existsVoxelSatisfyingPredicate[label] = statisticsPredicate.keepComponent(this.compInfo.get(label - 1));
+			}
+		} else {
+			// Check the predicate on the voxels of the components for which no voxel satisfies it yet
+			Voxel voxelToTest = new Voxel();
+			for (int k = 0, index = 0; k < this.depth; ++k) {
+				for (int j = 0; j < this.height; ++j) {
+					for (int i = 0; i < this.width; ++i, ++index) {
+						int label = this.labels[index];
+						if (label > 0 && !existsVoxelSatisfyingPredicate[label]) {
+							voxelToTest.setCoordinates((short) i, (short) j, (short) k);
+							existsVoxelSatisfyingPredicate[label] =
+									removalPredicate.keepVoxelComponent(voxelToTest, this.compInfo.get(label - 1));
 						}
 					}
 				}
 			}
 		}
 		
-		// if the keep predicate is true for at least one voxel
-		// and we should remove
-		// the components with a voxel satisfying removalPredicate 
+		// Compute the new label of each component (0 if removed): a component is removed
+		// if the keep predicate is true for at least one voxel and we should remove
+		// the components with a voxel satisfying removalPredicate
 		// or
-		// if the keep predicate is false for all the voxels
-		// and we should keep only
-		// the components with a voxel satisfying removalPredicate 
-		for (int i = 0; i < this.compInfo.size(); ++i) {
-			if (((!existsVoxelSatisfyingPredicate.get(i)) && keepPredicate) ||
-			    (existsVoxelSatisfyingPredicate.get(i) && !keepPredicate))
-			// remove the component
-			{
-				this.compInfo.get(i).setNumberOfPoints(0);
-			}
-		}
-		
+		// if the keep predicate is false for all the voxels and we should keep only
+		// the components with a voxel satisfying removalPredicate
 		int                 thresholdNVoxel  = (int) (thresholdComponentVolume / this.voxelVolume);
-		List<Integer>       newLabels        = new ArrayList<>(this.compInfo.size());
+		int[]               newLabels        = new int[nbComponents + 1];
 		List<ComponentInfo> newTabComponents = new ArrayList<>();
-		short               componentsCount  = 0;
-		// For each label
-		for (int label = 1; label <= this.compInfo.size(); label++) {
+		for (int label = 1; label <= nbComponents; label++) {
 			ComponentInfo ci = this.compInfo.get(label - 1);
 			// If the component survives the filtering criteria
-			if (ci != null &&
+			if (existsVoxelSatisfyingPredicate[label] == keepPredicate &&
 			    ci.getNumberOfPoints() > 0 &&
 			    ci.getNumberOfPoints() >= thresholdNVoxel &&
-			    ((!removeBorderComponent) || !ci.isOnTheBorder())) {
-				componentsCount++;
-				// old label/new label correspondence
-				newLabels.add((int) componentsCount);
-				// register the component in the final array
+			    (!removeBorderComponent || !ci.isOnTheBorder())) {
+				// register the component in the final array with its new label
 				newTabComponents.add(ci);
-			} else if (ci != null) {
+				newLabels[label] = newTabComponents.size();
+				ci.setLabel(newLabels[label]);
+			} else {
 				ci.setNumberOfPoints(0);
-				newLabels.add(0);
 			}
 		}
-		List<Double> componentsColors = new ArrayList<>(newTabComponents.size());
-		for (int i = 0; i < newTabComponents.size(); i++) {
-			componentsColors.add(100 + Math.random() * (255 - 100));
+		float[] componentsColors = new float[newTabComponents.size() + 1];
+		for (int i = 1; i < componentsColors.length; i++) {
+			componentsColors[i] = (int) (100 + Math.random() * (255 - 100));
 		}
-		ImageStack imgP = inputImage.getStack();
-		for (int i = 0; i < this.inputImage.getWidth(); ++i) {
-			for (int j = 0; j < this.inputImage.getHeight(); ++j) {
-				for (int k = 0; k < this.inputImage.getNSlices(); ++k) {
-					int label = getLabel(i, j, k);
-					// if not a background voxel and component not removed
-					if (label > 0 && newLabels.get(label - 1) > 0) {
-						int           newLabel = newLabels.get(label - 1); // get new label from old label
-						ComponentInfo ci       = newTabComponents.get(newLabel - 1);
-						ci.setLabel(newLabel); // Set new label for the component
-						setLabel(i, j, k, newLabel); // Set new label for the voxel
-						// Possibly change the color on the whole component
-						if (setRandomColors) {
-							imgP.setVoxel(i, j, k, componentsColors.get(newLabel - 1).intValue());
-						}
-					} else {
-						setLabel(i, j, k, 0); // Set label to 0 (remove the voxel)
-						imgP.setVoxel(i, j, k, 0);
-					}
+		
+		// Relabel the voxels in a single pass, removing the voxels of the filtered out components from the image
+		ImageStack imgP      = this.inputImage.getStack();
+		int        sliceSize = this.width * this.height;
+		for (int k = 0; k < this.depth; ++k) {
+			ImageProcessor slice = imgP.getProcessor(k + 1);
+			for (int n = 0, index = k * sliceSize; n < sliceSize; ++n, ++index) {
+				int newLabel = newLabels[this.labels[index]];
+				this.labels[index] = newLabel;
+				if (newLabel == 0) {
+					slice.setf(n, 0);
+				} else if (setRandomColors) {
+					// Possibly change the color on the whole component
+					slice.setf(n, componentsColors[newLabel]);
 				}
 			}
 		}
@@ -10,14 +10,10 @@
 package gred.nucleus.connectedcomponent;
 
 
+import gred.nucleus.utils.IntQueue;
 import gred.nucleus.utils.Voxel;
 import ij.ImagePlus;
 import ij.process.ImageProcessor;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.lang.invoke.MethodHandles;
-import java.util.LinkedList;
 
 
 /**
@@ -27,9 +23,6 @@ import java.util.LinkedList;
  * <p> TODO : This class has not been tested and should probably be worked out before use.
  */
 public class ConnectedComponent2D extends ConnectedComponent {
-	/** Logger */
-	private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
-	
 	
 	/**
 	 * Constructor from an ImageWrapper representing a binary image and the foreground color in this image
@@ -46,72 +39,44 @@ public class ConnectedComponent2D extends ConnectedComponent {
 	 * Performs a breadth first search of the connected component for labeling The method goes over all the voxels in
 	 * the connected component of the object of the initial voxel. The method sets the fields of the ComponentInfo
 	 * parameter to record the status of the component.
+	 * <p>The pixels are queued as linear indices (x + y * width) in a primitive queue.
 	 *
-	 * @param voxelShort   initial voxel of the connected component
-	 * @param currentLabel label to set for the voxels of the component
+	 * @param seed          linear index of the initial pixel of the connected component
+	 * @param currentLabel  label to set for the voxels of the component
+	 * @param componentInfo information of the component
+	 * @param imgProc       input image
+	 * @param fifo          FIFO for the Breadth First Search algorithm (empty)
 	 */
-	protected void breadthFirstSearch(Voxel voxelShort, short currentLabel, ComponentInfo componentInfo) {
-		
-		// FIFO for the Breadth First Search algorithm
-		// LinkedList is more efficient than ArrayList
-		// because poll() (alias Remove(0)) is constant time !!!
-		LinkedList<Voxel> voxelFifo = new LinkedList<>();
-		
-		// add initial voxel to the FIFO
-		voxelFifo.add(voxelShort);
-		while (!voxelFifo.isEmpty()) {
+	protected void breadthFirstSearch(int seed,
+	                                  int currentLabel,
+	                                  ComponentInfo componentInfo,
+	                                  ImageProcessor imgProc,
+	                                  IntQueue fifo) {
+		fifo.add(seed);
+		while (!fifo.isEmpty()) {
 			// Retrieve and remove the head of the FIFO
-			Voxel polledVoxelShort = voxelFifo.poll();
-			short iV               = polledVoxelShort.getX();
-			short jV               = polledVoxelShort.getY();
-			
-			//			freeVoxel();
-			
+			int index = fifo.poll();
+			int jV    = index / this.width;
+			int iV    = index - jV * this.width;
 			// Determine the neighborhood taking into account the image's boundaries
-			short iMin;
-			short iMax;
-			short jMin;
-			short jMax;
-			if (iV - 1 >= 0) {
-				iMin = (short) (iV - 1);
-			} else {
-				iMin = 0;
+			int iMin = Math.max(iV - 1, 0);
+			int jMin = Math.max(jV - 1, 0);
+			int iMax = Math.min(iV + 1, this.width - 1);
+			int jMax = Math.min(jV + 1, this.height - 1);
+			if (iV == 0 || jV == 0 || iV == this.width - 1 || jV == this.height - 1) {
 				componentInfo.setOnTheeBorder();
 			}
-			
-			if (jV - 1 >= 0) {
-				jMin = (short) (jV - 1);
-			} else {
-				jMin = 0;
-				componentInfo.setOnTheeBorder();
-			}
-			
-			if (iV + 1 < this.inputImage.getWidth()) {
-				iMax = (short) (iV + 1);
-			} else {
-				iMax = (short) (this.inputImage.getWidth() - 1);
-				componentInfo.setOnTheeBorder();
-			}
-			
-			if (jV + 1 < this.inputImage.getHeight()) {
-				jMax = (short) (jV + 1);
-			} else {
-				jMax = (short) (this.inputImage.getHeight() - 1);
-				componentInfo.setOnTheeBorder();
-			}
-			
-			ImageProcessor imgProc = inputImage.getProcessor();
 			// For each neighbor :
-			for (short ii = iMin; ii <= iMax; ii++) {
-				for (short jj = jMin; jj <= jMax; jj++) {
-					// If the neighbor (different from VoxelRecordShort) is a 1 and not labeled
-					if ((getLabel(ii, jj, 0) == 0) && (imgProc.get(ii, jj) == this.foregroundColor)) {
+			for (int jj = jMin; jj <= jMax; jj++) {
+				for (int n = iMin + jj * this.width; n <= iMax + jj * this.width; n++) {
+					// If the neighbor (different from the polled pixel) is a 1 and not labeled
+					if (this.labels[n] == 0 && imgProc.get(n) == this.foregroundColor) {
 						// Set the voxel's label
-						setLabel(ii, jj, 0, currentLabel);
+						this.labels[n] = currentLabel;
 						// Increment component's cardinality
 						componentInfo.incrementNumberOfPoints();
 						// Add to FIFO
-						voxelFifo.add(new Voxel(ii, jj, (short) 0));
+						fifo.add(n);
 					}
 				}
 			}
@@ -122,20 +87,19 @@ public class ConnectedComponent2D extends ConnectedComponent {
 	/** labels the connected components of the input image (attribute ip) */
 	@Override
 	public void doLabelConnectedComponent() {
-		short          currentLabel = 0;
-		ImageProcessor imgProc      = inputImage.getProcessor();
-		for (short i = 0; i < this.inputImage.getWidth(); i++) {
-			for (short j = 0; j < this.inputImage.getHeight(); j++) {
-				if (imgProc.getPixel(i, j) == this.foregroundColor && getLabel(i, j, 0) == 0) {
+		int            currentLabel = 0;
+		ImageProcessor imgProc      = this.inputImage.getProcessor();
+		IntQueue       fifo         = new IntQueue();
+		for (int i = 0; i < this.width; i++) {
+			for (int j = 0; j < this.height; j++) {
+				int index = i + j * this.width;
+				if (imgProc.getPixel(i, j) == this.foregroundColor && this.labels[index] == 0) {
 					currentLabel++;
-					this.labels[i][j][0] = currentLabel;
-					ComponentInfo componentInfo = new ComponentInfo(currentLabel, 1, new Voxel(i, j, (short) 0), false);
-					try {
-						breadthFirstSearch(new Voxel(i, j, (short) 0), currentLabel, componentInfo);
-					} catch (Exception e) {
-						LOGGER.error("An error occurred.", e);
-						System.exit(0);
-					}
+					this.labels[index] = currentLabel;
+					ComponentInfo componentInfo =
+							new ComponentInfo(currentLabel, 0, new Voxel((short) i, (short) j, (short) 0), false);
+					componentInfo.incrementNumberOfPoints();
+					breadthFirstSearch(index, currentLabel, componentInfo, imgProc, fifo);
 					this.compInfo.add(componentInfo);
 				}
 			}
@@ -9,14 +9,11 @@
 
 package gred.nucleus.connectedcomponent;
 
+import gred.nucleus.utils.IntQueue;
 import gred.nucleus.utils.Voxel;
 import ij.ImagePlus;
 import ij.ImageStack;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.lang.invoke.MethodHandles;
-import java.util.LinkedList;
+import ij.process.ImageProcessor;
 
 
 /**
@@ -25,9 +22,6 @@ import java.util.LinkedList;
  * @author Remy Malgouyres, Tristan Dubos and Axel Poulet
  */
 public class ConnectedComponent3D extends ConnectedComponent {
-	/** Logger */
-	private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
-	
 	
 	/**
 	 * Constructor from an ImageWrapper representing a binary image and the foreground color in this image
@@ -44,87 +38,56 @@ public class ConnectedComponent3D extends ConnectedComponent {
 	 * Performs a breadth first search of the connected component for labeling The method goes over all the voxels in
 	 * the connected component of the object of the initial voxel. The method sets the fields of the ComponentInfo
 	 * parameter to record the status of the component.
+	 * <p>The voxels are queued as linear indices (x + y * width + z * width * height) in a primitive queue.
 	 *
-	 * @param voxelShort   initial voxel of the connected component
-	 * @param currentLabel label to set for the voxels of the component
+	 * @param seed          linear index of the initial voxel of the connected component
+	 * @param currentLabel  label to set for the voxels of the component
+	 * @param componentInfo information of the component
+	 * @param slices        slices of the input image
+	 * @param fifo          FIFO for the Breadth First Search algorithm (empty)
 	 */
-	protected void breadthFirstSearch(Voxel voxelShort, short currentLabel, ComponentInfo componentInfo) {
-		// FIFO for the Breadth First Search algorithm
-		// LinkedList is more efficient than ArrayList 
-		// because poll() (alias Remove(0)) is constant time !!!
-		LinkedList<Voxel> voxelFifo = new LinkedList<>();
-		
-		// add initial voxel to the FIFO
-		voxelFifo.add(voxelShort);
-		
-		while (!voxelFifo.isEmpty()) {
+	protected void breadthFirstSearch(int seed,
+	                                  int currentLabel,
+	                                  ComponentInfo componentInfo,
+	                                  ImageProcessor[] slices,
+	                                  IntQueue fifo) {
+		int sliceSize = this.width * this.height;
+		fifo.add(seed);
+		while (!fifo.isEmpty()) {
 			// Retrieve and remove the head of the FIFO
-			Voxel polledVoxelShort = voxelFifo.poll();
-			short iV               = polledVoxelShort.getX();
-			short jV               = polledVoxelShort.getY();
-			short kV               = polledVoxelShort.getZ();
+			int index = fifo.poll();
+			int kV    = index / sliceSize;
+			int jV    = (index - kV * sliceSize) / this.width;
+			int iV    = index - kV * sliceSize - jV * this.width;
 			// Determine the neighborhood taking into account the image's boundaries
-			short iMin;
-			short iMax;
-			short jMin;
-			short jMax;
-			short kMin;
-			short kMax;
-			if (iV - 1 >= 0) {
-				iMin = (short) (iV - 1);
-			} else {
-				iMin = 0;
-				componentInfo.setOnTheeBorder();
-			}
-			if (jV - 1 >= 0) {
-				jMin = (short) (jV - 1);
-			} else {
-				jMin = 0;
-				componentInfo.setOnTheeBorder();
-			}
-			if (kV - 1 >= 0) {
-				kMin = (short) (kV - 1);
-			} else {
-				kMin = 0;
-				componentInfo.setOnTheeBorder();
-			}
-			
-			if (iV + 1 < this.inputImage.getWidth()) {
-				iMax = (short) (iV + 1);
-			} else {
-				iMax = (short) (this.inputImage.getWidth() - 1);
+			int iMin = Math.max(iV - 1, 0);
+			int jMin = Math.max(jV - 1, 0);
+			int kMin = Math.max(kV - 1, 0);
+			int iMax = Math.min(iV + 1, this.width - 1);
+			int jMax = Math.min(jV + 1, this.height - 1);
+			int kMax = Math.min(kV + 1, this.depth - 1);
+			if (iV == 0 || jV == 0 || kV == 0 ||
+			    iV == this.width - 1 || jV == this.height - 1 || kV == this.depth - 1) {
 				componentInfo.setOnTheeBorder();
 			}
-			if (jV + 1 < this.inputImage.getHeight()) {
-				jMax = (short) (jV + 1);
-			} else {
-				jMax = (short) (this.inputImage.getHeight() - 1);
-				componentInfo.setOnTheeBorder();
-			}
-			if (kV + 1 < this.inputImage.getNSlices()) {
-				kMax = (short) (kV + 1);
-			} else {
-				kMax = (short) (this.inputImage.getNSlices() - 1);
-				componentInfo.setOnTheeBorder();
-			}
-			ImageStack imageStack = inputImage.getStack();
 			// For each neighbor :
-			for (short kk = kMin; kk <= kMax; kk++) {
-				//this.inputImage.setCurrentSlice(kk);
-				for (short ii = iMin; ii <= iMax; ii++) {
-					for (short jj = jMin; jj <= jMax; jj++) {
-						// If the neighbor (different from VoxelRecordShort) is a 1 and not labeled
-						if ((getLabel(ii, jj, kk) == 0) &&
-						    (imageStack.getVoxel(ii, jj, kk) == this.foregroundColor)) {
+			for (int kk = kMin; kk <= kMax; kk++) {
+				ImageProcessor slice = slices[kk];
+				for (int jj = jMin; jj <= jMax; jj++) {
+					int pixelIndex = iMin + jj * this.width;
+					int labelIndex = pixelIndex + kk * sliceSize;
+					for (int ii = iMin; ii <= iMax; ii++, pixelIndex++, labelIndex++) {
+						// If the neighbor (different from the polled voxel) is a 1 and not labeled
+						if (this.labels[labelIndex] == 0 && slice.getf(pixelIndex) == this.foregroundColor) {
 							// Set the voxel's label
-							setLabel(ii, jj, kk, currentLabel);
-							componentInfo.incrementNumberOfPoints(); // increment component's cardinality					
-							voxelFifo.add(new Voxel(ii, jj, kk)); // add to FIFO
+							this.labels[labelIndex] = currentLabel;
+							componentInfo.incrementNumberOfPoints(); // increment component's cardinality
+							fifo.add(labelIndex); // add to FIFO
 							// check for minimal depth representative and update if necessary
 							if (kk < componentInfo.getRepresentant().getZ()) {
-								componentInfo.getRepresentant().setX(ii);
-								componentInfo.getRepresentant().setY(jj);
-								componentInfo.getRepresentant().setZ(kk);
+								componentInfo.getRepresentant().setX((short) ii);
+								componentInfo.getRepresentant().setY((short) jj);
+								componentInfo.getRepresentant().setZ((short) kk);
 							}
 						}
 					}
@@ -137,40 +100,37 @@ public class ConnectedComponent3D extends ConnectedComponent {
 	/**
 	 * labels the connected components of the input image (attribute ip)
 	 *
-	 * @throws Exception
+	 * @throws Exception in case the number of connected components exceeds the Integer.MAX_VALUE
 	 */
 	@Override
 	public void doLabelConnectedComponent() throws Exception {
-		int        currentLabel = 0;
-		ImageStack imageStack   = inputImage.getStack();
-		for (short k = 0; k < this.inputImage.getNSlices(); k++) {
-			for (short i = 0; i < this.inputImage.getWidth(); i++) {
-				for (short j = 0; j < this.inputImage.getHeight(); j++) {
-					if (imageStack.getVoxel(i, j, k) == this.foregroundColor && getLabel(i, j, k) == 0) {
-						currentLabel++;
+		int              currentLabel = 0;
+		ImageStack       imageStack   = this.inputImage.getStack();
+		ImageProcessor[] slices       = new ImageProcessor[this.depth];
+		for (int k = 0; k < this.depth; k++) {
+			slices[k] = imageStack.getProcessor(k + 1);
+		}
+		IntQueue fifo = new IntQueue();
+		for (int k = 0; k < this.depth; k++) {
+			for (int i = 0; i < this.width; i++) {
+				for (int j = 0; j < this.height; j++) {
+					int index = i + (j + k * this.height) * this.width;
+					if (this.labels[index] == 0 && slices[k].getf(i + j * this.width) == this.foregroundColor) {
 						if (currentLabel == Integer.MAX_VALUE) {
 							throw new Exception("Too many connected components.");
 						}
-						this.labels[i][j][k] = currentLabel;
-						//System.out.println("doLabelConnectedComponent "+currentLabel);
-						ComponentInfo componentInfo = new ComponentInfo(
-								currentLabel,
-								1,
-								new Voxel(i, j, k),
-								false);
-						
-						try {
-							breadthFirstSearch(new Voxel(i, j, k), (short) currentLabel, componentInfo);
-						} catch (Exception e) {
-							LOGGER.error("An error occurred.", e);
-							System.exit(0);
-						}
+						currentLabel++;
+						this.labels[index] = currentLabel;
+						ComponentInfo componentInfo = new ComponentInfo(currentLabel,
+						                                                0,
+						                                                new Voxel((short) i, (short) j, (short) k),
+						                                                false);
+						componentInfo.incrementNumberOfPoints();
+						breadthFirstSearch(index, currentLabel, componentInfo, slices, fifo);
 						this.compInfo.add(componentInfo);
-						//System.gc();
 					}
 				}
 			}
-			System.gc();
 		}
 	}
 	
@@ -0,0 +1,514 @@
+package gred.nucleus.connectedcomponent;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+
+/**
+ * Connected components labelling of a binary image (voxels different from 0), computed by z-slabs in parallel.
+ * <p>
+ * Each slab is labelled with provisional labels and a local union-find. The equivalences between the labels of two
+ * neighbouring slabs are then merged with a lock-free union-find, and the voxels are relabelled in a last parallel
+ * pass, in the same fork/join pool. Images with a single slab (2D images, thin stacks) are labelled in the calling
+ * thread, without pool. The roots of the union-find are the smallest provisional labels, given in raster order, so the
+ * components are numbered in the order of their first voxel (z, y, x): the output is the same as
+ * {@link inra.ijpb.binary.BinaryImages#componentsLabeling(ImagePlus, int, int)}.
+ *
+ * @author Tristan Dubos and Axel Poulet
+ */
+public class ParallelComponentsLabeling {
+	/** Minimal number of slices of a slab */
+	private static final int MIN_SLAB_DEPTH = 4;
+	
+	/** Slices of the binary image */
+	private final ImageProcessor[] slices;
+	/** Width of the image */
+	private final int              width;
+	/** Height of the image */
+	private final int              height;
+	/** Number of slices of the image */
+	private final int              depth;
+	/** Offsets (dx, dy, dz) of the neighbours visited before a voxel in raster order */
+	private final int[][]          neighbours;
+	/** First slice of each slab, followed by the number of slices */
+	private final int[]            slabStarts;
+	/** Provisional label of each voxel in its slab, then final label, indexed by x + y * width + z * width * height */
+	private final int[]            labels;
+	/** Number of provisional labels of each slab */
+	private final int[]            slabCounts;
+	/** Roots of the provisional labels of each slab (local union-find) */
+	private final int[][]          slabRoots;
+	/** First global provisional label of each slab, minus 1 */
+	private final int[]            slabOffsets;
+	
+	/** Union-find parent of each global provisional label */
+	private AtomicIntegerArray parent;
+	/** Final label of each global provisional label */
+	private int[]              finalLabels;
+	/** Number of components */
+	private int                nbLabels;
+	
+	
+	/**
+	 * Labels the connected components of a binary image, with as many threads as available processors.
+	 *
+	 * @param binaryImage  binary image (voxels different from 0 are foreground)
+	 * @param connectivity 6, 18 or 26 (4 or 8 for 2D images)
+	 */
+	public ParallelComponentsLabeling(ImagePlus binaryImage, int connectivity) {
+		this(binaryImage, connectivity, Runtime.getRuntime().availableProcessors());
+	}
+	
+	
+	/**
+	 * Labels the connected components of a binary image. The image is split in one slab per thread (at least
+	 * {@link #MIN_SLAB_DEPTH} slices each).
+	 *
+	 * @param binaryImage     binary image (voxels different from 0 are foreground)
+	 * @param connectivity    6, 18 or 26 (4 or 8 for 2D images)
+	 * @param numberOfThreads number of threads
+	 */
+	public ParallelComponentsLabeling(ImagePlus binaryImage, int connectivity, int numberOfThreads) {
+		ImageStack stack = binaryImage.getStack();
+		this.width = stack.getWidth();
+		this.height = stack.getHeight();
+		this.depth = stack.getSize();
+		this.slices = new ImageProcessor[this.depth];
+		for (int k = 0; k < this.depth; ++k) {
+			this.slices[k] = stack.getProcessor(k + 1);
+		}
+		this.neighbours = computeNeighbours(connectivity, this.depth);
+		
+		int nThreads  = Math.max(1, numberOfThreads);
+		int slabDepth = Math.max(MIN_SLAB_DEPTH, (this.depth + nThreads - 1) / nThreads);
+		int nbSlabs   = (this.depth + slabDepth - 1) / slabDepth;
+		this.slabStarts = new int[nbSlabs + 1];
+		for (int s = 0; s <= nbSlabs; ++s) {
+			this.slabStarts[s] = Math.min(s * slabDepth, this.depth);
+		}
+		this.labels = new int[this.width * this.height * this.depth];
+		this.slabCounts = new int[nbSlabs];
+		this.slabRoots = new int[nbSlabs][];
+		this.slabOffsets = new int[nbSlabs];
+		
+		if (nbSlabs == 1) {
+			labelSlab(0);
+			initialiseUnionFind();
+			resolveLabels();
+			relabelSlab(0);
+		} else {
+			ForkJoinPool pool = new ForkJoinPool(nThreads);
+			try {
+				pool.invoke(new SlabTask(Pass.LABEL, 0, nbSlabs));
+				initialiseUnionFind();
+				pool.invoke(new SlabTask(Pass.MERGE, 1, nbSlabs));
+				resolveLabels();
+				pool.invoke(new SlabTask(Pass.RELABEL, 0, nbSlabs));
+			} finally {
+				pool.shutdown();
+			}
+		}
+		this.finalLabels = null;
+	}
+	
+	
+	/**
+	 * Computes the labels of the connected components of a binary image, as MorphoLibJ does.
+	 *
+	 * @param imagePlus    binary image (voxels different from 0 are foreground)
+	 * @param connectivity 6, 18 or 26 (4 or 8 for 2D images)
+	 * @param bitDepth     bit depth of the label image: 8, 16 or 32
+	 *
+	 * @return label image
+	 */
+	public static ImagePlus componentsLabeling(ImagePlus imagePlus, int connectivity, int bitDepth) {
+		return componentsLabeling(imagePlus, connectivity, bitDepth, Runtime.getRuntime().availableProcessors());
+	}
+	
+	
+	/**
+	 * Computes the labels of the connected components of a binary image, as MorphoLibJ does.
+	 *
+	 * @param imagePlus       binary image (voxels different from 0 are foreground)
+	 * @param connectivity    6, 18 or 26 (4 or 8 for 2D images)
+	 * @param bitDepth        bit depth of the label image: 8, 16 or 32
+	 * @param numberOfThreads number of threads
+	 *
+	 * @return label image
+	 */
+	public static ImagePlus componentsLabeling(ImagePlus imagePlus,
+	                                           int connectivity,
+	                                           int bitDepth,
+	                                           int numberOfThreads) {
+		ParallelComponentsLabeling labelling = new ParallelComponentsLabeling(imagePlus, connectivity, numberOfThreads);
+		ImagePlus labelPlus = new ImagePlus(imagePlus.getShortTitle() + "-lbl", labelling.getLabelStack(bitDepth));
+		labelPlus.copyScale(imagePlus);
+		labelPlus.setDisplayRange(0, Math.max(labelling.getNumberOfLabels(), 1));
+		return labelPlus;
+	}
+	
+	
+	/**
+	 * Computes the labels of the connected components of a 2D binary image, as MorphoLibJ does.
+	 *
+	 * @param image        binary image (pixels different from 0 are foreground)
+	 * @param connectivity 4 or 8 (6 is read as 4, 18 and 26 as 8)
+	 * @param bitDepth     bit depth of the label image: 8, 16 or 32
+	 *
+	 * @return label image
+	 */
+	public static ImageProcessor componentsLabeling(ImageProcessor image, int connectivity, int bitDepth) {
+		ParallelComponentsLabeling labelling = new ParallelComponentsLabeling(new ImagePlus("", image), connectivity);
+		ImageProcessor labelProcessor = labelling.getLabelStack(bitDepth).getProcessor(1);
+		labelProcessor.setMinAndMax(0, Math.max(labelling.getNumberOfLabels(), 1));
+		return labelProcessor;
+	}
+	
+	
+	/**
+	 * Computes the offsets of the neighbours of a voxel visited before it in raster order (z, y, x).
+	 *
+	 * @param connectivity 6, 18 or 26 (4 or 8 for 2D images)
+	 * @param depth        number of slices of the image
+	 *
+	 * @return offsets (dx, dy, dz)
+	 */
+	private static int[][] computeNeighbours(int connectivity, int depth) {
+		int maxDistance;
+		switch (connectivity) {
+			case 4:
+			case 6:
+				maxDistance = 1;
+				break;
+			case 8:
+			case 18:
+				maxDistance = 2;
+				break;
+			case 26:
+				maxDistance = 3;
+				break;
+			default:
+				throw new IllegalArgumentException("Connectivity must be 4, 6, 8, 18 or 26, not " + connectivity);
+		}
+		if ((connectivity == 4 || connectivity == 8) && depth > 1) {
+			throw new IllegalArgumentException("Connectivity " + connectivity + " is only valid for 2D images");
+		}
+		List<int[]> offsets = new ArrayList<>();
+		for (int dz = -1; dz <= 0; ++dz) {
+			for (int dy = -1; dy <= 1; ++dy) {
+				for (int dx = -1; dx <= 1; ++dx) {
+					boolean before = dz < 0 || dy < 0 || dy == 0 && dx < 0;
+					if (before && Math.abs(dx) + Math.abs(dy) + Math.abs(dz) <= maxDistance) {
+						offsets.add(new int[]{dx, dy, dz});
+					}
+				}
+			}
+		}
+		return offsets.toArray(new int[0][]);
+	}
+	
+	
+	/** @return number of components (labels 1 to n) */
+	public int getNumberOfLabels() {
+		return this.nbLabels;
+	}
+	
+	
+	/**
+	 * Computes the label image.
+	 *
+	 * @param bitDepth bit depth of the label image: 8, 16 or 32
+	 *
+	 * @return label stack
+	 */
+	public ImageStack getLabelStack(int bitDepth) {
+		int maxLabel;
+		switch (bitDepth) {
+			case 8:
+				maxLabel = 0xff;
+				break;
+			case 16:
+				maxLabel = 0xffff;
+				break;
+			case 32:
+				maxLabel = 1 << 24;
+				break;
+			default:
+				throw new IllegalArgumentException("Bit depth must be 8, 16 or 32, not " + bitDepth);
+		}
+		if (this.nbLabels > maxLabel) {
+			throw new IllegalStateException("Max number of labels reached (" + maxLabel + ")");
+		}
+		ImageProcessor[] labelSlices = new ImageProcessor[this.depth];
+		for (int k = 0; k < this.depth; ++k) {
+			if (bitDepth == 8) {
+				labelSlices[k] = new ByteProcessor(this.width, this.height);
+			} else if (bitDepth == 16) {
+				labelSlices[k] = new ShortProcessor(this.width, this.height);
+			} else {
+				labelSlices[k] = new FloatProcessor(this.width, this.height);
+			}
+		}
+		ImageStack labelStack = new ImageStack(this.width, this.height);
+		int        sliceSize  = this.width * this.height;
+		for (int z = 0; z < this.depth; ++z) {
+			ImageProcessor labelSlice = labelSlices[z];
+			for (int n = 0; n < sliceSize; ++n) {
+				int label = this.labels[n + z * sliceSize];
+				if (label > 0) {
+					labelSlice.setf(n, label);
+				}
+			}
+			labelStack.addSlice(labelSlice);
+		}
+		return labelStack;
+	}
+	
+	
+	/**
+	 * Labels the voxels of a slab with provisional labels (local union-find, the root being the smallest label).
+	 *
+	 * @param slab slab
+	 */
+	private void labelSlab(int slab) {
+		int   sliceSize = this.width * this.height;
+		int[] parents   = new int[1024];
+		int   count     = 0;
+		for (int z = this.slabStarts[slab]; z < this.slabStarts[slab + 1]; ++z) {
+			ImageProcessor slice = this.slices[z];
+			for (int y = 0, n = 0; y < this.height; ++y) {
+				for (int x = 0; x < this.width; ++x, ++n) {
+					if (slice.getf(n) == 0) {
+						continue;
+					}
+					int label = 0;
+					for (int[] neighbour : this.neighbours) {
+						int nx = x + neighbour[0];
+						int ny = y + neighbour[1];
+						int nz = z + neighbour[2];
+						if (nx < 0 || ny < 0 || nx >= this.width || ny >= this.height || nz < this.slabStarts[slab]) {
+							continue;
+						}
+						int neighbourLabel = this.labels[nx + ny * this.width + nz * sliceSize];
+						if (neighbourLabel == 0) {
+							continue;
+						}
+						if (label == 0) {
+							label = neighbourLabel;
+						} else if (neighbourLabel != label) {
+							int root1 = findLocal(parents, label);
+							int root2 = findLocal(parents, neighbourLabel);
+							parents[Math.max(root1, root2)] = Math.min(root1, root2);
+						}
+					}
+					if (label == 0) {
+						label = ++count;
+						if (label == parents.length) {
+							parents = Arrays.copyOf(parents, 2 * parents.length);
+						}
+						parents[label] = label;
+					}
+					this.labels[n + z * sliceSize] = label;
+				}
+			}
+		}
+		for (int label = 1; label <= count; ++label) {
+			parents[label] = findLocal(parents, label);
+		}
+		this.slabCounts[slab] = count;
+		this.slabRoots[slab] = parents;
+	}
+	
+	
+	/**
+	 * Finds the root of a provisional label of a slab (path halving).
+	 *
+	 * @param parents local union-find
+	 * @param label   provisional label
+	 *
+	 * @return root
+	 */
+	private static int findLocal(int[] parents, int label) {
+		int l = label;
+		while (parents[l] != l) {
+			parents[l] = parents[parents[l]];
+			l = parents[l];
+		}
+		return l;
+	}
+	
+	
+	/** Numbers the provisional labels of all the slabs and initialises the global union-find with the local roots. */
+	private void initialiseUnionFind() {
+		int total = 0;
+		for (int s = 0; s < this.slabCounts.length; ++s) {
+			this.slabOffsets[s] = total;
+			total += this.slabCounts[s];
+		}
+		this.parent = new AtomicIntegerArray(total + 1);
+		for (int s = 0; s < this.slabCounts.length; ++s) {
+			for (int label = 1; label <= this.slabCounts[s]; ++label) {
+				this.parent.set(this.slabOffsets[s] + label, this.slabOffsets[s] + this.slabRoots[s][label]);
+			}
+			this.slabRoots[s] = null;
+		}
+	}
+	
+	
+	/**
+	 * Merges the labels of the first slice of a slab with the labels of the last slice of the previous slab.
+	 *
+	 * @param slab slab (not the first one)
+	 */
+	private void mergeSlab(int slab) {
+		int sliceSize = this.width * this.height;
+		int z         = this.slabStarts[slab];
+		for (int y = 0, n = 0; y < this.height; ++y) {
+			for (int x = 0; x < this.width; ++x, ++n) {
+				int label = this.labels[n + z * sliceSize];
+				if (label == 0) {
+					continue;
+				}
+				for (int[] neighbour : this.neighbours) {
+					int nx = x + neighbour[0];
+					int ny = y + neighbour[1];
+					if (neighbour[2] == 0 || nx < 0 || ny < 0 || nx >= this.width || ny >= this.height) {
+						continue;
+					}
+					int neighbourLabel = this.labels[nx + ny * this.width + (z - 1) * sliceSize];
+					if (neighbourLabel != 0) {
+						union(this.slabOffsets[slab] + label, this.slabOffsets[slab - 1] + neighbourLabel);
+					}
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * Finds the root of a global provisional label (lock-free path halving).
+	 *
+	 * @param label global provisional label
+	 *
+	 * @return root
+	 */
+	private int find(int label) {
+		int l = label;
+		int p = this.parent.get(l);
+		while (p != l) {
+			int grandParent = this.parent.get(p);
+			this.parent.compareAndSet(l, p, grandParent);
+			l = p;
+			p = this.parent.get(l);
+		}
+		return l;
+	}
+	
+	
+	/**
+	 * Merges two global provisional labels (lock-free): the largest root is linked to the smallest one.
+	 *
+	 * @param label1 first global provisional label
+	 * @param label2 second global provisional label
+	 */
+	private void union(int label1, int label2) {
+		while (true) {
+			int root1 = find(label1);
+			int root2 = find(label2);
+			if (root1 == root2) {
+				return;
+			}
+			int larger  = Math.max(root1, root2);
+			int smaller = Math.min(root1, root2);
+			if (this.parent.compareAndSet(larger, larger, smaller)) {
+				return;
+			}
+		}
+	}
+	
+	
+	/** Numbers the components in the order of their smallest provisional label (the roots). */
+	private void resolveLabels() {
+		this.finalLabels = new int[this.parent.length()];
+		for (int label = 1; label < this.finalLabels.length; ++label) {
+			int root = find(label);
+			this.finalLabels[label] = root == label ? ++this.nbLabels : this.finalLabels[root];
+		}
+		this.parent = null;
+	}
+	
+	
+	/**
+	 * Replaces the provisional labels of a slab by the final labels.
+	 *
+	 * @param slab slab
+	 */
+	private void relabelSlab(int slab) {
+		int sliceSize = this.width * this.height;
+		int offset    = this.slabOffsets[slab];
+		for (int n = this.slabStarts[slab] * sliceSize; n < this.slabStarts[slab + 1] * sliceSize; ++n) {
+			if (this.labels[n] > 0) {
+				this.labels[n] = this.finalLabels[offset + this.labels[n]];
+			}
+		}
+	}
+	
+	
+	/** Passes over the slabs */
+	private enum Pass {
+		/** Provisional labelling of the slabs */
+		LABEL,
+		/** Merge of the labels of neighbouring slabs */
+		MERGE,
+		/** Final labelling of the slabs */
+		RELABEL
+	}
+	
+	
+	/** Fork/join task labelling, merging or relabelling a range of slabs. */
+	private class SlabTask extends RecursiveAction {
+		/** Pass to run */
+		private final Pass pass;
+		/** First slab of the range (included) */
+		private final int  start;
+		/** Last slab of the range (excluded) */
+		private final int  end;
+		
+		
+		SlabTask(Pass pass, int start, int end) {
+			this.pass = pass;
+			this.start = start;
+			this.end = end;
+		}
+		
+		
+		@Override
+		protected void compute() {
+			if (end - start > 1) {
+				int middle = (start + end) >>> 1;
+				invokeAll(new SlabTask(pass, start, middle), new SlabTask(pass, middle, end));
+			} else if (end > start) {
+				if (pass == Pass.LABEL) {
+					labelSlab(start);
+				} else if (pass == Pass.MERGE) {
+					mergeSlab(start);
+				} else {
+					relabelSlab(start);
+				}
+			}
+		}
+		
+	}
+	
+}
@@ -1,5 +1,6 @@
 package gred.nucleus.core;
 
+import gred.nucleus.connectedcomponent.ParallelComponentsLabeling;
 import gred.nucleus.gradient.MyGradient;
 import gred.nucleus.utils.RegionalExtremaFilter;
 import ij.ImagePlus;
@@ -8,7 +9,6 @@ import ij.io.FileSaver;
 import ij.measure.Calibration;
 import ij.process.ImageStatistics;
 import ij.process.StackStatistics;
-import inra.ijpb.binary.BinaryImages;
 import inra.ijpb.watershed.Watershed;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,7 +60,7 @@ public final class ChromocentersEnhancement {
 		RegionalExtremaFilter regionalExtremaFilter = new RegionalExtremaFilter();
 		regionalExtremaFilter.setMask(imagePlusSegmented);
 		ImagePlus imagePlusExtrema = regionalExtremaFilter.applyWithMask(imagePlusGradient);
-		ImagePlus imagePlusLabels  = BinaryImages.componentsLabeling(imagePlusExtrema, 26, 32);
+		ImagePlus imagePlusLabels  = ParallelComponentsLabeling.componentsLabeling(imagePlusExtrema, 26, 32);
 		ImagePlus imagePlusWatershed =
 				Watershed.computeWatershed(imagePlusGradient, imagePlusLabels, imagePlusSegmented, 26, false, false);
 		// Change -1 value in 0
@@ -4,15 +4,20 @@ import gred.nucleus.segmentation.SegmentationParameters;
 import gred.nucleus.utils.ConvexHullImageMaker;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.process.ImageProcessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.invoke.MethodHandles;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 /**
  * Segmentation using a convex hull algorithm analysis on 3D segmented image imputed for the different axis combined : - XY - XZ -
- *
+ * <p>
+ * The three plans, and the slices of each plan, are computed concurrently, each task using its own
+ * ConvexHullImageMaker. The union of the plans is also computed slice by slice in parallel.
  *
  * @author Tristan Dubos and Axel Poulet
  */
@@ -20,68 +25,156 @@ public class ConvexHullSegmentation {
 	/** Logger */
 	private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 	
+	/** Combined axis of the plans */
+	private static final String[] AXES = {"xy", "xz", "yz"};
+	
 	
 	/**
 	 * Run the convex hull detection analysis on 3D segmented image imputed for the different axis combined : XY XZ YZ
 	 *
-	 * @param imagePlusInput Current image segmented analysed
+	 * @param imagePlusInput         Current image segmented analysed
+	 * @param segmentationParameters parameters of the segmentation (number of threads)
 	 *
 	 * @return segmented image
 	 */
 	public ImagePlus convexHullDetection(ImagePlus imagePlusInput, SegmentationParameters segmentationParameters) {
 		LOGGER.info("Running Convex Hull Algorithm.");
-		ConvexHullImageMaker nuc = new ConvexHullImageMaker();
-		nuc.setAxes("xy");
-		ImagePlus imagePlusXY = nuc.runConvexHullDetection(imagePlusInput);
-		LOGGER.trace("XY done");
-		nuc.setAxes("xz");
-		ImagePlus imagePlusXZ = nuc.runConvexHullDetection(imagePlusInput);
-		LOGGER.trace("XZ done");
-		nuc.setAxes("yz");
-		ImagePlus imagePlusYZ = nuc.runConvexHullDetection(imagePlusInput);
-		LOGGER.trace("YZ done");
+		int[]        boundingBox = ConvexHullImageMaker.computeBoundingBox(imagePlusInput);
+		int[]        depths      = {imagePlusInput.getNSlices(), imagePlusInput.getHeight(), imagePlusInput.getWidth()};
+		byte[][][]   plans       = new byte[AXES.length][][];
+		PlanSlices[] tasks       = new PlanSlices[AXES.length];
+		ForkJoinPool pool        = new ForkJoinPool(Math.max(1, segmentationParameters.getNumberOfThreads()));
+		try {
+			for (int a = 0; a < AXES.length; ++a) {
+				plans[a] = new byte[depths[a]][];
+				tasks[a] = new PlanSlices(AXES[a], imagePlusInput, boundingBox, 0, depths[a], plans[a]);
+				pool.execute(tasks[a]);
+			}
+			for (int a = 0; a < AXES.length; ++a) {
+				tasks[a].join();
+				LOGGER.trace("{} done", AXES[a].toUpperCase());
+			}
+			
+			ImagePlus imagePlusOutput = imagePlusInput.duplicate();
+			imagePlusOutput.setTitle(imagePlusInput.getTitle());
+			pool.invoke(new UnionSlices(imagePlusOutput.getStack(), plans[0], plans[1], plans[2], 0, depths[0]));
+			return imagePlusOutput;
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	
+	/** Computes a range of slices of a plan, with a ConvexHullImageMaker for each sequential range. */
+	private static class PlanSlices extends RecursiveAction {
+		/** Number of slices under which the range is computed sequentially */
+		private static final int SEQUENTIAL_SLICES = 4;
+		
+		/** Combined axis of the plan */
+		private final String    axes;
+		/** Segmented image shared by the tasks (only read) */
+		private final ImagePlus imagePlusInput;
+		/** Bounding box of the foreground voxels of the image */
+		private final int[]     boundingBox;
+		/** First slice of the range (included) */
+		private final int       start;
+		/** Last slice of the range (excluded) */
+		private final int       end;
+		/** Pixels of the slices of the plan, filled by the tasks */
+		private final byte[][]  plan;
+		
+		
+		PlanSlices(String axes, ImagePlus imagePlusInput, int[] boundingBox, int start, int end, byte[][] plan) {
+			this.axes = axes;
+			this.imagePlusInput = imagePlusInput;
+			this.boundingBox = boundingBox;
+			this.start = start;
+			this.end = end;
+			this.plan = plan;
+		}
+		
+		
+		@Override
+		protected void compute() {
+			if (end - start <= SEQUENTIAL_SLICES) {
+				ConvexHullImageMaker maker = new ConvexHullImageMaker();
+				maker.setAxes(axes);
+				maker.setInput(imagePlusInput, boundingBox);
+				for (int k = start; k < end; ++k) {
+					plan[k] = maker.computeSlice(k);
+				}
+			} else {
+				int middle = (start + end) >>> 1;
+				invokeAll(new PlanSlices(axes, imagePlusInput, boundingBox, start, middle, plan),
+				          new PlanSlices(axes, imagePlusInput, boundingBox, middle, end, plan));
+			}
+		}
 		
-		return imageMakingUnion(imagePlusInput, imagePlusXY, imagePlusXZ, imagePlusYZ);
 	}
 	
 	
 	/**
-	 * Make an union of segmented images from the different plans
-	 *
-	 * @param imagePlusXY Segmented image in XY dimension
-	 * @param imagePlusXZ Segmented image in XZ dimension
-	 * @param imagePlusYZ Segmented image in YZ dimension
-	 *
-	 * @return ImagePlus image results of the convex hull algorithm
-	 *
-	 * @see ConvexHullSegmentation#convexHullDetection(ImagePlus, SegmentationParameters) 
+	 * Make an union of segmented images from the different plans, on a range of slices: the voxels inside a hull of
+	 * one of the plans are set to 255 in the output.
 	 */
-	private ImagePlus imageMakingUnion(ImagePlus imagePlusInput,
-	                                   ImagePlus imagePlusXY,
-	                                   ImagePlus imagePlusXZ,
-	                                   ImagePlus imagePlusYZ) {
-		ImagePlus  imagePlusOutput  = imagePlusInput.duplicate();
-		imagePlusOutput.setTitle(imagePlusInput.getTitle());
+	private static class UnionSlices extends RecursiveAction {
+		/** Number of slices under which the range is computed sequentially */
+		private static final int SEQUENTIAL_SLICES = 4;
+		
+		/** Output stack, copy of the segmented image */
+		private final ImageStack imageStackOutput;
+		/** Segmented image in XY dimension */
+		private final byte[][]   planXY;
+		/** Segmented image in XZ dimension */
+		private final byte[][]   planXZ;
+		/** Segmented image in YZ dimension */
+		private final byte[][]   planYZ;
+		/** First slice of the range (included) */
+		private final int        start;
+		/** Last slice of the range (excluded) */
+		private final int        end;
+		
+		
+		UnionSlices(ImageStack imageStackOutput,
+		            byte[][] planXY,
+		            byte[][] planXZ,
+		            byte[][] planYZ,
+		            int start,
+		            int end) {
+			this.imageStackOutput = imageStackOutput;
+			this.planXY = planXY;
+			this.planXZ = planXZ;
+			this.planYZ = planYZ;
+			this.start = start;
+			this.end = end;
+		}
 		
-		ImageStack imageStackXY     = imagePlusXY.getStack();
-		ImageStack imageStackXZ     = imagePlusXZ.getStack();
-		ImageStack imageStackYZ     = imagePlusYZ.getStack();
-		ImageStack imageStackOutput = imagePlusOutput.getStack();
 		
-		for (int k = 0; k < imagePlusXY.getNSlices(); ++k) {
-			for (int i = 0; i < imagePlusXY.getWidth(); ++i) {
-				for (int j = 0; j < imagePlusXY.getHeight(); ++j) {
-					if (imageStackXY.getVoxel(i, j, k) != 0 ||
-					    imageStackYZ.getVoxel(j, k, i) != 0 ||
-					    imageStackXZ.getVoxel(i, k, j) != 0) {
-						if (imageStackOutput.getVoxel(i, j, k) == 0) {
-							imageStackOutput.setVoxel(i, j, k, 255);
+		@Override
+		protected void compute() {
+			if (end - start <= SEQUENTIAL_SLICES) {
+				int width  = imageStackOutput.getWidth();
+				int height = imageStackOutput.getHeight();
+				for (int k = start; k < end; ++k) {
+					ImageProcessor slice = imageStackOutput.getProcessor(k + 1);
+					byte[]         xy    = planXY[k];
+					for (int j = 0, n = 0; j < height; ++j) {
+						byte[] xz = planXZ[j];
+						for (int i = 0; i < width; ++i, ++n) {
+							if ((xy[n] != 0 || planYZ[i][j + k * height] != 0 || xz[i + k * width] != 0) &&
+							    slice.getf(n) == 0) {
+								slice.setf(n, 255);
+							}
 						}
 					}
 				}
+			} else {
+				int middle = (start + end) >>> 1;
+				invokeAll(new UnionSlices(imageStackOutput, planXY, planXZ, planYZ, start, middle),
+				          new UnionSlices(imageStackOutput, planXY, planXZ, planYZ, middle, end));
 			}
 		}
-		return imagePlusOutput;
+		
 	}
 	
 }
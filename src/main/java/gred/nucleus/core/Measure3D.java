@@ -2,18 +2,16 @@ package gred.nucleus.core;
 
 import Jama.EigenvalueDecomposition;
 import Jama.Matrix;
+import gred.nucleus.autocrop.Box;
 import gred.nucleus.utils.Gradient;
 import gred.nucleus.utils.Histogram;
 import gred.nucleus.utils.VoxelRecord;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
+import ij.process.ImageProcessor;
 
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
+import java.util.Arrays;
 
 
 /**
@@ -22,6 +20,8 @@ import java.util.TreeMap;
  * Volume Flatness Elongation Sphericity Esr SurfaceArea SurfaceAreaCorrected SphericityCorrected MeanIntensity
  * StandardDeviation MinIntensity MaxIntensity OTSUThreshold
  * <p>
+ * A region (bounding box of the voxels > 0 of the segmented image) can be given to restrict the traversals of the
+ * segmented image to this region: the voxels outside it are known to be background.
  * <p>
  * //TODO reecrire cette classe ya des choses que je fais 5 fois c'est inutil
  *
@@ -37,8 +37,8 @@ public class Measure3D {
 	double yCal;
 	double zCal;
 	
-	Map<Double, Integer> segmentedNucleusHistogram = new TreeMap<>();
-	Map<Double, Integer> backgroundHistogram       = new TreeMap<>();
+	/** Region containing all the voxels > 0 of the segmented image (null for the whole image) */
+	Box region;
 	
 	
 	public Measure3D() {
@@ -62,6 +62,85 @@ public class Measure3D {
 	}
 	
 	
+	/**
+	 * Constructor restricting the measures to a region of the segmented image.
+	 *
+	 * @param imageSeg segmented image
+	 * @param rawImage raw image
+	 * @param xCal     x calibration
+	 * @param yCal     y calibration
+	 * @param zCal     z calibration
+	 * @param region   region containing all the voxels > 0 of the segmented image (null for the whole image)
+	 */
+	public Measure3D(ImagePlus[] imageSeg, ImagePlus rawImage, double xCal, double yCal, double zCal, Box region) {
+		this(imageSeg, rawImage, xCal, yCal, zCal);
+		this.region = region;
+	}
+	
+	
+	/**
+	 * Computes the bounding box of the voxels > 0 of a segmented image.
+	 *
+	 * @param imagePlusInput segmented image
+	 *
+	 * @return bounding box, null if the image has no voxel > 0
+	 */
+	public static Box computeBoundingBox(ImagePlus imagePlusInput) {
+		ImageStack imageStackInput = imagePlusInput.getStack();
+		int        width           = imagePlusInput.getWidth();
+		int        xMin            = Integer.MAX_VALUE;
+		int        yMin            = Integer.MAX_VALUE;
+		int        zMin            = Integer.MAX_VALUE;
+		int        xMax            = -1;
+		int        yMax            = -1;
+		int        zMax            = -1;
+		for (int k = 0; k < imagePlusInput.getStackSize(); ++k) {
+			ImageProcessor processor = imageStackInput.getProcessor(k + 1);
+			for (int n = 0; n < processor.getPixelCount(); ++n) {
+				if (processor.getf(n) > 0) {
+					int i = n % width;
+					int j = n / width;
+					xMin = Math.min(xMin, i);
+					yMin = Math.min(yMin, j);
+					zMin = Math.min(zMin, k);
+					xMax = Math.max(xMax, i);
+					yMax = Math.max(yMax, j);
+					zMax = Math.max(zMax, k);
+				}
+			}
+		}
+		if (zMax == -1) {
+			return null;
+		}
+		return new Box(xMin, xMax, yMin, yMax, zMin, zMax);
+	}
+	
+	
+	/**
+	 * Computes the bounds of the traversal of an image, restricted to a region.
+	 *
+	 * @param imagePlusInput image to traverse
+	 * @param region         region of interest (null for the whole image)
+	 *
+	 * @return xMin, yMin, zMin, xMax, yMax, zMax (included)
+	 */
+	private static int[] getBounds(ImagePlus imagePlusInput, Box region) {
+		int[] bounds = {0, 0, 0,
+		                imagePlusInput.getWidth() - 1,
+		                imagePlusInput.getHeight() - 1,
+		                imagePlusInput.getStackSize() - 1};
+		if (region != null) {
+			bounds[0] = Math.max(bounds[0], region.getXMin());
+			bounds[1] = Math.max(bounds[1], region.getYMin());
+			bounds[2] = Math.max(bounds[2], region.getZMin());
+			bounds[3] = Math.min(bounds[3], region.getXMax());
+			bounds[4] = Math.min(bounds[4], region.getYMax());
+			bounds[5] = Math.min(bounds[5], region.getZMax());
+		}
+		return bounds;
+	}
+	
+	
 	/**
 	 * Scan of image and if the voxel belong to the object of interest, looking, if in his neighborhood there are voxel
 	 * value == 0 then it is a boundary voxel. Adding the surface of the face of the voxel frontier, which are in
@@ -73,10 +152,11 @@ public class Measure3D {
 	 */
 	public double computeSurfaceObject(double label) {
 		ImageStack imageStackInput = this.imageSeg[0].getStack();
+		int[]      bounds          = getBounds(this.imageSeg[0], this.region);
 		double     surfaceArea     = 0, voxelValue, neighborVoxelValue;
-		for (int k = 1; k < this.imageSeg[0].getStackSize(); ++k) {
-			for (int i = 1; i < this.imageSeg[0].getWidth(); ++i) {
-				for (int j = 1; j < this.imageSeg[0].getHeight(); ++j) {
+		for (int k = Math.max(1, bounds[2]); k <= bounds[5]; ++k) {
+			for (int i = Math.max(1, bounds[0]); i <= bounds[3]; ++i) {
+				for (int j = Math.max(1, bounds[1]); j <= bounds[4]; ++j) {
 					voxelValue = imageStackInput.getVoxel(i, j, k);
 					if (voxelValue == label) {
 						for (int kk = k - 1; kk <= k + 1; kk += 2) {
@@ -116,12 +196,10 @@ public class Measure3D {
 		
 		Histogram histogram = new Histogram();
 		histogram.run(imagePlusInput);
-		double[]             tlabel        = histogram.getLabels();
-		double[]             tObjectVolume = new double[tlabel.length];
-		Map<Double, Integer> histo         = histogram.getHistogram();
-		for (int i = 0; i < tlabel.length; ++i) {
-			int nbVoxel = histo.get(tlabel[i]);
-			tObjectVolume[i] = nbVoxel * this.xCal * this.yCal * this.zCal;
+		long[]   nbVoxels      = histogram.getCounts();
+		double[] tObjectVolume = new double[nbVoxels.length];
+		for (int i = 0; i < nbVoxels.length; ++i) {
+			tObjectVolume[i] = nbVoxels[i] * this.xCal * this.yCal * this.zCal;
 		}
 		return tObjectVolume;
 	}
@@ -137,21 +215,7 @@ public class Measure3D {
 	public double computeVolumeObject2(double label) {
 		Histogram histogram = new Histogram();
 		histogram.run(this.imageSeg[0]);
-		Map<Double, Integer> hashMapHistogram = histogram.getHistogram();
-		
-		return hashMapHistogram.get(label) * this.xCal * this.yCal * this.zCal;
-		
-	}
-	
-	
-	private double computeVolumeObjectML() {
-		double volumeTMP = 0.0;
-		for (Map.Entry<Double, Integer> toto : this.segmentedNucleusHistogram.entrySet()) {
-			if (toto.getValue() > 0) {
-				volumeTMP += toto.getValue();
-			}
-		}
-		return volumeTMP * this.xCal * this.yCal * this.zCal;
+		return histogram.getCount(label) * this.xCal * this.yCal * this.zCal;
 	}
 	
 	
@@ -166,8 +230,7 @@ public class Measure3D {
 	public double computeVolumeObject(ImagePlus imagePlusInput, double label) {
 		Histogram histogram = new Histogram();
 		histogram.run(imagePlusInput);
-		Map<Double, Integer> hashMapHistogram = histogram.getHistogram();
-		return hashMapHistogram.get(label) * this.xCal * this.yCal * this.zCal;
+		return histogram.getCount(label) * this.xCal * this.yCal * this.zCal;
 	}
 	
 	
@@ -225,7 +288,8 @@ public class Measure3D {
 	 */
 	public double[] computeEigenValue3D(double label) {
 		ImageStack  imageStackInput = this.imageSeg[0].getImageStack();
-		VoxelRecord barycenter      = computeBarycenter3D(true, this.imageSeg[0], label);
+		VoxelRecord barycenter      = computeBarycenter3D(true, this.imageSeg[0], label, this.region);
+		int[]       bounds          = getBounds(this.imageSeg[0], this.region);
 		
 		double xx      = 0;
 		double xy      = 0;
@@ -235,11 +299,11 @@ public class Measure3D {
 		double zz      = 0;
 		int    counter = 0;
 		double voxelValue;
-		for (int k = 0; k < this.imageSeg[0].getStackSize(); ++k) {
+		for (int k = bounds[2]; k <= bounds[5]; ++k) {
 			double dz = ((this.zCal * (double) k) - barycenter.getK());
-			for (int i = 0; i < this.imageSeg[0].getWidth(); ++i) {
+			for (int i = bounds[0]; i <= bounds[3]; ++i) {
 				double dx = ((this.xCal * (double) i) - barycenter.getI());
-				for (int j = 0; j < this.imageSeg[0].getHeight(); ++j) {
+				for (int j = bounds[1]; j <= bounds[4]; ++j) {
 					voxelValue = imageStackInput.getVoxel(i, j, k);
 					if (voxelValue == label) {
 						double dy = ((this.yCal * (double) j) - barycenter.getJ());
@@ -292,16 +356,35 @@ public class Measure3D {
 	public VoxelRecord computeBarycenter3D(boolean unit,
 	                                       ImagePlus imagePlusInput,
 	                                       double label) {
+		return computeBarycenter3D(unit, imagePlusInput, label, null);
+	}
+	
+	
+	/**
+	 * Method which determines object barycenter, traversing only a region of the image
+	 *
+	 * @param unit           if true the coordinates of barycenter are in µm.
+	 * @param imagePlusInput ImagePlus of labelled image
+	 * @param label          double label of interest
+	 * @param region         region containing all the voxels of the object (null for the whole image)
+	 *
+	 * @return VoxelRecord the barycenter of the object of interest
+	 */
+	public VoxelRecord computeBarycenter3D(boolean unit,
+	                                       ImagePlus imagePlusInput,
+	                                       double label,
+	                                       Box region) {
 		ImageStack  imageStackInput       = imagePlusInput.getImageStack();
+		int[]       bounds                = getBounds(imagePlusInput, region);
 		VoxelRecord voxelRecordBarycenter = new VoxelRecord();
 		int         count                 = 0;
 		int         sx                    = 0;
 		int         sy                    = 0;
 		int         sz                    = 0;
 		double      voxelValue;
-		for (int k = 0; k < imagePlusInput.getStackSize(); ++k) {
-			for (int i = 0; i < imagePlusInput.getWidth(); ++i) {
-				for (int j = 0; j < imagePlusInput.getHeight(); ++j) {
+		for (int k = bounds[2]; k <= bounds[5]; ++k) {
+			for (int i = bounds[0]; i <= bounds[3]; ++i) {
+				for (int j = bounds[1]; j <= bounds[4]; ++j) {
 					voxelValue = imageStackInput.getVoxel(i, j, k);
 					if (voxelValue == label) {
 						sx += i;
@@ -423,12 +506,11 @@ public class Measure3D {
 	 * @return
 	 */
 	public double computeComplexSurface() {
-		Gradient           gradient            = new Gradient(this.rawImage);
-		List<Double>[][][] tableUnitary        = gradient.getUnitNormals();
-		ImageStack         imageStackSegmented = this.imageSeg[0].getStack();
-		double             surfaceArea         = 0, voxelValue, neighborVoxelValue;
-		VoxelRecord        voxelRecordIn       = new VoxelRecord();
-		VoxelRecord        voxelRecordOut      = new VoxelRecord();
+		Gradient    gradient            = new Gradient(this.rawImage);
+		ImageStack  imageStackSegmented = this.imageSeg[0].getStack();
+		double      surfaceArea         = 0, voxelValue, neighborVoxelValue;
+		VoxelRecord voxelRecordIn       = new VoxelRecord();
+		VoxelRecord voxelRecordOut      = new VoxelRecord();
 		
 		for (int k = 2; k < this.imageSeg[0].getNSlices() - 2; ++k) {
 			for (int i = 2; i < this.imageSeg[0].getWidth() - 2; ++i) {
@@ -448,8 +530,7 @@ public class Measure3D {
 										j,
 										kk);
 								surfaceArea += computeSurfelContribution(
-										tableUnitary[i][j][k],
-										tableUnitary[i][j][kk],
+										gradient,
 										voxelRecordIn,
 										voxelRecordOut,
 										((this.xCal) * (this.yCal)));
@@ -468,8 +549,7 @@ public class Measure3D {
 										j,
 										k);
 								surfaceArea += computeSurfelContribution(
-										tableUnitary[i][j][k],
-										tableUnitary[ii][j][k],
+										gradient,
 										voxelRecordIn, voxelRecordOut,
 										((this.yCal) * (this.zCal)));
 							}
@@ -487,8 +567,7 @@ public class Measure3D {
 										jj,
 										k);
 								surfaceArea += computeSurfelContribution(
-										tableUnitary[i][j][k],
-										tableUnitary[i][jj][k],
+										gradient,
 										voxelRecordIn,
 										voxelRecordOut,
 										((this.xCal) * (this.zCal)));
@@ -511,18 +590,36 @@ public class Measure3D {
 	 * @return
 	 */
 	public double computeComplexSurface(ImagePlus imagePlusSegmented, Gradient gradient) {
-		List<Double>[][][] tableUnitary        = gradient.getUnitNormals();
-		ImageStack         imageStackSegmented = imagePlusSegmented.getStack();
-		double             surfaceArea         = 0, voxelValue, neighborVoxelValue;
-		VoxelRecord        voxelRecordIn       = new VoxelRecord();
-		VoxelRecord        voxelRecordOut      = new VoxelRecord();
-		Calibration        calibration         = imagePlusSegmented.getCalibration();
-		double             xCalibration        = calibration.pixelWidth;
-		double             yCalibration        = calibration.pixelHeight;
-		double             zCalibration        = calibration.pixelDepth;
-		for (int k = 2; k < imagePlusSegmented.getNSlices() - 2; ++k) {
-			for (int i = 2; i < imagePlusSegmented.getWidth() - 2; ++i) {
-				for (int j = 2; j < imagePlusSegmented.getHeight() - 2; ++j) {
+		return computeComplexSurface(imagePlusSegmented, gradient, null);
+	}
+	
+	
+	/**
+	 * Method to compute surface of the segmented object using gradient information, traversing only a region of the
+	 * segmented image.
+	 *
+	 * @param imagePlusSegmented segmented image
+	 * @param gradient           gradient computed from raw images
+	 * @param region             region containing all the voxels > 0 of the segmented image (null for the whole image)
+	 *
+	 * @return
+	 */
+	public double computeComplexSurface(ImagePlus imagePlusSegmented, Gradient gradient, Box region) {
+		ImageStack  imageStackSegmented = imagePlusSegmented.getStack();
+		int[]       bounds              = getBounds(imagePlusSegmented, region);
+		double      surfaceArea         = 0, voxelValue, neighborVoxelValue;
+		VoxelRecord voxelRecordIn       = new VoxelRecord();
+		VoxelRecord voxelRecordOut      = new VoxelRecord();
+		Calibration calibration         = imagePlusSegmented.getCalibration();
+		double      xCalibration        = calibration.pixelWidth;
+		double      yCalibration        = calibration.pixelHeight;
+		double      zCalibration        = calibration.pixelDepth;
+		int kEnd = Math.min(bounds[5] + 1, imagePlusSegmented.getNSlices() - 2);
+		int iEnd = Math.min(bounds[3] + 1, imagePlusSegmented.getWidth() - 2);
+		int jEnd = Math.min(bounds[4] + 1, imagePlusSegmented.getHeight() - 2);
+		for (int k = Math.max(2, bounds[2]); k < kEnd; ++k) {
+			for (int i = Math.max(2, bounds[0]); i < iEnd; ++i) {
+				for (int j = Math.max(2, bounds[1]); j < jEnd; ++j) {
 					voxelValue = imageStackSegmented.getVoxel(i, j, k);
 					if (voxelValue > 0) {
 						for (int kk = k - 1; kk <= k + 1; kk += 2) {
@@ -530,8 +627,7 @@ public class Measure3D {
 							if (voxelValue != neighborVoxelValue) {
 								voxelRecordIn.setLocation(i, j, k);
 								voxelRecordOut.setLocation(i, j, kk);
-								surfaceArea += computeSurfelContribution(tableUnitary[i][j][k],
-								                                         tableUnitary[i][j][kk],
+								surfaceArea += computeSurfelContribution(gradient,
 								                                         voxelRecordIn,
 								                                         voxelRecordOut,
 								                                         ((xCalibration) * (yCalibration)));
@@ -542,8 +638,7 @@ public class Measure3D {
 							if (voxelValue != neighborVoxelValue) {
 								voxelRecordIn.setLocation(i, j, k);
 								voxelRecordOut.setLocation(ii, j, k);
-								surfaceArea += computeSurfelContribution(tableUnitary[i][j][k],
-								                                         tableUnitary[ii][j][k],
+								surfaceArea += computeSurfelContribution(gradient,
 								                                         voxelRecordIn,
 								                                         voxelRecordOut,
 								                                         ((yCalibration) * (zCalibration)));
@@ -554,8 +649,7 @@ public class Measure3D {
 							if (voxelValue != neighborVoxelValue) {
 								voxelRecordIn.setLocation(i, j, k);
 								voxelRecordOut.setLocation(i, jj, k);
-								surfaceArea += computeSurfelContribution(tableUnitary[i][j][k],
-								                                         tableUnitary[i][jj][k],
+								surfaceArea += computeSurfelContribution(gradient,
 								                                         voxelRecordIn,
 								                                         voxelRecordOut,
 								                                         ((xCalibration) * (zCalibration)));
@@ -572,278 +666,378 @@ public class Measure3D {
 	/**
 	 * Compute surface contribution of each voxels from gradients.
 	 *
-	 * @param listUnitaryIn
-	 * @param listUnitaryOut
-	 * @param voxelRecordIn
-	 * @param voxelRecordOut
-	 * @param as
+	 * @param gradient       gradient computed from raw images
+	 * @param voxelRecordIn  voxel inside the object
+	 * @param voxelRecordOut neighbor voxel outside the object
+	 * @param as             area of the face between the two voxels
 	 *
 	 * @return
 	 */
-	private double computeSurfelContribution(List<Double> listUnitaryIn,
-	                                         List<Double> listUnitaryOut,
+	private double computeSurfelContribution(Gradient gradient,
 	                                         VoxelRecord voxelRecordIn,
 	                                         VoxelRecord voxelRecordOut,
 	                                         double as) {
-		double dx = voxelRecordIn.i - voxelRecordOut.i;
-		double dy = voxelRecordIn.j - voxelRecordOut.j;
-		double dz = voxelRecordIn.k - voxelRecordOut.k;
-		double nx = (listUnitaryIn.get(0) + listUnitaryOut.get(0)) / 2;
-		double ny = (listUnitaryIn.get(1) + listUnitaryOut.get(1)) / 2;
-		double nz = (listUnitaryIn.get(2) + listUnitaryOut.get(2)) / 2;
+		int    iIn  = (int) voxelRecordIn.i;
+		int    jIn  = (int) voxelRecordIn.j;
+		int    kIn  = (int) voxelRecordIn.k;
+		int    iOut = (int) voxelRecordOut.i;
+		int    jOut = (int) voxelRecordOut.j;
+		int    kOut = (int) voxelRecordOut.k;
+		double dx   = voxelRecordIn.i - voxelRecordOut.i;
+		double dy   = voxelRecordIn.j - voxelRecordOut.j;
+		double dz   = voxelRecordIn.k - voxelRecordOut.k;
+		double nx   = ((double) gradient.getNormalX(iIn, jIn, kIn) + gradient.getNormalX(iOut, jOut, kOut)) / 2;
+		double ny   = ((double) gradient.getNormalY(iIn, jIn, kIn) + gradient.getNormalY(iOut, jOut, kOut)) / 2;
+		double nz   = ((double) gradient.getNormalZ(iIn, jIn, kIn) + gradient.getNormalZ(iOut, jOut, kOut)) / 2;
 		return Math.abs((dx * nx + dy * ny + dz * nz) * as);
 	}
 	
 	
 	/**
-	 * Compute an Hashmap describing the segmented object (from raw data). Key = Voxels intensity value = Number of
-	 * voxels
-	 * <p>
-	 * If voxels ==255 in seg image add Hashmap (Voxels intensity ,+1)
+	 * Compute the median intensity value of raw image voxel
+	 *
+	 * @return median intensity value of raw image voxel
 	 */
-	private void histogramSegmentedNucleus() {
-		ImageStack imageStackRaw = this.rawImage.getStack();
-		ImageStack imageStackSeg = this.imageSeg[0].getStack();
-		Histogram  histogram     = new Histogram();
+	public double medianComputingImage() {
+		Histogram histogram = new Histogram();
 		histogram.run(this.rawImage);
-		for (int k = 0; k < this.rawImage.getStackSize(); ++k) {
-			for (int i = 0; i < this.rawImage.getWidth(); ++i) {
-				for (int j = 0; j < this.rawImage.getHeight(); ++j) {
-					double voxelValue = imageStackSeg.getVoxel(i, j, k);
-					if (voxelValue == 255) {
-						if (!this.segmentedNucleusHistogram.containsKey(imageStackRaw.getVoxel(i, j, k))) {
-							this.segmentedNucleusHistogram.put(imageStackRaw.getVoxel(i, j, k), 1);
-						} else {
-							this.segmentedNucleusHistogram.put(imageStackRaw.getVoxel(i, j, k),
-							                                   this.segmentedNucleusHistogram.get(imageStackRaw.getVoxel(
-									                                   i,
-									                                   j,
-									                                   k)) +
-							                                   1);
-						}
-					} else {
-						if (!this.backgroundHistogram.containsKey(imageStackRaw.getVoxel(i, j, k))) {
-							this.backgroundHistogram.put(imageStackRaw.getVoxel(i, j, k), 1);
-						} else {
-							this.backgroundHistogram.put(imageStackRaw.getVoxel(i, j, k),
-							                             this.backgroundHistogram.get(imageStackRaw.getVoxel(i,
-							                                                                                 j,
-							                                                                                 k)) + 1);
-						}
-					}
-				}
-			}
-		}
+		return histogram.getMedian((long) rawImage.getHeight() * rawImage.getWidth() * rawImage.getNSlices());
 	}
 	
 	
 	/**
-	 * Compute the mean intensity of the segmented object by comparing voxels intensity in the raw image and
-	 * white/segmented voxels the segmented image.
+	 * Computes all the 3D parameters of the nucleus (voxels at 255 in the segmented image), restricted to the region of
+	 * this object if any.
 	 *
-	 * @return mean intensity of segmented object
+	 * @return parameters of the nucleus
 	 */
-	private double meanIntensity() {
-		int    numberOfVoxel = 0;
-		double mean          = 0;
-		for (Map.Entry<Double, Integer> histogram : this.segmentedNucleusHistogram.entrySet()) {
-			numberOfVoxel += histogram.getValue();
-			mean += histogram.getKey() * histogram.getValue();
-		}
-		return mean / numberOfVoxel;
+	public NucleusFeatures computeNucleusFeatures() {
+		return computeNucleusFeatures(this.region);
 	}
 	
 	
 	/**
-	 * Compute mean intensity of background
+	 * Computes all the 3D parameters of the nucleus (voxels at 255 in the segmented image) in a single traversal of a
+	 * region of the raw and segmented images: volume, moment matrix, voxel faces surface, surfel surface and intensity
+	 * histogram of the nucleus. The intensities of the whole image are read from its histogram, and the background
+	 * statistics are obtained by removing the nucleus voxels from it: the voxels outside the region are background.
+	 *
+	 * @param region region containing all the voxels > 0 of the segmented image (null for the whole image)
 	 *
-	 * @return mean intensity of background
+	 * @return parameters of the nucleus
 	 */
-	private double meanIntensityBackground() {
-		double     meanIntensity = 0;
-		int        voxelCounted  = 0;
-		ImageStack imageStackRaw = this.rawImage.getStack();
-		ImageStack imageStackSeg = this.imageSeg[0].getStack();
-		for (int k = 0; k < this.rawImage.getStackSize(); ++k) {
-			for (int i = 0; i < this.rawImage.getWidth(); ++i) {
-				for (int j = 0; j < this.rawImage.getHeight(); ++j) {
-					if (imageStackSeg.getVoxel(i, j, k) == 0) {
-						meanIntensity += imageStackRaw.getVoxel(i, j, k);
-						voxelCounted++;
+	public NucleusFeatures computeNucleusFeatures(Box region) {
+		ImageStack  imageStackRaw  = this.rawImage.getStack();
+		ImageStack  imageStackSeg  = this.imageSeg[0].getStack();
+		Gradient    gradient       = new Gradient(this.rawImage);
+		VoxelRecord voxelRecordIn  = new VoxelRecord();
+		VoxelRecord voxelRecordOut = new VoxelRecord();
+		int         width          = this.rawImage.getWidth();
+		int         height         = this.rawImage.getHeight();
+		int         depth          = this.rawImage.getStackSize();
+		int         segSlices      = this.imageSeg[0].getNSlices();
+		int         bitDepth       = this.rawImage.getBitDepth();
+		int[]       bounds         = getBounds(this.rawImage, region);
+		
+		IntensityHistogram nucleusHistogram = new IntensityHistogram(bitDepth);
+		
+		/* Raw moments, in voxels, of the nucleus */
+		long count = 0, si = 0, sj = 0, sk = 0, sii = 0, sjj = 0, skk = 0, sij = 0, sik = 0, sjk = 0;
+		
+		/* Voxels of the region which are not background (segmented value != 0) */
+		double objectsIntensity = 0;
+		long   objectsCount     = 0;
+		double surfaceArea      = 0;
+		double surfaceAreaNew   = 0;
+		double neighborVoxelValue;
+		for (int k = bounds[2]; k <= bounds[5]; ++k) {
+			for (int i = bounds[0]; i <= bounds[3]; ++i) {
+				for (int j = bounds[1]; j <= bounds[4]; ++j) {
+					double voxelValue = imageStackSeg.getVoxel(i, j, k);
+					if (voxelValue == 0) {
+						continue;
+					}
+					double rawValue = imageStackRaw.getVoxel(i, j, k);
+					objectsIntensity += rawValue;
+					objectsCount++;
+					if (voxelValue == 255) {
+						nucleusHistogram.add(rawValue);
+						count++;
+						si += i;
+						sj += j;
+						sk += k;
+						sii += (long) i * i;
+						sjj += (long) j * j;
+						skk += (long) k * k;
+						sij += (long) i * j;
+						sik += (long) i * k;
+						sjk += (long) j * k;
+						/* Voxel faces in contact with another value */
+						if (k >= 1 && i >= 1 && j >= 1) {
+							for (int kk = k - 1; kk <= k + 1; kk += 2) {
+								if (voxelValue != imageStackSeg.getVoxel(i, j, kk)) {
+									surfaceArea += this.xCal * this.yCal;
+								}
+							}
+							for (int ii = i - 1; ii <= i + 1; ii += 2) {
+								if (voxelValue != imageStackSeg.getVoxel(ii, j, k)) {
+									surfaceArea += this.yCal * this.zCal;
+								}
+							}
+							for (int jj = j - 1; jj <= j + 1; jj += 2) {
+								if (voxelValue != imageStackSeg.getVoxel(i, jj, k)) {
+									surfaceArea += this.xCal * this.zCal;
+								}
+							}
+						}
+					}
+					/* Surfels weighted by the gradient of the raw image */
+					if (voxelValue > 0 && k >= 2 && k < segSlices - 2 &&
+					    i >= 2 && i < width - 2 && j >= 2 && j < height - 2) {
+						for (int kk = k - 1; kk <= k + 1; kk += 2) {
+							neighborVoxelValue = imageStackSeg.getVoxel(i, j, kk);
+							if (voxelValue != neighborVoxelValue) {
+								voxelRecordIn.setLocation(i, j, k);
+								voxelRecordOut.setLocation(i, j, kk);
+								surfaceAreaNew += computeSurfelContribution(gradient,
+								                                            voxelRecordIn,
+								                                            voxelRecordOut,
+								                                            ((this.xCal) * (this.yCal)));
+							}
+						}
+						for (int ii = i - 1; ii <= i + 1; ii += 2) {
+							neighborVoxelValue = imageStackSeg.getVoxel(ii, j, k);
+							if (voxelValue != neighborVoxelValue) {
+								voxelRecordIn.setLocation(i, j, k);
+								voxelRecordOut.setLocation(ii, j, k);
+								surfaceAreaNew += computeSurfelContribution(gradient,
+								                                            voxelRecordIn,
+								                                            voxelRecordOut,
+								                                            ((this.yCal) * (this.zCal)));
+							}
+						}
+						for (int jj = j - 1; jj <= j + 1; jj += 2) {
+							neighborVoxelValue = imageStackSeg.getVoxel(i, jj, k);
+							if (voxelValue != neighborVoxelValue) {
+								voxelRecordIn.setLocation(i, j, k);
+								voxelRecordOut.setLocation(i, jj, k);
+								surfaceAreaNew += computeSurfelContribution(gradient,
+								                                            voxelRecordIn,
+								                                            voxelRecordOut,
+								                                            ((this.xCal) * (this.zCal)));
+							}
+						}
 					}
 				}
 			}
 		}
-		meanIntensity /= voxelCounted;
-		return meanIntensity;
-	}
-	
-	
-	/**
-	 * Compute the standard deviation of the mean intensity
-	 *
-	 * @return the standard deviation of the mean intensity of segmented object
-	 *
-	 * @see Measure3D#meanIntensity()
-	 */
-	private double standardDeviationIntensity(Double mean) {
-		int    numberOfVoxel = 0;
-		double std           = 0;
-		for (Map.Entry<Double, Integer> histogram : this.segmentedNucleusHistogram.entrySet()) {
-			numberOfVoxel += histogram.getValue();
-			std = Math.abs((histogram.getKey() * histogram.getValue()) - (histogram.getValue() * mean));
+		nucleusHistogram.finish();
+		
+		/* Whole image (voxels > 0 counted by the histogram, the others are at 0) and background = image - nucleus */
+		Histogram imageHistogram = new Histogram();
+		imageHistogram.run(this.rawImage);
+		long     nbVoxels       = (long) width * height * depth;
+		double[] imageValues    = imageHistogram.getLabels();
+		long[]   imageCounts    = imageHistogram.getCounts();
+		long     nbZeros        = nbVoxels - imageHistogram.getTotalCount();
+		double   imageIntensity = 0;
+		for (int n = 0; n < imageValues.length; ++n) {
+			imageIntensity += imageValues[n] * imageCounts[n];
 		}
-		return std / (numberOfVoxel - 1);
+		IntensityHistogram backgroundHistogram = IntensityHistogram.difference(imageValues,
+		                                                                       imageCounts,
+		                                                                       nbZeros,
+		                                                                       nucleusHistogram);
 		
+		NucleusFeatures features = new NucleusFeatures();
+		features.volume = (double) count * this.xCal * this.yCal * this.zCal;
 		
-	}
-	
-	
-	/**
-	 * Find the maximum intensity voxel of segmented object
-	 *
-	 * @return the maximum intensity voxel of segmented object
-	 */
-	private double maxIntensity() {
-		double maxIntensity = 0;
-		for (Map.Entry<Double, Integer> entry : this.segmentedNucleusHistogram.entrySet()) {
-			if (maxIntensity == 0 || entry.getKey().compareTo(maxIntensity) > 0) {
-				maxIntensity = entry.getKey();
-			}
-		}
-		return maxIntensity;
+		/* Moment matrix around the barycenter, truncated to the voxel as in computeBarycenter3D */
+		long ci = si / count;
+		long cj = sj / count;
+		long ck = sk / count;
+		double xx = this.xCal * this.xCal * (sii - 2 * ci * si + count * ci * ci);
+		double yy = this.yCal * this.yCal * (sjj - 2 * cj * sj + count * cj * cj);
+		double zz = this.zCal * this.zCal * (skk - 2 * ck * sk + count * ck * ck);
+		double xy = this.xCal * this.yCal * (sij - cj * si - ci * sj + count * ci * cj);
+		double xz = this.xCal * this.zCal * (sik - ck * si - ci * sk + count * ci * ck);
+		double yz = this.yCal * this.zCal * (sjk - ck * sj - cj * sk + count * cj * ck);
+		double[][] tValues = {{xx / count, xy / count, xz / count},
+		                      {xy / count, yy / count, yz / count},
+		                      {xz / count, yz / count, zz / count}};
+		features.eigenValues = new Matrix(tValues).eig().getRealEigenvalues();
+		features.flatness = Math.sqrt(features.eigenValues[1] / features.eigenValues[0]);
+		features.elongation = Math.sqrt(features.eigenValues[2] / features.eigenValues[1]);
+		
+		features.equivalentSphericalRadius = equivalentSphericalRadius(features.volume);
+		features.surfaceArea = surfaceArea;
+		features.surfaceAreaCorrected = surfaceAreaNew;
+		features.sphericity = computeSphericity(features.volume, surfaceAreaNew);
 		
+		/* Intensity statistics, from the histograms sorted by intensity */
+		double[] values = nucleusHistogram.values;
+		long[]   counts = nucleusHistogram.counts;
+		double   mean   = 0;
+		for (int n = 0; n < values.length; ++n) {
+			mean += values[n] * counts[n];
+		}
+		mean /= count;
+		features.meanIntensity = mean;
+		features.meanIntensityBackground = (imageIntensity - objectsIntensity) / (nbVoxels - objectsCount);
+		if (values.length > 0) {
+			int last = values.length - 1;
+			features.standardDeviationIntensity =
+					Math.abs((values[last] * counts[last]) - (counts[last] * mean)) / (count - 1);
+			features.minIntensity = values[0];
+			features.maxIntensity = values[last];
+		}
+		features.numberOfVoxels = this.rawImage.getHeight() * this.rawImage.getWidth() * this.rawImage.getNSlices();
+		features.medianIntensityImage = Histogram.computeMedian(imageValues, imageCounts, features.numberOfVoxels);
+		features.medianIntensityNucleus = Histogram.computeMedian(values, counts, count);
+		/* The background median is computed with the number of voxels of the nucleus */
+		features.medianIntensityBackground = Histogram.computeMedian(backgroundHistogram.values,
+		                                                             backgroundHistogram.counts,
+		                                                             count);
+		return features;
 	}
 	
 	
 	/**
-	 * Find the minimum intensity voxel of segmented object
+	 * list of parameters compute in this method returned in tabulated format
 	 *
-	 * @return the minimum intensity voxel of segmented object
+	 * @return list of parameters compute in this method returned in tabulated format
 	 */
-	private double minIntensity() {
-		Iterator<Map.Entry<Double, Integer>> iterator     = segmentedNucleusHistogram.entrySet().iterator();
-		int                                  count        = 0;
-		double                               minIntensity = 0;
-		while (iterator.hasNext() && count == 0) {
-			Map.Entry<Double, Integer> pair = iterator.next();
-			count = pair.getValue();
-			minIntensity = pair.getKey();
-		}
-		return minIntensity;
+	public String nucleusParameter3D() {
+		NucleusFeatures features     = computeNucleusFeatures();
+		double[]        tEigenValues = features.getEigenValues();
+		return this.rawImage.getTitle() + "\t"
+		       + features.getVolume() + "\t"
+		       + tEigenValues[0] + "\t"
+		       + tEigenValues[1] + "\t"
+		       + tEigenValues[2] + "\t"
+		       + features.getFlatness() + "\t"
+		       + features.getElongation() + "\t"
+		       + features.getEquivalentSphericalRadius() + "\t"
+		       + features.getSurfaceAreaCorrected() + "\t"
+		       + features.getSphericity() + "\t"
+		       + features.getMeanIntensity() + "\t"
+		       + features.getMeanIntensityBackground() + "\t"
+		       + features.getStandardDeviationIntensity() + "\t"
+		       + features.getMinIntensity() + "\t"
+		       + features.getMaxIntensity() + "\t"
+		       + features.getMedianIntensityImage() + "\t"
+		       + features.getMedianIntensityNucleus() + "\t"
+		       + features.getMedianIntensityBackground() + "\t"
+		       + features.getNumberOfVoxels();
 	}
 	
 	
 	/**
-	 * Compute the median intensity value of raw image voxel
-	 *
-	 * @return median intensity value of raw image voxel
+	 * Histogram of intensities (0 included) filled voxel by voxel: dense table for 8 and 16-bit images, sorted values
+	 * otherwise.
 	 */
-	public double medianComputingImage() {
-		double    voxelMedianValue = 0;
-		Histogram histogram        = new Histogram();
-		histogram.run(this.rawImage);
-		Map<Double, Integer> nucleusHistogram = histogram.getHistogram();
+	private static class IntensityHistogram {
+		/** Dense counts (null if the image is not 8 or 16-bit) */
+		private final long[]   dense;
+		/** Values added (if the image is not 8 or 16-bit) */
+		private       double[] voxels;
+		/** Number of values added */
+		private       int      nbVoxels;
+		/** Sorted values, available after finish */
+		double[] values;
+		/** Number of voxels of each value, available after finish */
+		long[]   counts;
+		
 		
-		int     size      = rawImage.getHeight() * rawImage.getWidth() * rawImage.getNSlices();
-		int     increment = 0;
-		boolean even      = false;
-		for (Entry<Double, Integer> entry : nucleusHistogram.entrySet()) {
-			increment += entry.getValue();
-			if (size == 2 * increment) {
-				voxelMedianValue = entry.getKey();
-				even = true;
-			} else if (size < 2 * increment) {
-				voxelMedianValue += entry.getKey();
-				if (even) voxelMedianValue /= 2;
-				break;
+		IntensityHistogram(int bitDepth) {
+			if (bitDepth == 8 || bitDepth == 16) {
+				this.dense = new long[bitDepth == 8 ? 256 : 65536];
+			} else {
+				this.dense = null;
+				this.voxels = new double[1024];
 			}
 		}
-		return voxelMedianValue;
-	}
-	
-	
-	private double medianIntensityNucleus() {
-		double voxelMedianValue = 0;
-		int    nbNucleusVoxels  = 0;
-		for (int f : this.segmentedNucleusHistogram.values()) {
-			nbNucleusVoxels += f;
-		}
-		int     increment = 0;
-		boolean even      = false;
-		for (Map.Entry<Double, Integer> entry : segmentedNucleusHistogram.entrySet()) {
-			increment += entry.getValue();
-			if (nbNucleusVoxels == 2 * increment) {
-				voxelMedianValue = entry.getKey();
-				even = true;
-			} else if (nbNucleusVoxels < 2 * increment) {
-				voxelMedianValue += entry.getKey();
-				if (even) voxelMedianValue /= 2;
-				break;
+		
+		
+		void add(double value) {
+			if (this.dense != null) {
+				this.dense[(int) value]++;
+			} else {
+				if (this.nbVoxels == this.voxels.length) {
+					this.voxels = Arrays.copyOf(this.voxels, this.voxels.length * 2);
+				}
+				this.voxels[this.nbVoxels++] = value;
 			}
 		}
-		return voxelMedianValue;
-	}
-	
-	
-	private double medianIntensityBackground() {
-		double voxelMedianValue   = 0;
-		int    nbBackgroundVoxels = 0;
-		for (int f : this.segmentedNucleusHistogram.values()) {
-			nbBackgroundVoxels += f;
+		
+		
+		/**
+		 * Builds the histogram of the voxels of an image which are not in another histogram.
+		 *
+		 * @param imageValues sorted values > 0 of the image
+		 * @param imageCounts number of voxels of each value of the image
+		 * @param nbZeros     number of voxels at 0 in the image
+		 * @param removed     finished histogram of voxels of the image to remove
+		 *
+		 * @return finished histogram
+		 */
+		static IntensityHistogram difference(double[] imageValues,
+		                                     long[] imageCounts,
+		                                     long nbZeros,
+		                                     IntensityHistogram removed) {
+			IntensityHistogram histogram = new IntensityHistogram(0);
+			double[]           tmpValues = new double[imageValues.length + 1];
+			long[]             tmpCounts = new long[tmpValues.length];
+			int                size      = 0;
+			int                r         = 0;
+			for (int n = -1; n < imageValues.length; ++n) {
+				double value      = n == -1 ? 0 : imageValues[n];
+				long   valueCount = n == -1 ? nbZeros : imageCounts[n];
+				while (r < removed.values.length && removed.values[r] < value) {
+					r++;
+				}
+				if (r < removed.values.length && removed.values[r] == value) {
+					valueCount -= removed.counts[r];
+				}
+				if (valueCount > 0) {
+					tmpValues[size] = value;
+					tmpCounts[size++] = valueCount;
+				}
+			}
+			histogram.voxels = null;
+			histogram.values = Arrays.copyOf(tmpValues, size);
+			histogram.counts = Arrays.copyOf(tmpCounts, size);
+			return histogram;
 		}
-		int     increment = 0;
-		boolean even      = false;
-		for (Map.Entry<Double, Integer> entry : this.backgroundHistogram.entrySet()) {
-			increment += entry.getValue();
-			if (nbBackgroundVoxels == 2 * increment) {
-				voxelMedianValue = entry.getKey();
-				even = true;
-			} else if (nbBackgroundVoxels < 2 * increment) {
-				voxelMedianValue += entry.getKey();
-				if (even) voxelMedianValue /= 2;
-				break;
+		
+		
+		void finish() {
+			double[] tmpValues = new double[this.dense != null ? this.dense.length : this.nbVoxels];
+			long[]   tmpCounts = new long[tmpValues.length];
+			int      size      = 0;
+			if (this.dense != null) {
+				for (int v = 0; v < this.dense.length; ++v) {
+					if (this.dense[v] > 0) {
+						tmpValues[size] = v;
+						tmpCounts[size++] = this.dense[v];
+					}
+				}
+			} else {
+				Arrays.sort(this.voxels, 0, this.nbVoxels);
+				for (int n = 0; n < this.nbVoxels; ++n) {
+					if (size > 0 && tmpValues[size - 1] == this.voxels[n]) {
+						tmpCounts[size - 1]++;
+					} else {
+						tmpValues[size] = this.voxels[n];
+						tmpCounts[size++] = 1;
+					}
+				}
+				this.voxels = null;
 			}
+			this.values = Arrays.copyOf(tmpValues, size);
+			this.counts = Arrays.copyOf(tmpCounts, size);
 		}
-		return voxelMedianValue;
-	}
-	
-	
-	/**
-	 * list of parameters compute in this method returned in tabulated format
-	 *
-	 * @return list of parameters compute in this method returned in tabulated format
-	 */
-	public String nucleusParameter3D() {
-		String results;
-		histogramSegmentedNucleus();
-		// double volume = computeVolumeObject2(255);
 		
-		double   volume         = computeVolumeObjectML();
-		double   surfaceArea    = computeSurfaceObject(255);
-		double   surfaceAreaNew = computeComplexSurface();
-		double[] tEigenValues   = computeEigenValue3D(255);
-		results = this.rawImage.getTitle() + "\t"
-		          //  + computeVolumeObject2(255) + "\t"
-		          + computeVolumeObjectML() + "\t"
-				+ computeEigenValue3D(255)[0] + "\t"
-				+ computeEigenValue3D(255)[1] + "\t"
-				+ computeEigenValue3D(255)[2] + "\t"
-		          + computeFlatnessAndElongation(255)[0] + "\t"
-		          + computeFlatnessAndElongation(255)[1] + "\t"
-		          + equivalentSphericalRadius(volume) + "\t"
-		          + surfaceAreaNew + "\t"
-		          + computeSphericity(volume, surfaceAreaNew) + "\t"
-		          + meanIntensity() + "\t"
-		          + meanIntensityBackground() + "\t"
-		          + standardDeviationIntensity(meanIntensity()) + "\t"
-		          + minIntensity() + "\t"
-		          + maxIntensity() + "\t"
-		          + medianComputingImage() + "\t"
-		          + medianIntensityNucleus() + "\t"
-		          + medianIntensityBackground() + "\t"
-		          + this.rawImage.getHeight() * this.rawImage.getWidth() * this.rawImage.getNSlices();
-		return results;
 	}
 	
-}
\ No newline at end of file
+}
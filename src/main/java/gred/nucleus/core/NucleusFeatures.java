@@ -0,0 +1,152 @@
+package gred.nucleus.core;
+
+/**
+ * 3D parameters of a segmented nucleus computed by {@link Measure3D#computeNucleusFeatures()} in a single traversal of
+ * the raw and segmented images.
+ *
+ * @author Tristan Dubos and Axel Poulet
+ */
+public class NucleusFeatures {
+	/** Volume of the nucleus */
+	double   volume;
+	/** Eigen values of the moment matrix of the nucleus */
+	double[] eigenValues = new double[3];
+	/** Flatness of the nucleus */
+	double   flatness;
+	/** Elongation of the nucleus */
+	double   elongation;
+	/** Equivalent spherical radius of the nucleus */
+	double   equivalentSphericalRadius;
+	/** Surface of the nucleus computed from the voxel faces */
+	double   surfaceArea;
+	/** Surface of the nucleus computed from the gradient (surfels) */
+	double   surfaceAreaCorrected;
+	/** Sphericity of the nucleus computed with the corrected surface */
+	double   sphericity;
+	/** Mean intensity of the nucleus */
+	double   meanIntensity;
+	/** Mean intensity of the background */
+	double   meanIntensityBackground;
+	/** Standard deviation of the intensity of the nucleus */
+	double   standardDeviationIntensity;
+	/** Minimum intensity of the nucleus */
+	double   minIntensity;
+	/** Maximum intensity of the nucleus */
+	double   maxIntensity;
+	/** Median intensity of the raw image */
+	double   medianIntensityImage;
+	/** Median intensity of the nucleus */
+	double   medianIntensityNucleus;
+	/** Median intensity of the background */
+	double   medianIntensityBackground;
+	/** Number of voxels of the image */
+	int      numberOfVoxels;
+	
+	
+	/** Constructor used by {@link Measure3D} */
+	NucleusFeatures() {
+	}
+	
+	
+	/** @return volume of the nucleus */
+	public double getVolume() {
+		return this.volume;
+	}
+	
+	
+	/** @return eigen values of the moment matrix of the nucleus */
+	public double[] getEigenValues() {
+		return this.eigenValues.clone();
+	}
+	
+	
+	/** @return flatness of the nucleus */
+	public double getFlatness() {
+		return this.flatness;
+	}
+	
+	
+	/** @return elongation of the nucleus */
+	public double getElongation() {
+		return this.elongation;
+	}
+	
+	
+	/** @return equivalent spherical radius of the nucleus */
+	public double getEquivalentSphericalRadius() {
+		return this.equivalentSphericalRadius;
+	}
+	
+	
+	/** @return surface of the nucleus computed from the voxel faces */
+	public double getSurfaceArea() {
+		return this.surfaceArea;
+	}
+	
+	
+	/** @return surface of the nucleus computed from the gradient */
+	public double getSurfaceAreaCorrected() {
+		return this.surfaceAreaCorrected;
+	}
+	
+	
+	/** @return sphericity of the nucleus */
+	public double getSphericity() {
+		return this.sphericity;
+	}
+	
+	
+	/** @return mean intensity of the nucleus */
+	public double getMeanIntensity() {
+		return this.meanIntensity;
+	}
+	
+	
+	/** @return mean intensity of the background */
+	public double getMeanIntensityBackground() {
+		return this.meanIntensityBackground;
+	}
+	
+	
+	/** @return standard deviation of the intensity of the nucleus */
+	public double getStandardDeviationIntensity() {
+		return this.standardDeviationIntensity;
+	}
+	
+	
+	/** @return minimum intensity of the nucleus */
+	public double getMinIntensity() {
+		return this.minIntensity;
+	}
+	
+	
+	/** @return maximum intensity of the nucleus */
+	public double getMaxIntensity() {
+		return this.maxIntensity;
+	}
+	
+	
+	/** @return median intensity of the raw image */
+	public double getMedianIntensityImage() {
+		return this.medianIntensityImage;
+	}
+	
+	
+	/** @return median intensity of the nucleus */
+	public double getMedianIntensityNucleus() {
+		return this.medianIntensityNucleus;
+	}
+	
+	
+	/** @return median intensity of the background */
+	public double getMedianIntensityBackground() {
+		return this.medianIntensityBackground;
+	}
+	
+	
+	/** @return number of voxels of the image */
+	public int getNumberOfVoxels() {
+		return this.numberOfVoxels;
+	}
+	
+}
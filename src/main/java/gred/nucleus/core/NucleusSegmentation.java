@@ -10,9 +10,12 @@ import fr.igred.omero.repository.ProjectWrapper;
 import fr.igred.omero.roi.GenericShapeWrapper;
 import fr.igred.omero.roi.ROIWrapper;
 import fr.igred.omero.roi.RectangleWrapper;
+import gred.nucleus.autocrop.Box;
+import gred.nucleus.connectedcomponent.ParallelComponentsLabeling;
 import gred.nucleus.files.Directory;
 import gred.nucleus.imageprocessing.Thresholding;
 import gred.nucleus.segmentation.SegmentationParameters;
+import gred.nucleus.utils.ComponentTree;
 import gred.nucleus.utils.FillingHoles;
 import gred.nucleus.utils.Gradient;
 import gred.nucleus.utils.Histogram;
@@ -25,9 +28,10 @@ import ij.plugin.ChannelSplitter;
 import ij.plugin.Filters3D;
 import ij.plugin.GaussianBlur3D;
 import ij.plugin.filter.LutApplier;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
 import ij.process.StackConverter;
 import ij.process.StackStatistics;
-import inra.ijpb.binary.BinaryImages;
 import loci.formats.FormatException;
 import loci.plugins.BF;
 import org.slf4j.Logger;
@@ -39,9 +43,12 @@ import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map.Entry;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 /**
@@ -80,6 +87,21 @@ public class NucleusSegmentation {
 	private       String                 outputFilesPrefix;
 	/** Segmented image */
 	private       ImagePlus[]            imageSeg;
+	/** Bounding box of the segmented object (null if no object is segmented) */
+	private       Box                    objectBox;
+	/** Number of thresholds skipped because they cannot reach the minimum volume */
+	private       int                    skippedThresholds;
+	/** Number of candidate pairs ranked by both sphericities in the last sweep */
+	private       long                   rankedSphericityPairs;
+	/** Number of candidate pairs ranked differently by the voxel faces and surfels sphericities */
+	private       long                   discordantSphericityPairs;
+	/** Binary images reused by each thread to measure the candidates */
+	private final ThreadLocal<ComponentTree.MaskBuffer> maskBuffers = new ThreadLocal<ComponentTree.MaskBuffer>() {
+		@Override
+		protected ComponentTree.MaskBuffer initialValue() {
+			return new ComponentTree.MaskBuffer();
+		}
+	};
 	
 	
 	/**
@@ -221,12 +243,25 @@ public class NucleusSegmentation {
 	 * @return
 	 */
 	public String saveImageResult(ImagePlus[] segmentedImage) {
-		
-		this.measure3D =
-				new Measure3D(segmentedImage, this.imgRaw, getXCalibration(), getYCalibration(), getZCalibration());
+		/* The segmented image may have been modified (convex hull) since the segmentation */
+		this.objectBox = Measure3D.computeBoundingBox(segmentedImage[0]);
+		this.measure3D = new Measure3D(segmentedImage,
+		                               this.imgRaw,
+		                               getXCalibration(),
+		                               getYCalibration(),
+		                               getZCalibration(),
+		                               this.objectBox);
 		return this.measure3D.nucleusParameter3D();
-		
-		
+	}
+	
+	
+	/**
+	 * Getter for the bounding box of the segmented object, used to restrict the measures to this box
+	 *
+	 * @return bounding box of the segmented object, null if no object is segmented
+	 */
+	public Box getObjectBoundingBox() {
+		return this.objectBox;
 	}
 	
 	
@@ -261,64 +296,512 @@ public class NucleusSegmentation {
 		LOGGER.info("Finding OTSU to maximize sphericity.");
 		double imageVolume = getVoxelVolume() * this.imgRaw.getWidth() *
 		                     this.imgRaw.getHeight() * this.imgRaw.getStackSize();
-		Gradient gradient       = new Gradient(this.imgRaw);
-		double   bestSphericity = -1;
+		Gradient    gradient       = new Gradient(this.imgRaw);
+		Calibration cal            = computeSegmentationCalibration();
+		double      bestSphericity = -1;
 		List<Integer> arrayListThreshold = computeMinMaxThreshold(
 				this.imgRawTransformed);  // methode OTSU
-		for (int t = arrayListThreshold.get(0); t <= arrayListThreshold.get(1); ++t) {
-			ImagePlus tempSeg;
-			tempSeg = generateSegmentedImage(this.imgRawTransformed, t);
-			
-			tempSeg = BinaryImages.componentsLabeling(tempSeg, 26, 32);
-			Calibration cal = this.imgRaw.getCalibration();
-			if (this.segmentationParameters.getManualParameter()) {
-				//TODO ADD UNITS
-				cal.setXUnit("µm");
-				cal.pixelWidth = this.segmentationParameters.getXCal();
-				cal.setYUnit("µm");
-				cal.pixelHeight = this.segmentationParameters.getYCal();
-				cal.setZUnit("µm");
-				cal.pixelDepth = this.segmentationParameters.getZCal();
-			} else {
-				cal.setXUnit("µm");
-				cal.pixelWidth = this.imgRaw.getCalibration().pixelWidth;
-				cal.setYUnit("µm");
-				cal.pixelHeight = this.imgRaw.getCalibration().pixelHeight;
-				cal.setZUnit("µm");
-				cal.pixelDepth = this.imgRaw.getCalibration().pixelDepth;
-			}
-			tempSeg.setCalibration(cal);
-			ImagePlus[] tempSegPlus = new ImagePlus[1];
-			tempSegPlus[0] = tempSeg;
-			Measure3D measure = new Measure3D(tempSegPlus,
-			                                  this.imgRawTransformed,
-			                                  getXCalibration(),
-			                                  getYCalibration(),
-			                                  getZCalibration());
-			deleteArtefact(tempSeg);
-			double  volume     = measure.computeVolumeObject2(255);
-			boolean firstStack = isVoxelThresholded(tempSeg, 255, 0);
-			boolean lastStack  = isVoxelThresholded(tempSeg, 255, tempSeg.getStackSize() - 1);
-			if (testRelativeObjectVolume(volume, imageVolume) &&
-			    volume >= this.segmentationParameters.getMinVolumeNucleus() &&
-			    volume <= this.segmentationParameters.getMaxVolumeNucleus() &&
-			    !firstStack && !lastStack) {
-				
-				double sphericity =
-						measure.computeSphericity(volume, measure.computeComplexSurface(tempSeg, gradient));
-				if (sphericity > bestSphericity) {
-					this.bestThreshold = t;
-					bestSphericity = sphericity;
-					this.imageSeg = tempSegPlus;
-					this.imageSeg[0].setTitle(this.imgRawTransformed.getTitle());
-				}
+		int firstThreshold = arrayListThreshold.get(0);
+		int lastThreshold  = arrayListThreshold.get(1);
+		
+		int lastFeasibleThreshold = computeLastFeasibleThreshold(firstThreshold, lastThreshold);
+		this.skippedThresholds = Math.max(0, lastThreshold - lastFeasibleThreshold);
+		LOGGER.info("Thresholds {} to {}: {} skipped (minimum volume unreachable).",
+		             firstThreshold, lastThreshold, this.skippedThresholds);
+		lastThreshold = Math.min(lastThreshold, lastFeasibleThreshold);
+		
+		ThresholdResult[]    results = null;
+		SphericityCurveCache cache   = null;
+		if (this.segmentationParameters.getSphericityCache()) {
+			cache = new SphericityCurveCache(new File(this.segmentationParameters.getOutputFolder() + "SphericityCache"),
+			                                 SphericityCurveCache.computeKey(this.imgRaw,
+			                                                                 this.imgRawTransformed,
+			                                                                 getXCalibration(),
+			                                                                 getYCalibration(),
+			                                                                 getZCalibration()));
+			results = selectCachedCandidates(cache.load(firstThreshold, lastThreshold), imageVolume);
+			if (results != null) {
+				LOGGER.info("Sphericity curve read from {}.", cache.getCacheFile());
+			}
+		}
+		ComponentTree tree = null;
+		if (results == null) {
+			results = new ThresholdResult[Math.max(0, lastThreshold - firstThreshold + 1)];
+			if (results.length > 0) {
+				/* The nested level sets of all the thresholds are described in a single pass */
+				tree = new ComponentTree(this.imgRawTransformed, firstThreshold, lastThreshold);
+				sweepThresholds(tree, firstThreshold, imageVolume, cal, gradient, results);
+			}
+			if (cache != null) {
+				cache.save(results);
+			}
+		}
+		compareSphericityRankings(results);
+		
+		/* Results are read in increasing threshold order so the lowest threshold wins ties, as in a serial sweep */
+		for (ThresholdResult result : results) {
+			if (result.isCandidate() && result.getSphericity() > bestSphericity) {
+				this.bestThreshold = result.getThreshold();
+				bestSphericity = result.getSphericity();
 			}
 		}
 		
 		if (this.bestThreshold != -1) {
+			if (tree == null) {
+				/* Curve read from the cache: only the selected threshold is needed */
+				tree = new ComponentTree(this.imgRawTransformed, this.bestThreshold, this.bestThreshold);
+			}
+			ImagePlus tempSeg = segmentLargestObject(tree, this.bestThreshold, cal);
+			tempSeg.setTitle(this.imgRawTransformed.getTitle());
+			this.imageSeg = new ImagePlus[]{tempSeg};
 			morphologicalCorrection(this.imageSeg[0]);
 			checkBorder(this.imageSeg[0]);
+			this.objectBox = Measure3D.computeBoundingBox(this.imageSeg[0]);
+		}
+	}
+	
+	
+	/**
+	 * Finds the highest threshold for which the voxels above the threshold can reach the minimum volume, using the
+	 * cumulative histogram of the transformed image. The largest object is a subset of these voxels and their number
+	 * decreases with the threshold, so the higher thresholds cannot give a nucleus and do not need to be tested.
+	 *
+	 * @param firstThreshold lowest threshold of the sweep
+	 * @param lastThreshold  highest threshold of the sweep
+	 *
+	 * @return highest feasible threshold (firstThreshold - 1 if none is feasible)
+	 */
+	private int computeLastFeasibleThreshold(int firstThreshold, int lastThreshold) {
+		Histogram histogram = new Histogram();
+		histogram.run(this.imgRawTransformed);
+		double[] labels           = histogram.getLabels();
+		long[]   cumulativeCounts = histogram.getCumulativeCounts();
+		long     totalCount       = histogram.getTotalCount();
+		double   xCalibration     = getXCalibration();
+		double   yCalibration     = getYCalibration();
+		double   zCalibration     = getZCalibration();
+		
+		int lastFeasible = firstThreshold - 1;
+		int index        = 0;
+		for (int t = firstThreshold; t <= lastThreshold; ++t) {
+			while (index < labels.length && labels[index] < t) {
+				index++;
+			}
+			long nbVoxelsAbove = index > 0 ? totalCount - cumulativeCounts[index - 1] : totalCount;
+			/* Voxels at 0 are not counted in the histogram: thresholds <= 0 are always kept */
+			if (t > 0 && nbVoxelsAbove * xCalibration * yCalibration * zCalibration <
+			             this.segmentationParameters.getMinVolumeNucleus()) {
+				break;
+			}
+			lastFeasible = t;
+		}
+		return lastFeasible;
+	}
+	
+	
+	/**
+	 * Tests all the thresholds of the component tree, in parallel. With K > 0 candidates refined, the candidates are
+	 * first scored with their voxel faces sphericity, then the surfels sphericity is computed for the K best ones.
+	 *
+	 * @param tree           component tree of the transformed image
+	 * @param firstThreshold threshold stored at index 0 of the results
+	 * @param imageVolume    volume of the whole image
+	 * @param cal            calibration of the segmented images
+	 * @param gradient       gradient of the raw image
+	 * @param results        results of the thresholds, filled by this method
+	 */
+	private void sweepThresholds(ComponentTree tree,
+	                             int firstThreshold,
+	                             double imageVolume,
+	                             Calibration cal,
+	                             Gradient gradient,
+	                             ThresholdResult[] results) {
+		int[] thresholds = new int[results.length];
+		for (int n = 0; n < thresholds.length; ++n) {
+			thresholds[n] = firstThreshold + n;
+		}
+		/* With K > 0, the candidates are first scored with their voxel faces only */
+		int     nbExactCandidates = this.segmentationParameters.getSphericityCandidates();
+		boolean twoPhases         = nbExactCandidates > 0;
+		
+		int          nThreads = Math.min(this.segmentationParameters.getNumberOfThreads(), results.length);
+		ForkJoinPool pool     = new ForkJoinPool(Math.max(1, nThreads));
+		try {
+			pool.invoke(new ThresholdSweep(thresholds, 0, thresholds.length, firstThreshold, !twoPhases,
+			                               tree, imageVolume, cal, gradient, results));
+			if (twoPhases) {
+				int[] bestCandidates = selectBestFaceCandidates(results, nbExactCandidates);
+				LOGGER.info("Surfels sphericity computed for the {} best candidates.", bestCandidates.length);
+				pool.invoke(new ThresholdSweep(bestCandidates, 0, bestCandidates.length, firstThreshold, true,
+				                               tree, imageVolume, cal, gradient, results));
+			}
+		} finally {
+			pool.shutdown();
+			/* The calling thread may have measured some candidates */
+			this.maskBuffers.remove();
+		}
+	}
+	
+	
+	/**
+	 * Selects the candidates of a cached sphericity curve with the current volume bounds, and checks that the
+	 * sphericities needed to choose the best threshold were computed by the previous run.
+	 *
+	 * @param cachedResults results read from the cache (null if there is none)
+	 * @param imageVolume   volume of the whole image
+	 *
+	 * @return results with the current candidates, null if the cached curve can't be used
+	 */
+	private ThresholdResult[] selectCachedCandidates(ThresholdResult[] cachedResults, double imageVolume) {
+		if (cachedResults == null) {
+			return null;
+		}
+		ThresholdResult[] results = new ThresholdResult[cachedResults.length];
+		for (int n = 0; n < cachedResults.length; ++n) {
+			ThresholdResult cached = cachedResults[n];
+			boolean candidate = isNucleusCandidate(cached.getVolume(),
+			                                       imageVolume,
+			                                       cached.isOnFirstSlice(),
+			                                       cached.isOnLastSlice());
+			if (candidate && cached.getFaceSphericity() < 0) {
+				/* Not a candidate in the previous run */
+				return null;
+			}
+			results[n] = new ThresholdResult(cached.getThreshold(),
+			                                 cached.getVolume(),
+			                                 cached.isOnFirstSlice(),
+			                                 cached.isOnLastSlice(),
+			                                 candidate,
+			                                 candidate ? cached.getFaceSphericity() : -1,
+			                                 candidate ? cached.getSphericity() : -1);
+		}
+		
+		/* Only the candidates which would be refined in this run keep their surfels sphericity */
+		int       nbExactCandidates = this.segmentationParameters.getSphericityCandidates();
+		boolean[] refined           = new boolean[results.length];
+		if (nbExactCandidates > 0) {
+			for (int t : selectBestFaceCandidates(results, nbExactCandidates)) {
+				refined[t - results[0].getThreshold()] = true;
+			}
+		} else {
+			for (int n = 0; n < results.length; ++n) {
+				refined[n] = results[n].isCandidate();
+			}
+		}
+		for (int n = 0; n < results.length; ++n) {
+			ThresholdResult result = results[n];
+			if (refined[n] && result.getSphericity() < 0) {
+				/* Not refined in the previous run */
+				return null;
+			} else if (!refined[n] && result.isCandidate()) {
+				results[n] = new ThresholdResult(result.getThreshold(),
+				                                 result.getVolume(),
+				                                 result.isOnFirstSlice(),
+				                                 result.isOnLastSlice(),
+				                                 true,
+				                                 result.getFaceSphericity(),
+				                                 -1);
+			}
+		}
+		return results;
+	}
+	
+	
+	/**
+	 * Selects the candidates with the highest voxel faces sphericity. Ties are won by the lowest threshold.
+	 *
+	 * @param results           results of the thresholds
+	 * @param nbExactCandidates maximum number of candidates to select
+	 *
+	 * @return thresholds of the selected candidates
+	 */
+	private static int[] selectBestFaceCandidates(ThresholdResult[] results, int nbExactCandidates) {
+		List<ThresholdResult> candidates = new ArrayList<>();
+		for (ThresholdResult result : results) {
+			if (result.isCandidate()) {
+				candidates.add(result);
+			}
+		}
+		Collections.sort(candidates, new Comparator<ThresholdResult>() {
+			@Override
+			public int compare(ThresholdResult r1, ThresholdResult r2) {
+				int comparison = Double.compare(r2.getFaceSphericity(), r1.getFaceSphericity());
+				return comparison != 0 ? comparison : Integer.compare(r1.getThreshold(), r2.getThreshold());
+			}
+		});
+		int[] thresholds = new int[Math.min(nbExactCandidates, candidates.size())];
+		for (int n = 0; n < thresholds.length; ++n) {
+			thresholds[n] = candidates.get(n).getThreshold();
+		}
+		return thresholds;
+	}
+	
+	
+	/**
+	 * Compares the rankings given by the voxel faces and surfels sphericities on the candidates where both were
+	 * computed (all the candidates when every candidate is refined): counts the pairs ordered differently and checks
+	 * if the best candidate is the same.
+	 *
+	 * @param results results of the thresholds
+	 */
+	private void compareSphericityRankings(ThresholdResult[] results) {
+		List<ThresholdResult> scored = new ArrayList<>();
+		for (ThresholdResult result : results) {
+			if (result.isCandidate() && result.getSphericity() >= 0) {
+				scored.add(result);
+			}
+		}
+		this.rankedSphericityPairs = 0;
+		this.discordantSphericityPairs = 0;
+		int bestFace  = -1;
+		int bestExact = -1;
+		for (int n = 0; n < scored.size(); ++n) {
+			ThresholdResult r1 = scored.get(n);
+			if (bestFace == -1 || r1.getFaceSphericity() > scored.get(bestFace).getFaceSphericity()) {
+				bestFace = n;
+			}
+			if (bestExact == -1 || r1.getSphericity() > scored.get(bestExact).getSphericity()) {
+				bestExact = n;
+			}
+			for (int m = n + 1; m < scored.size(); ++m) {
+				ThresholdResult r2 = scored.get(m);
+				this.rankedSphericityPairs++;
+				if (Integer.signum(Double.compare(r1.getFaceSphericity(), r2.getFaceSphericity())) !=
+				    Integer.signum(Double.compare(r1.getSphericity(), r2.getSphericity()))) {
+					this.discordantSphericityPairs++;
+				}
+			}
+		}
+		if (!scored.isEmpty()) {
+			LOGGER.info("Sphericity rankings: {}/{} candidate pairs discordant, best threshold {} (faces) / {} (surfels).",
+			            this.discordantSphericityPairs, this.rankedSphericityPairs,
+			            scored.get(bestFace).getThreshold(), scored.get(bestExact).getThreshold());
+		}
+	}
+	
+	
+	/**
+	 * Getter for the number of candidate pairs ranked by both sphericities in the last sweep
+	 *
+	 * @return number of candidate pairs
+	 */
+	public long getRankedSphericityPairs() {
+		return this.rankedSphericityPairs;
+	}
+	
+	
+	/**
+	 * Getter for the number of candidate pairs ranked differently by the voxel faces and surfels sphericities in the
+	 * last sweep
+	 *
+	 * @return number of discordant candidate pairs
+	 */
+	public long getDiscordantSphericityPairs() {
+		return this.discordantSphericityPairs;
+	}
+	
+	
+	/**
+	 * Getter for the number of thresholds skipped by the last sweep
+	 *
+	 * @return number of thresholds which could not reach the minimum volume
+	 */
+	public int getSkippedThresholds() {
+		return this.skippedThresholds;
+	}
+	
+	
+	/**
+	 * Sets the calibration of the raw image (in µm) used by the segmented images: the manual calibration if it is
+	 * present in the parameters of the analyse, the metadata of the image otherwise.
+	 *
+	 * @return calibration of the raw image
+	 */
+	private Calibration computeSegmentationCalibration() {
+		Calibration cal = this.imgRaw.getCalibration();
+		if (this.segmentationParameters.getManualParameter()) {
+			//TODO ADD UNITS
+			cal.setXUnit("µm");
+			cal.pixelWidth = this.segmentationParameters.getXCal();
+			cal.setYUnit("µm");
+			cal.pixelHeight = this.segmentationParameters.getYCal();
+			cal.setZUnit("µm");
+			cal.pixelDepth = this.segmentationParameters.getZCal();
+		} else {
+			cal.setXUnit("µm");
+			cal.setYUnit("µm");
+			cal.setZUnit("µm");
 		}
+		return cal;
+	}
+	
+	
+	/**
+	 * Builds the segmented image of the largest connected component of a threshold (32-bit, at 255 on a background at
+	 * 0), from the component tree: the transformed image is not binarised and labelled again.
+	 *
+	 * @param tree      component tree of the transformed image (only read)
+	 * @param threshold threshold value for the segmentation
+	 * @param cal       calibration given to the segmented image (only read)
+	 *
+	 * @return segmented image of the largest object
+	 */
+	private ImagePlus segmentLargestObject(ComponentTree tree, int threshold, Calibration cal) {
+		ImagePlus  mask        = tree.getLargestComponentMask(threshold);
+		ImageStack maskStack   = mask.getStack();
+		ImageStack objectStack = new ImageStack(mask.getWidth(), mask.getHeight());
+		for (int k = 1; k <= maskStack.getSize(); ++k) {
+			byte[]  maskPixels   = (byte[]) maskStack.getPixels(k);
+			float[] objectPixels = new float[maskPixels.length];
+			for (int n = 0; n < maskPixels.length; ++n) {
+				objectPixels[n] = maskPixels[n] & 0xff;
+			}
+			objectStack.addSlice(new FloatProcessor(mask.getWidth(), mask.getHeight(), objectPixels));
+		}
+		ImagePlus tempSeg = new ImagePlus("", objectStack);
+		tempSeg.setCalibration(cal);
+		return tempSeg;
+	}
+	
+	
+	/**
+	 * Tests one threshold from the component tree: reads the volume of the largest object and its contact with the
+	 * first and last slices and, if it is a valid nucleus candidate, its sphericity from its voxel faces. If requested,
+	 * builds its binary image to compute its sphericity from the surfels.
+	 *
+	 * @param tree         component tree of the transformed image (only read)
+	 * @param threshold    threshold value to test
+	 * @param imageVolume  volume of the whole image
+	 * @param cal          calibration of the segmented images (only read)
+	 * @param gradient     gradient of the raw image (only read)
+	 * @param exactSurface true to compute the surfels sphericity of a candidate
+	 *
+	 * @return result of the threshold
+	 */
+	private ThresholdResult evaluateThreshold(ComponentTree tree,
+	                                          int threshold,
+	                                          double imageVolume,
+	                                          Calibration cal,
+	                                          Gradient gradient,
+	                                          boolean exactSurface) {
+		double    xCalibration = getXCalibration();
+		double    yCalibration = getYCalibration();
+		double    zCalibration = getZCalibration();
+		Measure3D measure      = new Measure3D(xCalibration, yCalibration, zCalibration);
+		int       nbVoxels     = tree.getLargestComponentSize(threshold);
+		double    volume       = nbVoxels * xCalibration * yCalibration * zCalibration;
+		boolean   firstStack   = tree.getFirstSliceVoxels(threshold) >= 10;
+		boolean   lastStack    = tree.getLastSliceVoxels(threshold) >= 10;
+		boolean   candidate    = nbVoxels > 0 && isNucleusCandidate(volume, imageVolume, firstStack, lastStack);
+		double faceSphericity = -1;
+		double sphericity     = -1;
+		if (candidate) {
+			faceSphericity = measure.computeSphericity(volume, tree.getFaceSurface(threshold,
+			                                                                       xCalibration,
+			                                                                       yCalibration,
+			                                                                       zCalibration));
+			if (exactSurface) {
+				ImagePlus tempSeg = tree.getLargestComponentMask(threshold, this.maskBuffers.get());
+				tempSeg.setCalibration(cal);
+				int[] box          = tree.getBoundingBox(threshold);
+				Box   componentBox = new Box(box[0], box[3], box[1], box[4], box[2], box[5]);
+				sphericity = measure.computeSphericity(volume,
+				                                       measure.computeComplexSurface(tempSeg, gradient, componentBox));
+			}
+		}
+		return new ThresholdResult(threshold, volume, firstStack, lastStack, candidate, faceSphericity, sphericity);
+	}
+	
+	
+	/**
+	 * Checks if the largest object of a threshold can be the nucleus: volume within the bounds of the analyse and below
+	 * 70% of the image, and no contact with the first and last slices.
+	 *
+	 * @param volume      volume of the object
+	 * @param imageVolume volume of the whole image
+	 * @param firstStack  true if the object touches the first slice
+	 * @param lastStack   true if the object touches the last slice
+	 *
+	 * @return true if the object is a nucleus candidate
+	 */
+	private boolean isNucleusCandidate(double volume, double imageVolume, boolean firstStack, boolean lastStack) {
+		return volume > 0 &&
+		       testRelativeObjectVolume(volume, imageVolume) &&
+		       volume >= this.segmentationParameters.getMinVolumeNucleus() &&
+		       volume <= this.segmentationParameters.getMaxVolumeNucleus() &&
+		       !firstStack && !lastStack;
+	}
+	
+	
+	/**
+	 * Fork/join task testing a range of a list of thresholds. Each threshold is tested independently and its result is
+	 * stored at its own index, so the selection of the best threshold does not depend on the order of execution.
+	 */
+	private class ThresholdSweep extends RecursiveAction {
+		/** Number of thresholds under which the range is tested sequentially */
+		private static final int SEQUENTIAL_THRESHOLDS = 2;
+		
+		/** Thresholds to test */
+		private final int[]             thresholds;
+		/** First index of the range in the thresholds (included) */
+		private final int               start;
+		/** Last index of the range in the thresholds (excluded) */
+		private final int               end;
+		/** Threshold stored at index 0 of the results */
+		private final int               offset;
+		/** True to compute the surfels sphericity of the candidates */
+		private final boolean           exactSurface;
+		/** Component tree shared by the tasks (only read) */
+		private final ComponentTree     tree;
+		/** Volume of the whole image */
+		private final double            imageVolume;
+		/** Calibration shared by the tasks (only read) */
+		private final Calibration       cal;
+		/** Gradient shared by the tasks (only read) */
+		private final Gradient          gradient;
+		/** Results indexed by threshold - offset */
+		private final ThresholdResult[] results;
+		
+		
+		ThresholdSweep(int[] thresholds,
+		               int start,
+		               int end,
+		               int offset,
+		               boolean exactSurface,
+		               ComponentTree tree,
+		               double imageVolume,
+		               Calibration cal,
+		               Gradient gradient,
+		               ThresholdResult[] results) {
+			this.thresholds = thresholds;
+			this.start = start;
+			this.end = end;
+			this.offset = offset;
+			this.exactSurface = exactSurface;
+			this.tree = tree;
+			this.imageVolume = imageVolume;
+			this.cal = cal;
+			this.gradient = gradient;
+			this.results = results;
+		}
+		
+		
+		@Override
+		protected void compute() {
+			if (end - start <= SEQUENTIAL_THRESHOLDS) {
+				for (int n = start; n < end; ++n) {
+					int t = thresholds[n];
+					results[t - offset] = evaluateThreshold(tree, t, imageVolume, cal, gradient, exactSurface);
+				}
+			} else {
+				int middle = (start + end) >>> 1;
+				invokeAll(new ThresholdSweep(thresholds, start, middle, offset, exactSurface,
+				                             tree, imageVolume, cal, gradient, results),
+				          new ThresholdSweep(thresholds, middle, end, offset, exactSurface,
+				                             tree, imageVolume, cal, gradient, results));
+			}
+		}
+		
 	}
 	
 	
@@ -383,9 +866,11 @@ public class NucleusSegmentation {
 		Gradient      gradient           = new Gradient(imagePlusInput);
 		ImagePlus     imagePlusSegmented = new ImagePlus();
 		List<Integer> arrayListThreshold = computeMinMaxThreshold(imagePlusInput);
+		int           nThreads           = this.segmentationParameters.getNumberOfThreads();
 		for (int t = arrayListThreshold.get(0); t <= arrayListThreshold.get(1); ++t) {
 			ImagePlus imagePlusSegmentedTemp = generateSegmentedImage(imagePlusInput, t);
-			imagePlusSegmentedTemp = BinaryImages.componentsLabeling(imagePlusSegmentedTemp, 26, 32);
+			imagePlusSegmentedTemp =
+					ParallelComponentsLabeling.componentsLabeling(imagePlusSegmentedTemp, 26, 32, nThreads);
 			deleteArtefact(imagePlusSegmentedTemp);
 			imagePlusSegmentedTemp.setCalibration(calibration);
 			volume = measure.computeVolumeObject(imagePlusSegmentedTemp, 255);
@@ -427,23 +912,22 @@ public class NucleusSegmentation {
 	 * @return segmented image of the nucleus
 	 */
 	public ImagePlus generateSegmentedImage(ImagePlus imagePlusInput, int threshold) {
-		ImageStack imageStackInput    = imagePlusInput.getStack();
-		ImagePlus  imagePlusSegmented = imagePlusInput.duplicate();
-		imagePlusSegmented.setTitle(imagePlusInput.getTitle());
-		ImageStack imageStackSegmented = imagePlusSegmented.getStack();
-		for (int k = 0; k < imagePlusInput.getStackSize(); ++k) {
-			for (int i = 0; i < imagePlusInput.getWidth(); ++i) {
-				for (int j = 0; j < imagePlusInput.getHeight(); ++j) {
-					double voxelValue = imageStackInput.getVoxel(i, j, k);
-					if (voxelValue >= threshold) {
-						imageStackSegmented.setVoxel(i, j, k, 255);
-					} else {
-						imageStackSegmented.setVoxel(i, j, k, 0);
-					}
+		ImageStack imageStackInput     = imagePlusInput.getStack();
+		ImageStack imageStackSegmented = new ImageStack(imagePlusInput.getWidth(), imagePlusInput.getHeight());
+		for (int k = 1; k <= imagePlusInput.getStackSize(); ++k) {
+			ImageProcessor processorInput     = imageStackInput.getProcessor(k);
+			ImageProcessor processorSegmented = processorInput.createProcessor(imagePlusInput.getWidth(),
+			                                                                   imagePlusInput.getHeight());
+			for (int n = 0; n < processorInput.getPixelCount(); ++n) {
+				if (processorInput.getf(n) >= threshold) {
+					processorSegmented.setf(n, 255);
 				}
 			}
+			imageStackSegmented.addSlice(processorSegmented);
 		}
-		
+		ImagePlus imagePlusSegmented = imagePlusInput.createImagePlus();
+		imagePlusSegmented.setStack(imageStackSegmented);
+		imagePlusSegmented.setTitle(imagePlusInput.getTitle());
 		return imagePlusSegmented;
 	}
 	
@@ -535,14 +1019,12 @@ public class NucleusSegmentation {
 	private boolean isVoxelThresholded(ImagePlus imagePlusSegmented,
 	                                   int threshold,
 	                                   int stackIndex) {
-		boolean    voxelThresolded     = false;
-		int        nbVoxelThresholded  = 0;
-		ImageStack imageStackSegmented = imagePlusSegmented.getStack();
-		for (int i = 0; i < imagePlusSegmented.getWidth(); ++i) {
-			for (int j = 0; j < imagePlusSegmented.getHeight(); ++j) {
-				if (imageStackSegmented.getVoxel(i, j, stackIndex) >= threshold) {
-					nbVoxelThresholded++;
-				}
+		boolean        voxelThresolded    = false;
+		int            nbVoxelThresholded = 0;
+		ImageProcessor processor          = imagePlusSegmented.getStack().getProcessor(stackIndex + 1);
+		for (int n = 0; n < processor.getPixelCount(); ++n) {
+			if (processor.getf(n) >= threshold) {
+				nbVoxelThresholded++;
 			}
 		}
 		if (nbVoxelThresholded >= 10) {
@@ -630,18 +1112,15 @@ public class NucleusSegmentation {
 	 * @param imgSeg ImagePlus of the segmented image
 	 */
 	private void deleteArtefact(ImagePlus imgSeg) {
-		double     voxelValue;
 		double     mode            = getLabelOfLargestObject(imgSeg);
 		ImageStack imageStackInput = imgSeg.getStack();
-		for (int k = 0; k < imgSeg.getNSlices(); ++k) {
-			for (int i = 0; i < imgSeg.getWidth(); ++i) {
-				for (int j = 0; j < imgSeg.getHeight(); ++j) {
-					voxelValue = imageStackInput.getVoxel(i, j, k);
-					if (voxelValue == mode) {
-						imageStackInput.setVoxel(i, j, k, 255);
-					} else {
-						imageStackInput.setVoxel(i, j, k, 0);
-					}
+		for (int k = 1; k <= imgSeg.getNSlices(); ++k) {
+			ImageProcessor processor = imageStackInput.getProcessor(k);
+			for (int n = 0; n < processor.getPixelCount(); ++n) {
+				if (processor.getf(n) == mode) {
+					processor.setf(n, 255);
+				} else {
+					processor.setf(n, 0);
 				}
 			}
 		}
@@ -658,14 +1137,14 @@ public class NucleusSegmentation {
 	private double getLabelOfLargestObject(ImagePlus imgSeg) {
 		Histogram histogram = new Histogram();
 		histogram.run(imgSeg);
-		double labelMax   = 0;
-		double nbVoxelMax = -1;
-		for (Entry<Double, Integer> entry : histogram.getHistogram().entrySet()) {
-			double label   = entry.getKey();
-			int    nbVoxel = entry.getValue();
-			if (nbVoxel > nbVoxelMax) {
-				nbVoxelMax = nbVoxel;
-				labelMax = label;
+		double[] labels     = histogram.getLabels();
+		long[]   nbVoxels   = histogram.getCounts();
+		double   labelMax   = 0;
+		double   nbVoxelMax = -1;
+		for (int i = 0; i < labels.length; ++i) {
+			if (nbVoxels[i] > nbVoxelMax) {
+				nbVoxelMax = nbVoxels[i];
+				labelMax = labels[i];
 			}
 		}
 		return labelMax;
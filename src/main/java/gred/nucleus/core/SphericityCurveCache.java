@@ -0,0 +1,206 @@
+package gred.nucleus.core;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Persistent cache of the sphericity curve of an image: the result of each threshold tested by
+ * {@link NucleusSegmentation#findOTSUMaximisingSphericity()} (volume, contact with the first and last slices,
+ * sphericities).
+ * <p>
+ * The curve is stored in a text file named after a hash of the content of the raw and transformed images and of the
+ * calibration, so a new run on the same image can select the best threshold again without testing the thresholds. The
+ * volume bounds are not part of the key: the candidates are selected again from the cached volumes.
+ *
+ * @author Tristan Dubos and Axel Poulet
+ */
+public class SphericityCurveCache {
+	/** Logger */
+	private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+	
+	/** Header of the cache files */
+	private static final String HEADER = "#threshold\tvolume\tonFirstSlice\tonLastSlice\tcandidate\t" +
+	                                     "faceSphericity\tsphericity";
+	
+	/** File of the curve */
+	private final File cacheFile;
+	
+	
+	/**
+	 * Constructor
+	 *
+	 * @param cacheDirectory directory of the cache files
+	 * @param key            key of the curve (see {@link #computeKey(ImagePlus, ImagePlus, double, double, double)})
+	 */
+	public SphericityCurveCache(File cacheDirectory, String key) {
+		this.cacheFile = new File(cacheDirectory, key + ".txt");
+	}
+	
+	
+	/**
+	 * Computes the key of a curve: SHA-256 hash of the voxels of the raw and transformed images and of the calibration.
+	 *
+	 * @param imgRaw            raw image (used for the gradient)
+	 * @param imgRawTransformed transformed image (thresholded)
+	 * @param xCalibration      x calibration
+	 * @param yCalibration      y calibration
+	 * @param zCalibration      z calibration
+	 *
+	 * @return hexadecimal key
+	 */
+	public static String computeKey(ImagePlus imgRaw,
+	                                ImagePlus imgRawTransformed,
+	                                double xCalibration,
+	                                double yCalibration,
+	                                double zCalibration) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+		updateDigest(digest, imgRaw);
+		updateDigest(digest, imgRawTransformed);
+		ByteBuffer calibration = ByteBuffer.allocate(3 * Double.BYTES);
+		calibration.putDouble(xCalibration).putDouble(yCalibration).putDouble(zCalibration);
+		digest.update(calibration.array());
+		
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest()) {
+			key.append(String.format("%02x", b));
+		}
+		return key.toString();
+	}
+	
+	
+	/**
+	 * Adds the size and the voxels of an image to a hash.
+	 *
+	 * @param digest    hash
+	 * @param imagePlus image
+	 */
+	private static void updateDigest(MessageDigest digest, ImagePlus imagePlus) {
+		ImageStack imageStack = imagePlus.getStack();
+		ByteBuffer size       = ByteBuffer.allocate(4 * Integer.BYTES);
+		size.putInt(imagePlus.getWidth())
+		    .putInt(imagePlus.getHeight())
+		    .putInt(imagePlus.getStackSize())
+		    .putInt(imagePlus.getBitDepth());
+		digest.update(size.array());
+		for (int k = 1; k <= imagePlus.getStackSize(); ++k) {
+			Object pixels = imageStack.getPixels(k);
+			if (pixels instanceof byte[]) {
+				digest.update((byte[]) pixels);
+			} else if (pixels instanceof short[]) {
+				ByteBuffer buffer = ByteBuffer.allocate(((short[]) pixels).length * Short.BYTES);
+				buffer.asShortBuffer().put((short[]) pixels);
+				digest.update(buffer.array());
+			} else if (pixels instanceof float[]) {
+				ByteBuffer buffer = ByteBuffer.allocate(((float[]) pixels).length * Float.BYTES);
+				buffer.asFloatBuffer().put((float[]) pixels);
+				digest.update(buffer.array());
+			} else if (pixels instanceof int[]) {
+				ByteBuffer buffer = ByteBuffer.allocate(((int[]) pixels).length * Integer.BYTES);
+				buffer.asIntBuffer().put((int[]) pixels);
+				digest.update(buffer.array());
+			}
+		}
+	}
+	
+	
+	/**
+	 * Loads the results of a range of thresholds.
+	 *
+	 * @param firstThreshold first threshold of the range
+	 * @param lastThreshold  last threshold of the range
+	 *
+	 * @return results indexed by threshold - firstThreshold, null if the cache does not contain all the thresholds
+	 */
+	public ThresholdResult[] load(int firstThreshold, int lastThreshold) {
+		if (!this.cacheFile.isFile()) {
+			return null;
+		}
+		Map<Integer, ThresholdResult> cachedResults = new HashMap<>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(this.cacheFile))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\t");
+				ThresholdResult result = new ThresholdResult(Integer.parseInt(fields[0]),
+				                                             Double.parseDouble(fields[1]),
+				                                             Boolean.parseBoolean(fields[2]),
+				                                             Boolean.parseBoolean(fields[3]),
+				                                             Boolean.parseBoolean(fields[4]),
+				                                             Double.parseDouble(fields[5]),
+				                                             Double.parseDouble(fields[6]));
+				cachedResults.put(result.getThreshold(), result);
+			}
+		} catch (IOException | RuntimeException e) {
+			LOGGER.warn("{}: can't read the sphericity cache, the thresholds will be tested.", this.cacheFile, e);
+			return null;
+		}
+		ThresholdResult[] results = new ThresholdResult[Math.max(0, lastThreshold - firstThreshold + 1)];
+		for (int t = firstThreshold; t <= lastThreshold; ++t) {
+			results[t - firstThreshold] = cachedResults.get(t);
+			if (results[t - firstThreshold] == null) {
+				return null;
+			}
+		}
+		return results;
+	}
+	
+	
+	/**
+	 * Saves the results of the thresholds, replacing the previous curve.
+	 *
+	 * @param results results of the thresholds
+	 */
+	public void save(ThresholdResult[] results) {
+		File cacheDirectory = this.cacheFile.getParentFile();
+		if (cacheDirectory != null && !cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+			LOGGER.warn("{}: can't create the sphericity cache directory.", cacheDirectory);
+			return;
+		}
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(this.cacheFile))) {
+			writer.write(HEADER);
+			writer.newLine();
+			for (ThresholdResult result : results) {
+				writer.write(result.getThreshold() + "\t" +
+				             result.getVolume() + "\t" +
+				             result.isOnFirstSlice() + "\t" +
+				             result.isOnLastSlice() + "\t" +
+				             result.isCandidate() + "\t" +
+				             result.getFaceSphericity() + "\t" +
+				             result.getSphericity());
+				writer.newLine();
+			}
+		} catch (IOException e) {
+			LOGGER.warn("{}: can't write the sphericity cache.", this.cacheFile, e);
+		}
+	}
+	
+	
+	/** @return file of the curve */
+	public File getCacheFile() {
+		return this.cacheFile;
+	}
+	
+}
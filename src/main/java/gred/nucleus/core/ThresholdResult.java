@@ -0,0 +1,125 @@
+package gred.nucleus.core;
+
+/**
+ * Represents the outcome of one threshold tested by the sphericity sweep of {@link NucleusSegmentation}: the volume of
+ * the largest object obtained with this threshold, its contact with the first and last slices and, when the object is
+ * a valid nucleus candidate, its sphericity estimated from the voxel faces and its sphericity computed from the
+ * gradient (surfels).
+ *
+ * @author Tristan Dubos and Axel Poulet
+ */
+public class ThresholdResult {
+	/** Threshold value tested */
+	private final int     threshold;
+	/** Volume of the largest object segmented with this threshold */
+	private final double  volume;
+	/** True if the object has voxels on the first slice of the stack */
+	private final boolean onFirstSlice;
+	/** True if the object has voxels on the last slice of the stack */
+	private final boolean onLastSlice;
+	/** True if the object passes the volume and border filters */
+	private final boolean candidate;
+	/** Sphericity of the object from its voxel faces surface (-1 if it is not a candidate) */
+	private final double  faceSphericity;
+	/** Sphericity of the object from its surfels surface (-1 if it is not a candidate or was not computed) */
+	private final double  sphericity;
+	
+	
+	/**
+	 * Constructor
+	 *
+	 * @param threshold      threshold value tested
+	 * @param volume         volume of the largest object
+	 * @param onFirstSlice   true if the object has voxels on the first slice
+	 * @param onLastSlice    true if the object has voxels on the last slice
+	 * @param candidate      true if the object passes the volume and border filters
+	 * @param faceSphericity sphericity from the voxel faces surface (-1 if it is not a candidate)
+	 * @param sphericity     sphericity from the surfels surface (-1 if it is not a candidate or was not computed)
+	 */
+	public ThresholdResult(int threshold,
+	                       double volume,
+	                       boolean onFirstSlice,
+	                       boolean onLastSlice,
+	                       boolean candidate,
+	                       double faceSphericity,
+	                       double sphericity) {
+		this.threshold = threshold;
+		this.volume = volume;
+		this.onFirstSlice = onFirstSlice;
+		this.onLastSlice = onLastSlice;
+		this.candidate = candidate;
+		this.faceSphericity = faceSphericity;
+		this.sphericity = sphericity;
+	}
+	
+	
+	/**
+	 * Getter for the threshold value
+	 *
+	 * @return threshold value tested
+	 */
+	public int getThreshold() {
+		return this.threshold;
+	}
+	
+	
+	/**
+	 * Getter for the volume of the largest object
+	 *
+	 * @return volume of the object
+	 */
+	public double getVolume() {
+		return this.volume;
+	}
+	
+	
+	/**
+	 * Getter for the contact with the first slice
+	 *
+	 * @return true if the object has voxels on the first slice
+	 */
+	public boolean isOnFirstSlice() {
+		return this.onFirstSlice;
+	}
+	
+	
+	/**
+	 * Getter for the contact with the last slice
+	 *
+	 * @return true if the object has voxels on the last slice
+	 */
+	public boolean isOnLastSlice() {
+		return this.onLastSlice;
+	}
+	
+	
+	/**
+	 * Getter for the candidate status
+	 *
+	 * @return true if the object passes the volume and border filters
+	 */
+	public boolean isCandidate() {
+		return this.candidate;
+	}
+	
+	
+	/**
+	 * Getter for the sphericity estimated from the voxel faces
+	 *
+	 * @return sphericity of the object from its voxel faces, -1 if it is not a candidate
+	 */
+	public double getFaceSphericity() {
+		return this.faceSphericity;
+	}
+	
+	
+	/**
+	 * Getter for the sphericity
+	 *
+	 * @return sphericity of the object from its surfels, -1 if it is not a candidate or was not computed
+	 */
+	public double getSphericity() {
+		return this.sphericity;
+	}
+	
+}
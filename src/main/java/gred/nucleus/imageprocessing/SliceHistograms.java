@@ -0,0 +1,65 @@
+package gred.nucleus.imageprocessing;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+
+/**
+ * Cumulative histograms of the slices of an 8-bit image: the histogram of any range of slices is obtained by a
+ * difference of two cumulative histograms, without copying the slices.
+ *
+ * @author Tristan Dubos and Axel Poulet
+ */
+public class SliceHistograms {
+	/** Number of values of an 8-bit image */
+	private static final int VALUES = 256;
+	
+	/** Histograms of the slices before each slice: cumulative[k] is the histogram of the slices 0 to k - 1 */
+	private final long[][] cumulative;
+	
+	
+	/**
+	 * Computes the histograms of the slices of an image.
+	 *
+	 * @param image 8-bit image
+	 */
+	public SliceHistograms(ImagePlus image) {
+		if (image.getBitDepth() != 8) {
+			throw new IllegalArgumentException("Slice histograms are computed on 8-bit images only");
+		}
+		ImageStack stack = image.getStack();
+		this.cumulative = new long[stack.getSize() + 1][];
+		this.cumulative[0] = new long[VALUES];
+		for (int k = 0; k < stack.getSize(); ++k) {
+			long[] histogram = this.cumulative[k].clone();
+			for (byte pixel : (byte[]) stack.getPixels(k + 1)) {
+				++histogram[pixel & 0xff];
+			}
+			this.cumulative[k + 1] = histogram;
+		}
+	}
+	
+	
+	/**
+	 * Returns the histogram of a range of slices.
+	 *
+	 * @param firstSlice first slice of the range (included, from 0)
+	 * @param lastSlice  last slice of the range (excluded)
+	 *
+	 * @return number of voxels of each value
+	 */
+	public long[] getHistogram(int firstSlice, int lastSlice) {
+		long[] histogram = new long[VALUES];
+		for (int i = 0; i < VALUES; ++i) {
+			histogram[i] = this.cumulative[lastSlice][i] - this.cumulative[firstSlice][i];
+		}
+		return histogram;
+	}
+	
+	
+	/** @return number of slices */
+	public int getSize() {
+		return this.cumulative.length - 1;
+	}
+	
+}
@@ -28,6 +28,28 @@ public final class Thresholding {
 	}
 	
 	
+	/**
+	 * Compute the OTSU threshold of an 8-bit histogram (counts larger than an int are scaled down)
+	 *
+	 * @param histogram number of voxels of each value
+	 *
+	 * @return OTSU threshold
+	 */
+	public static int computeOTSUThreshold(long[] histogram) {
+		long maxCount = 0;
+		for (long count : histogram) {
+			maxCount = Math.max(maxCount, count);
+		}
+		long  scale      = maxCount / Integer.MAX_VALUE + 1;
+		int[] tHistogram = new int[histogram.length];
+		for (int i = 0; i < histogram.length; ++i) {
+			tHistogram[i] = (int) (histogram[i] / scale);
+		}
+		AutoThresholder autoThresholder = new AutoThresholder();
+		return autoThresholder.getThreshold(AutoThresholder.Method.Otsu, tHistogram);
+	}
+	
+	
 	/**
 	 * TODO COMMENT !!!! 2D 3D
 	 *
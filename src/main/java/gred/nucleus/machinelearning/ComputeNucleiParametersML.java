@@ -1,5 +1,6 @@
 package gred.nucleus.machinelearning;
 
+import gred.nucleus.connectedcomponent.ParallelComponentsLabeling;
 import gred.nucleus.core.Measure3D;
 import gred.nucleus.files.Directory;
 import gred.nucleus.files.OutputTextFile;
@@ -7,7 +8,6 @@ import gred.nucleus.plugins.PluginParameters;
 import gred.nucleus.utils.Histogram;
 import ij.ImagePlus;
 import ij.ImageStack;
-import inra.ijpb.binary.BinaryImages;
 import inra.ijpb.label.LabelImages;
 import loci.formats.FormatException;
 import loci.plugins.BF;
@@ -95,7 +95,7 @@ public class ComputeNucleiParametersML {
 			ImagePlus[] segmented = BF.openImagePlus(pluginParameters.getOutputFolder() + currentFile.getName());
 			// TODO TRANSFORMATION FACTORISABLE AVEC METHODE DU DESSUS !!!!!
 			segmented[0] = generateSegmentedImage(segmented[0], 1);
-			segmented[0] = BinaryImages.componentsLabeling(segmented[0], 26, 32);
+			segmented[0] = ParallelComponentsLabeling.componentsLabeling(segmented[0], 26, 32);
 			LabelImages.removeBorderLabels(segmented[0]);
 			segmented[0] = generateSegmentedImage(segmented[0], 1);
 			Histogram histogram = new Histogram();
@@ -12,7 +12,6 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.lang.invoke.MethodHandles;
 import java.util.List;
-import java.util.Map;
 
 
 public final class NoiseComputing {
@@ -83,18 +82,8 @@ public final class NoiseComputing {
 		Histogram histogram        = new Histogram();
 		histogram.run(raw);
 		
-		Map<Double, Integer> segmentedNucleusHistogram = histogram.getHistogram();
-		
-		int medianElementStop = (raw.getHeight() * raw.getWidth() * raw.getNSlices()) / 2;
-		int increment         = 0;
-		
-		for (Map.Entry<Double, Integer> entry : segmentedNucleusHistogram.entrySet()) {
-			increment += entry.getValue();
-			if (increment > medianElementStop) {
-				voxelMedianValue = entry.getKey();
-				break;
-			}
-		}
+		long medianElementStop = ((long) raw.getHeight() * raw.getWidth() * raw.getNSlices()) / 2;
+		voxelMedianValue = histogram.getLabelAtRank(medianElementStop);
 		return voxelMedianValue;
 	}
 	
@@ -24,6 +24,12 @@ public class SegmentationParameters extends PluginParameters {
 	int     minVolumeNucleus    = 1;
 	/** Maximal object volume to segment */
 	int     maxVolumeNucleus = 3000000;
+	/** Number of threads used to test the thresholds */
+	int     numberOfThreads  = Runtime.getRuntime().availableProcessors();
+	/** Number of best candidates (voxel faces sphericity) refined with the surfels sphericity, 0 to refine all */
+	int     sphericityCandidates = 0;
+	/** Sphericity curves cached in the output folder to select the threshold again on the next runs */
+	boolean sphericityCache  = false;
 	
 	
 	/**
@@ -88,6 +94,15 @@ public class SegmentationParameters extends PluginParameters {
 			if (idProp.equals("minVolumeNucleus")) {
 				this.minVolumeNucleus = Integer.parseInt(prop.getProperty("minVolumeNucleus"));
 			}
+			if (idProp.equals("numberOfThreads")) {
+				this.numberOfThreads = Integer.parseInt(prop.getProperty("numberOfThreads"));
+			}
+			if (idProp.equals("sphericityCandidates")) {
+				this.sphericityCandidates = Integer.parseInt(prop.getProperty("sphericityCandidates"));
+			}
+			if (idProp.equals("sphericityCache")) {
+				this.sphericityCache = Boolean.parseBoolean(prop.getProperty("sphericityCache"));
+			}
 		}
 	}
 	
@@ -98,7 +113,10 @@ public class SegmentationParameters extends PluginParameters {
 		this.headerInfo += "#maxVolumeNucleus:" + maxVolumeNucleus + "\n"
 		                   + "#minVolumeNucleus: " + minVolumeNucleus + "\n"
 		                   + "#ConvexHullDetection (" + NucleusSegmentation.CONVEX_HULL_ALGORITHM + "): "
-		                   + ConvexHullDetection + "\n";
+		                   + ConvexHullDetection + "\n"
+		                   + "#numberOfThreads: " + numberOfThreads + "\n"
+		                   + "#sphericityCandidates: " + sphericityCandidates + "\n"
+		                   + "#sphericityCache: " + sphericityCache + "\n";
 		return this.headerInfo;
 	}
 	
@@ -127,4 +145,34 @@ public class SegmentationParameters extends PluginParameters {
 		return this.ConvexHullDetection;
 	}
 	
+	
+	public int getNumberOfThreads() {
+		return this.numberOfThreads;
+	}
+	
+	
+	public void setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = Math.max(1, numberOfThreads);
+	}
+	
+	
+	public int getSphericityCandidates() {
+		return this.sphericityCandidates;
+	}
+	
+	
+	public void setSphericityCandidates(int sphericityCandidates) {
+		this.sphericityCandidates = Math.max(0, sphericityCandidates);
+	}
+	
+	
+	public boolean getSphericityCache() {
+		return this.sphericityCache;
+	}
+	
+	
+	public void setSphericityCache(boolean sphericityCache) {
+		this.sphericityCache = sphericityCache;
+	}
+	
 }
@@ -0,0 +1,682 @@
+package gred.nucleus.utils;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+import java.util.Arrays;
+
+
+/**
+ * Component tree of the upper level sets of an image, restricted to a range of thresholds.
+ * <p>
+ * The foreground obtained with a threshold t + 1 is included in the one obtained with t, so the voxels are sorted by
+ * intensity and added in decreasing order to a 26-connected union-find structure. After the voxels of each level have
+ * been added, the largest connected component of the level set (voxels >= t) is recorded: number of voxels, bounding
+ * box, number of voxels on the first and last slices, number of 6-neighbor pairs along each axis (giving its voxel
+ * faces surface) and one of its voxels. The whole range of thresholds is thus
+ * described after a single pass on the stack instead of one binarisation and one labelling per threshold.
+ * <p>
+ * The pixels of the slices are read directly. The binary image of a largest component can be built in a
+ * {@link MaskBuffer} reused from one threshold to the next.
+ * <p>
+ * As with {@link inra.ijpb.binary.BinaryImages#componentsLabeling}, when two components have the same size, the
+ * largest one is the component containing the first voxel in raster order.
+ *
+ * @author Tristan Dubos and Axel Poulet
+ */
+public class ComponentTree {
+	/** Parent value of a voxel not yet added to the tree */
+	private static final int UNSEEN = Integer.MIN_VALUE;
+	
+	/** Number of values stored for each component record */
+	private static final int RECORD_SIZE = 13;
+	/** Offset of the number of voxels in a record */
+	private static final int COUNT       = 0;
+	/** Offset of the minimum x in a record */
+	private static final int X_MIN       = 1;
+	/** Offset of the minimum y in a record */
+	private static final int Y_MIN       = 2;
+	/** Offset of the minimum z in a record */
+	private static final int Z_MIN       = 3;
+	/** Offset of the maximum x in a record */
+	private static final int X_MAX       = 4;
+	/** Offset of the maximum y in a record */
+	private static final int Y_MAX       = 5;
+	/** Offset of the maximum z in a record */
+	private static final int Z_MAX       = 6;
+	/** Offset of the number of voxels on the first slice in a record */
+	private static final int FIRST_SLICE = 7;
+	/** Offset of the number of voxels on the last slice in a record */
+	private static final int LAST_SLICE  = 8;
+	/** Offset of the first voxel index (raster order) in a record */
+	private static final int MIN_INDEX   = 9;
+	/** Offset of the number of neighbor pairs along x in a record */
+	private static final int PAIRS_X     = 10;
+	/** Offset of the number of neighbor pairs along y in a record */
+	private static final int PAIRS_Y     = 11;
+	/** Offset of the number of neighbor pairs along z in a record */
+	private static final int PAIRS_Z     = 12;
+	
+	/** Stack of the image */
+	private final ImageStack imageStack;
+	/** Pixels of each slice of the image, read directly for 8, 16 and 32-bit images */
+	private final Object[]   slices;
+	/** Bit depth of the image */
+	private final int        bitDepth;
+	/** Width of the image */
+	private final int        width;
+	/** Height of the image */
+	private final int        height;
+	/** Number of slices of the image */
+	private final int        depth;
+	/** Lowest threshold described */
+	private final int        minThreshold;
+	/** Highest threshold described */
+	private final int        maxThreshold;
+	
+	/** Largest component of each threshold (RECORD_SIZE values per threshold) */
+	private final int[] largestComponents;
+	/** Index of one voxel of the largest component of each threshold (-1 if the level set is empty) */
+	private final int[] seeds;
+	
+	/** Parent of each voxel: UNSEEN, index of the parent voxel or ~record for a root */
+	private int[] parent;
+	/** Records of the components (RECORD_SIZE values per component) */
+	private int[] records;
+	/** Number of records used */
+	private int   nbRecords;
+	
+	
+	/**
+	 * Builds the component tree of an image for all the thresholds between minThreshold and maxThreshold.
+	 *
+	 * @param imagePlusInput image to describe
+	 * @param minThreshold   lowest threshold
+	 * @param maxThreshold   highest threshold
+	 */
+	public ComponentTree(ImagePlus imagePlusInput, int minThreshold, int maxThreshold) {
+		this.imageStack = imagePlusInput.getStack();
+		this.bitDepth = imagePlusInput.getBitDepth();
+		this.width = imagePlusInput.getWidth();
+		this.height = imagePlusInput.getHeight();
+		this.depth = imagePlusInput.getStackSize();
+		this.slices = new Object[this.depth];
+		for (int k = 0; k < this.depth; ++k) {
+			this.slices[k] = this.imageStack.getPixels(k + 1);
+		}
+		this.minThreshold = minThreshold;
+		this.maxThreshold = Math.max(minThreshold - 1, maxThreshold);
+		int nbLevels = this.maxThreshold - this.minThreshold + 1;
+		this.largestComponents = new int[nbLevels * RECORD_SIZE];
+		this.seeds = new int[nbLevels];
+		Arrays.fill(this.seeds, -1);
+		build();
+	}
+	
+	
+	/** Sorts the voxels by threshold level and adds them to the tree from the highest level to the lowest one. */
+	private void build() {
+		int nbLevels = this.seeds.length;
+		if (nbLevels == 0) {
+			return;
+		}
+		
+		/* Counting sort of the voxels by level, voxels under the lowest threshold are ignored */
+		int   sliceSize  = this.width * this.height;
+		int[] levelSizes = new int[nbLevels];
+		int   nbVoxels   = 0;
+		for (int k = 0; k < this.depth; ++k) {
+			for (int position = 0; position < sliceSize; ++position) {
+				int level = getLevel(getVoxelValue(k, position));
+				if (level >= 0) {
+					levelSizes[level]++;
+					nbVoxels++;
+				}
+			}
+		}
+		int[] levelStarts = new int[nbLevels + 1];
+		for (int level = nbLevels - 1; level >= 0; --level) {
+			levelStarts[level] = levelStarts[level + 1] + levelSizes[level];
+		}
+		int[] positions = Arrays.copyOf(levelStarts, nbLevels);
+		int[] sorted    = new int[nbVoxels];
+		for (int k = 0; k < this.depth; ++k) {
+			for (int position = 0; position < sliceSize; ++position) {
+				int level = getLevel(getVoxelValue(k, position));
+				if (level >= 0) {
+					sorted[--positions[level]] = k * sliceSize + position;
+				}
+			}
+		}
+		
+		/* Union-find from the highest level to the lowest one */
+		this.parent = new int[this.width * this.height * this.depth];
+		Arrays.fill(this.parent, UNSEEN);
+		this.records = new int[RECORD_SIZE * 64];
+		this.nbRecords = 0;
+		int largestRoot = -1;
+		int position    = 0;
+		for (int level = nbLevels - 1; level >= 0; --level) {
+			for (int end = position + levelSizes[level]; position < end; ++position) {
+				int root = addVoxel(sorted[position]);
+				if (largestRoot == -1 || this.parent[largestRoot] >= 0) {
+					/* First component, or the largest one has been merged into the current one */
+					largestRoot = root;
+				} else if (root != largestRoot && isLarger(root, largestRoot)) {
+					largestRoot = root;
+				}
+			}
+			if (largestRoot != -1) {
+				System.arraycopy(this.records,
+				                 ~this.parent[largestRoot] * RECORD_SIZE,
+				                 this.largestComponents,
+				                 level * RECORD_SIZE,
+				                 RECORD_SIZE);
+				this.seeds[level] = largestRoot;
+			}
+		}
+		this.parent = null;
+		this.records = null;
+	}
+	
+	
+	/**
+	 * Reads the value of a voxel from the pixels of its slice.
+	 *
+	 * @param k        slice of the voxel
+	 * @param position index of the voxel in the slice
+	 *
+	 * @return voxel value
+	 */
+	private double getVoxelValue(int k, int position) {
+		switch (this.bitDepth) {
+			case 8:
+				return ((byte[]) this.slices[k])[position] & 0xff;
+			case 16:
+				return ((short[]) this.slices[k])[position] & 0xffff;
+			case 32:
+				return ((float[]) this.slices[k])[position];
+			default:
+				return this.imageStack.getVoxel(position % this.width, position / this.width, k);
+		}
+	}
+	
+	
+	/**
+	 * Computes the level of a voxel value: index of the highest threshold lower or equal to the value, -1 if the value
+	 * is under the lowest threshold.
+	 *
+	 * @param voxelValue voxel value
+	 *
+	 * @return level of the voxel
+	 */
+	private int getLevel(double voxelValue) {
+		if (voxelValue >= this.minThreshold) {
+			return (int) Math.min(Math.floor(voxelValue), this.maxThreshold) - this.minThreshold;
+		} else {
+			return -1;
+		}
+	}
+	
+	
+	/**
+	 * Adds a voxel to the tree and merges it with its 26 neighbours already added.
+	 *
+	 * @param index index of the voxel
+	 *
+	 * @return root of the component containing the voxel
+	 */
+	private int addVoxel(int index) {
+		int i    = index % this.width;
+		int j    = index / this.width % this.height;
+		int k    = index / (this.width * this.height);
+		int root = -1;
+		/* Pairs formed with the 6-neighbors already added, which all belong to the final component */
+		int pairsX = 0;
+		int pairsY = 0;
+		int pairsZ = 0;
+		for (int kk = Math.max(0, k - 1); kk <= Math.min(this.depth - 1, k + 1); ++kk) {
+			for (int jj = Math.max(0, j - 1); jj <= Math.min(this.height - 1, j + 1); ++jj) {
+				for (int ii = Math.max(0, i - 1); ii <= Math.min(this.width - 1, i + 1); ++ii) {
+					int neighbor = (kk * this.height + jj) * this.width + ii;
+					if (neighbor != index && this.parent[neighbor] != UNSEEN) {
+						int distance = Math.abs(ii - i) + Math.abs(jj - j) + Math.abs(kk - k);
+						if (distance == 1) {
+							if (ii != i) {
+								pairsX++;
+							} else if (jj != j) {
+								pairsY++;
+							} else {
+								pairsZ++;
+							}
+						}
+						int neighborRoot = find(neighbor);
+						if (root == -1) {
+							this.parent[index] = neighborRoot;
+							addToRecord(~this.parent[neighborRoot], i, j, k, index);
+							root = neighborRoot;
+						} else if (neighborRoot != root) {
+							root = union(root, neighborRoot);
+						}
+					}
+				}
+			}
+		}
+		if (root == -1) {
+			int record = newRecord();
+			this.parent[index] = ~record;
+			addToRecord(record, i, j, k, index);
+			root = index;
+		}
+		int offset = ~this.parent[root] * RECORD_SIZE;
+		this.records[offset + PAIRS_X] += pairsX;
+		this.records[offset + PAIRS_Y] += pairsY;
+		this.records[offset + PAIRS_Z] += pairsZ;
+		return root;
+	}
+	
+	
+	/**
+	 * Finds the root of a voxel, with path halving.
+	 *
+	 * @param index index of the voxel
+	 *
+	 * @return index of the root voxel
+	 */
+	private int find(int index) {
+		while (this.parent[index] >= 0) {
+			int next = this.parent[index];
+			if (this.parent[next] >= 0) {
+				this.parent[index] = this.parent[next];
+			}
+			index = next;
+		}
+		return index;
+	}
+	
+	
+	/**
+	 * Merges two components, the smallest one is attached to the largest one.
+	 *
+	 * @param root1 root of the first component
+	 * @param root2 root of the second component
+	 *
+	 * @return root of the merged component
+	 */
+	private int union(int root1, int root2) {
+		int record1 = ~this.parent[root1];
+		int record2 = ~this.parent[root2];
+		if (this.records[record1 * RECORD_SIZE + COUNT] < this.records[record2 * RECORD_SIZE + COUNT]) {
+			int tmp = root1;
+			root1 = root2;
+			root2 = tmp;
+			tmp = record1;
+			record1 = record2;
+			record2 = tmp;
+		}
+		int to   = record1 * RECORD_SIZE;
+		int from = record2 * RECORD_SIZE;
+		this.records[to + COUNT] += this.records[from + COUNT];
+		this.records[to + X_MIN] = Math.min(this.records[to + X_MIN], this.records[from + X_MIN]);
+		this.records[to + Y_MIN] = Math.min(this.records[to + Y_MIN], this.records[from + Y_MIN]);
+		this.records[to + Z_MIN] = Math.min(this.records[to + Z_MIN], this.records[from + Z_MIN]);
+		this.records[to + X_MAX] = Math.max(this.records[to + X_MAX], this.records[from + X_MAX]);
+		this.records[to + Y_MAX] = Math.max(this.records[to + Y_MAX], this.records[from + Y_MAX]);
+		this.records[to + Z_MAX] = Math.max(this.records[to + Z_MAX], this.records[from + Z_MAX]);
+		this.records[to + FIRST_SLICE] += this.records[from + FIRST_SLICE];
+		this.records[to + LAST_SLICE] += this.records[from + LAST_SLICE];
+		this.records[to + MIN_INDEX] = Math.min(this.records[to + MIN_INDEX], this.records[from + MIN_INDEX]);
+		this.records[to + PAIRS_X] += this.records[from + PAIRS_X];
+		this.records[to + PAIRS_Y] += this.records[from + PAIRS_Y];
+		this.records[to + PAIRS_Z] += this.records[from + PAIRS_Z];
+		this.parent[root2] = root1;
+		return root1;
+	}
+	
+	
+	/**
+	 * Creates an empty component record.
+	 *
+	 * @return index of the record
+	 */
+	private int newRecord() {
+		if ((this.nbRecords + 1) * RECORD_SIZE > this.records.length) {
+			this.records = Arrays.copyOf(this.records, this.records.length * 2);
+		}
+		int offset = this.nbRecords * RECORD_SIZE;
+		this.records[offset + COUNT] = 0;
+		this.records[offset + X_MIN] = Integer.MAX_VALUE;
+		this.records[offset + Y_MIN] = Integer.MAX_VALUE;
+		this.records[offset + Z_MIN] = Integer.MAX_VALUE;
+		this.records[offset + X_MAX] = Integer.MIN_VALUE;
+		this.records[offset + Y_MAX] = Integer.MIN_VALUE;
+		this.records[offset + Z_MAX] = Integer.MIN_VALUE;
+		this.records[offset + FIRST_SLICE] = 0;
+		this.records[offset + LAST_SLICE] = 0;
+		this.records[offset + MIN_INDEX] = Integer.MAX_VALUE;
+		this.records[offset + PAIRS_X] = 0;
+		this.records[offset + PAIRS_Y] = 0;
+		this.records[offset + PAIRS_Z] = 0;
+		return this.nbRecords++;
+	}
+	
+	
+	/**
+	 * Adds a voxel to a component record.
+	 *
+	 * @param record index of the record
+	 * @param i      x coordinate of the voxel
+	 * @param j      y coordinate of the voxel
+	 * @param k      z coordinate of the voxel
+	 * @param index  index of the voxel
+	 */
+	private void addToRecord(int record, int i, int j, int k, int index) {
+		int offset = record * RECORD_SIZE;
+		this.records[offset + COUNT]++;
+		this.records[offset + X_MIN] = Math.min(this.records[offset + X_MIN], i);
+		this.records[offset + Y_MIN] = Math.min(this.records[offset + Y_MIN], j);
+		this.records[offset + Z_MIN] = Math.min(this.records[offset + Z_MIN], k);
+		this.records[offset + X_MAX] = Math.max(this.records[offset + X_MAX], i);
+		this.records[offset + Y_MAX] = Math.max(this.records[offset + Y_MAX], j);
+		this.records[offset + Z_MAX] = Math.max(this.records[offset + Z_MAX], k);
+		if (k == 0) {
+			this.records[offset + FIRST_SLICE]++;
+		}
+		if (k == this.depth - 1) {
+			this.records[offset + LAST_SLICE]++;
+		}
+		this.records[offset + MIN_INDEX] = Math.min(this.records[offset + MIN_INDEX], index);
+	}
+	
+	
+	/**
+	 * Compares two components: the largest one is the one with the most voxels, or the one containing the first voxel
+	 * in raster order if they have the same size.
+	 *
+	 * @param root1 root of the first component
+	 * @param root2 root of the second component
+	 *
+	 * @return true if the first component is larger than the second one
+	 */
+	private boolean isLarger(int root1, int root2) {
+		int offset1 = ~this.parent[root1] * RECORD_SIZE;
+		int offset2 = ~this.parent[root2] * RECORD_SIZE;
+		int count1  = this.records[offset1 + COUNT];
+		int count2  = this.records[offset2 + COUNT];
+		return count1 > count2 ||
+		       count1 == count2 && this.records[offset1 + MIN_INDEX] < this.records[offset2 + MIN_INDEX];
+	}
+	
+	
+	/**
+	 * Returns the offset of the largest component of a threshold.
+	 *
+	 * @param threshold threshold value
+	 *
+	 * @return offset in the largest components table
+	 */
+	private int getOffset(int threshold) {
+		if (threshold < this.minThreshold || threshold > this.maxThreshold) {
+			throw new IllegalArgumentException("Threshold " + threshold + " is not in [" +
+			                                   this.minThreshold + ", " + this.maxThreshold + "]");
+		}
+		return (threshold - this.minThreshold) * RECORD_SIZE;
+	}
+	
+	
+	/** @return lowest threshold described */
+	public int getMinThreshold() {
+		return this.minThreshold;
+	}
+	
+	
+	/** @return highest threshold described */
+	public int getMaxThreshold() {
+		return this.maxThreshold;
+	}
+	
+	
+	/**
+	 * Getter for the size of the largest component
+	 *
+	 * @param threshold threshold value
+	 *
+	 * @return number of voxels of the largest component (0 if no voxel is above the threshold)
+	 */
+	public int getLargestComponentSize(int threshold) {
+		return this.largestComponents[getOffset(threshold) + COUNT];
+	}
+	
+	
+	/**
+	 * Getter for the number of voxels of the largest component on the first slice
+	 *
+	 * @param threshold threshold value
+	 *
+	 * @return number of voxels on the first slice
+	 */
+	public int getFirstSliceVoxels(int threshold) {
+		return this.largestComponents[getOffset(threshold) + FIRST_SLICE];
+	}
+	
+	
+	/**
+	 * Getter for the number of voxels of the largest component on the last slice
+	 *
+	 * @param threshold threshold value
+	 *
+	 * @return number of voxels on the last slice
+	 */
+	public int getLastSliceVoxels(int threshold) {
+		return this.largestComponents[getOffset(threshold) + LAST_SLICE];
+	}
+	
+	
+	/**
+	 * Getter for the bounding box of the largest component
+	 *
+	 * @param threshold threshold value
+	 *
+	 * @return xMin, yMin, zMin, xMax, yMax, zMax of the largest component
+	 */
+	public int[] getBoundingBox(int threshold) {
+		int offset = getOffset(threshold);
+		return Arrays.copyOfRange(this.largestComponents, offset + X_MIN, offset + Z_MAX + 1);
+	}
+	
+	
+	/**
+	 * Computes the surface of the largest component from its voxel faces not shared with another voxel (as
+	 * {@link gred.nucleus.core.Measure3D#computeSurfaceObject(double)}), from the number of 6-neighbor pairs inside the
+	 * component: each voxel has two faces along each axis, and each pair hides two of them.
+	 *
+	 * @param threshold    threshold value
+	 * @param xCalibration x calibration
+	 * @param yCalibration y calibration
+	 * @param zCalibration z calibration
+	 *
+	 * @return voxel faces surface of the largest component
+	 */
+	public double getFaceSurface(int threshold, double xCalibration, double yCalibration, double zCalibration) {
+		int  offset = getOffset(threshold);
+		long count  = this.largestComponents[offset + COUNT];
+		long facesX = 2 * (count - this.largestComponents[offset + PAIRS_X]);
+		long facesY = 2 * (count - this.largestComponents[offset + PAIRS_Y]);
+		long facesZ = 2 * (count - this.largestComponents[offset + PAIRS_Z]);
+		return facesX * yCalibration * zCalibration +
+		       facesY * xCalibration * zCalibration +
+		       facesZ * xCalibration * yCalibration;
+	}
+	
+	
+	/**
+	 * Checks if the largest component touches the x or y border of the image.
+	 *
+	 * @param threshold threshold value
+	 *
+	 * @return true if the largest component has voxels on the x or y border
+	 */
+	public boolean isOnXYBorder(int threshold) {
+		int offset = getOffset(threshold);
+		return this.largestComponents[offset + COUNT] > 0 &&
+		       (this.largestComponents[offset + X_MIN] == 0 ||
+		        this.largestComponents[offset + Y_MIN] == 0 ||
+		        this.largestComponents[offset + X_MAX] == this.width - 1 ||
+		        this.largestComponents[offset + Y_MAX] == this.height - 1);
+	}
+	
+	
+	/**
+	 * Builds the binary image (255 for the object, 0 for the background) of the largest component of a threshold, by
+	 * flood filling its voxels from the recorded seed within its bounding box. This method only reads the image and
+	 * can be called concurrently.
+	 *
+	 * @param threshold threshold value
+	 *
+	 * @return 8-bit image of the largest component
+	 */
+	public ImagePlus getLargestComponentMask(int threshold) {
+		return getLargestComponentMask(threshold, new MaskBuffer());
+	}
+	
+	
+	/**
+	 * Builds the binary image of the largest component of a threshold in a reusable buffer. The image returned is the
+	 * image of the buffer: it is overwritten by the next call with the same buffer.
+	 *
+	 * @param threshold threshold value
+	 * @param buffer    buffer of the calling thread
+	 *
+	 * @return 8-bit image of the largest component
+	 */
+	public ImagePlus getLargestComponentMask(int threshold, MaskBuffer buffer) {
+		int      offset = getOffset(threshold);
+		byte[][] pixels = buffer.clear(this.width, this.height, this.depth);
+		int      seed   = this.seeds[threshold - this.minThreshold];
+		if (seed != -1) {
+			int xMin = this.largestComponents[offset + X_MIN];
+			int yMin = this.largestComponents[offset + Y_MIN];
+			int zMin = this.largestComponents[offset + Z_MIN];
+			int xMax = this.largestComponents[offset + X_MAX];
+			int yMax = this.largestComponents[offset + Y_MAX];
+			int zMax = this.largestComponents[offset + Z_MAX];
+			buffer.setBoundingBox(yMin, zMin, yMax, zMax);
+			
+			int   sliceSize = this.width * this.height;
+			int[] queue     = buffer.getQueue(this.largestComponents[offset + COUNT]);
+			int   head      = 0;
+			int   tail      = 0;
+			pixels[seed / sliceSize][seed % sliceSize] = (byte) 255;
+			queue[tail++] = seed;
+			while (head < tail) {
+				int index = queue[head++];
+				int i     = index % this.width;
+				int j     = index / this.width % this.height;
+				int k     = index / sliceSize;
+				for (int kk = Math.max(zMin, k - 1); kk <= Math.min(zMax, k + 1); ++kk) {
+					for (int jj = Math.max(yMin, j - 1); jj <= Math.min(yMax, j + 1); ++jj) {
+						for (int ii = Math.max(xMin, i - 1); ii <= Math.min(xMax, i + 1); ++ii) {
+							int position = jj * this.width + ii;
+							if (pixels[kk][position] == 0 && getVoxelValue(kk, position) >= threshold) {
+								pixels[kk][position] = (byte) 255;
+								queue[tail++] = kk * sliceSize + position;
+							}
+						}
+					}
+				}
+			}
+		}
+		return buffer.getMask();
+	}
+	
+	
+	/**
+	 * Reusable memory for the binary images of the largest components: the image and the flood fill queue are only
+	 * allocated when the size of the image changes or the queue is too small, and only the rows filled by the previous
+	 * component are cleared. A buffer must not be used by several threads at the same time.
+	 */
+	public static class MaskBuffer {
+		/** Binary image */
+		private ImagePlus mask;
+		/** Pixels of the slices of the binary image */
+		private byte[][]  pixels;
+		/** Flood fill queue */
+		private int[]     queue = new int[0];
+		/** First row filled by the previous component */
+		private int       filledYMin;
+		/** Last row filled by the previous component */
+		private int       filledYMax;
+		/** First slice filled by the previous component */
+		private int       filledZMin;
+		/** Last slice filled by the previous component (-1 if none) */
+		private int       filledZMax = -1;
+		
+		
+		/**
+		 * Clears the binary image, allocating it if its size has changed.
+		 *
+		 * @param width  width of the image
+		 * @param height height of the image
+		 * @param depth  number of slices of the image
+		 *
+		 * @return pixels of the slices of the image
+		 */
+		byte[][] clear(int width, int height, int depth) {
+			if (this.mask == null || this.mask.getWidth() != width || this.mask.getHeight() != height ||
+			    this.mask.getStackSize() != depth) {
+				this.pixels = new byte[depth][width * height];
+				ImageStack maskStack = new ImageStack(width, height);
+				for (int k = 0; k < depth; ++k) {
+					maskStack.addSlice(new ByteProcessor(width, height, this.pixels[k]));
+				}
+				this.mask = new ImagePlus("", maskStack);
+			} else {
+				for (int k = this.filledZMin; k <= this.filledZMax; ++k) {
+					Arrays.fill(this.pixels[k], this.filledYMin * width, (this.filledYMax + 1) * width, (byte) 0);
+				}
+			}
+			this.filledZMax = -1;
+			return this.pixels;
+		}
+		
+		
+		/**
+		 * Records the rows which will be filled, to clear them on the next use.
+		 *
+		 * @param yMin first row
+		 * @param zMin first slice
+		 * @param yMax last row
+		 * @param zMax last slice
+		 */
+		void setBoundingBox(int yMin, int zMin, int yMax, int zMax) {
+			this.filledYMin = yMin;
+			this.filledZMin = zMin;
+			this.filledYMax = yMax;
+			this.filledZMax = zMax;
+		}
+		
+		
+		/**
+		 * Returns the flood fill queue, growing it if needed.
+		 *
+		 * @param size number of voxels to queue
+		 *
+		 * @return queue
+		 */
+		int[] getQueue(int size) {
+			if (this.queue.length < size) {
+				this.queue = new int[size];
+			}
+			return this.queue;
+		}
+		
+		
+		/** @return binary image */
+		ImagePlus getMask() {
+			return this.mask;
+		}
+		
+	}
+	
+}
@@ -2,19 +2,23 @@ package gred.nucleus.utils;
 
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.gui.PolygonRoi;
-import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.awt.image.BufferedImage;
 import java.lang.invoke.MethodHandles;
-import java.util.ArrayList;
-import java.util.List;
 
 
 /**
  * Running a convex hull algorithm for each axis combined
+ * <p>
+ * On each slice of the plan, the 4-connected components of the foreground are filled with their 2D convex hull. The
+ * work is restricted to the bounding box of the object, the slice is read in a single scratch buffer reused for all
+ * the slices, and the hulls (computed from the first and last pixels of each row of a component) are rasterised with
+ * an integer scanline fill directly in the output slice. As with a PolygonRoi fill, a pixel is filled when its center
+ * is inside the hull polygon. The slices are independent: they can be computed concurrently by makers confined to
+ * their thread (see setInput).
  *
  * @author Tristan Dubos and Axel Poulet
  */
@@ -22,220 +26,368 @@ public class ConvexHullImageMaker {
 	/** Logger */
 	private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 	
-	List<Double> listLabel;
+	/** Value of the foreground voxels in the binary image */
+	private static final int  FOREGROUND          = 255;
+	/** Minimal number of boundary pixels for a component to be filled with its convex hull */
+	private static final int  MIN_BOUNDARY_PIXELS = 6;
+	/** Scratch value of the foreground pixels not visited yet */
+	private static final byte UNVISITED           = 1;
+	/** Scratch value of the foreground pixels already visited */
+	private static final byte VISITED             = 2;
+	
 	private String axesName = "";
 	
+	/** Slices of the input image */
+	private ImageProcessor[] slices;
+	/** Width of the input image */
+	private int              inputWidth;
+	/** Width of the slices of the plan */
+	private int              width;
+	/** Height of the slices of the plan */
+	private int              height;
+	/** Number of slices of the plan */
+	private int              depth;
+	/** First slice of the plan containing the object */
+	private int              kMin;
+	/** Last slice of the plan containing the object */
+	private int              kMax;
+	/** Bounding box of the object in the slices of the plan: iMin, jMin, iMax, jMax (max included) */
+	private int[]            region;
+	/** Slice being processed: 0 for the background, UNVISITED or VISITED for the foreground (inside region only) */
+	private byte[]           scratch;
+	/** Queue of the pixels of the component being visited */
+	private IntQueue         queue;
+	/** First pixel of each row of the component being visited */
+	private int[]            rowMin;
+	/** Last pixel of each row of the component being visited */
+	private int[]            rowMax;
+	/** First coordinates of the vertices of the convex hull */
+	private int[]            hullX;
+	/** Second coordinates of the vertices of the convex hull */
+	private int[]            hullY;
+	
+	
 	/**
 	 * Run the convex hull algorithm on the image input for a given axe
 	 *
 	 * @param imagePlusBinary input imagePlus
+	 *
 	 * @return segmented image in axes concerned corrected by a convex hull algorithm
+	 *
 	 * @see gred.nucleus.core.ConvexHullSegmentation
 	 */
 	public ImagePlus runConvexHullDetection(ImagePlus imagePlusBinary) {
 		LOGGER.debug("Computing convex hull algorithm for axes {}.", this.axesName);
-		ImagePlus   imagePlusCorrected        = new ImagePlus();
-		ImagePlus   imagePlusBlack            = new ImagePlus();
-		int         depth;
-		int         width;
-		int         height;
-		// Defining plan
-		if (axesName.equals("xy")) {
-			width = imagePlusBinary.getWidth();
-			height = imagePlusBinary.getHeight();
-			depth = imagePlusBinary.getNSlices();
-		} else if (axesName.equals("xz")) {
-			width = imagePlusBinary.getWidth();
-			height = imagePlusBinary.getNSlices();
-			depth = imagePlusBinary.getHeight();
+		setInput(imagePlusBinary, computeBoundingBox(imagePlusBinary));
+		ImageStack imageStackOutput = new ImageStack(this.width, this.height);
+		for (int k = 0; k < this.depth; ++k) {
+			imageStackOutput.addSlice(new ByteProcessor(this.width, this.height, computeSlice(k)));
+		}
+		this.slices = null;
+		this.scratch = null;
+		ImagePlus imagePlusCorrected = new ImagePlus();
+		imagePlusCorrected.setStack(imageStackOutput);
+		return imagePlusCorrected;
+	}
+	
+	
+	/**
+	 * Sets the image processed by computeSlice, for the current combined axis. A maker is confined to one thread: to
+	 * process the slices of a plan concurrently, each thread uses its own maker with the same input.
+	 *
+	 * @param imagePlusBinary input imagePlus
+	 * @param boundingBox     bounding box of the foreground voxels of the image
+	 *
+	 * @see #computeBoundingBox(ImagePlus)
+	 */
+	public void setInput(ImagePlus imagePlusBinary, int[] boundingBox) {
+		ImageStack imageStackInput = imagePlusBinary.getStack();
+		this.slices = new ImageProcessor[imageStackInput.getSize()];
+		for (int z = 0; z < this.slices.length; ++z) {
+			this.slices[z] = imageStackInput.getProcessor(z + 1);
+		}
+		this.inputWidth = imagePlusBinary.getWidth();
+		// Defining plan: (i, j) coordinates in the slices, k slice index, bounds of the object in the plan
+		if (this.axesName.equals("xy")) {
+			this.width = imagePlusBinary.getWidth();
+			this.height = imagePlusBinary.getHeight();
+			this.depth = imagePlusBinary.getNSlices();
+			this.region = new int[]{boundingBox[0], boundingBox[1], boundingBox[3], boundingBox[4]};
+			this.kMin = boundingBox[2];
+			this.kMax = boundingBox[5];
+		} else if (this.axesName.equals("xz")) {
+			this.width = imagePlusBinary.getWidth();
+			this.height = imagePlusBinary.getNSlices();
+			this.depth = imagePlusBinary.getHeight();
+			this.region = new int[]{boundingBox[0], boundingBox[2], boundingBox[3], boundingBox[5]};
+			this.kMin = boundingBox[1];
+			this.kMax = boundingBox[4];
 		} else {
-			width = imagePlusBinary.getHeight();
-			height = imagePlusBinary.getNSlices();
-			depth = imagePlusBinary.getWidth();
+			this.width = imagePlusBinary.getHeight();
+			this.height = imagePlusBinary.getNSlices();
+			this.depth = imagePlusBinary.getWidth();
+			this.region = new int[]{boundingBox[1], boundingBox[2], boundingBox[4], boundingBox[5]};
+			this.kMin = boundingBox[0];
+			this.kMax = boundingBox[3];
 		}
-		// Create 2D image used to create each slice (depth) of a plan
-		BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-		imagePlusBlack.setImage(bufferedImage);
-		ImageStack imageStackOutput = new ImageStack(width, height);
-		for (int k = 0; k < depth; ++k) {
-			ImagePlus  ip    = imagePlusBlack.duplicate();
-			double[][] image = giveTable(imagePlusBinary, width, height, k); // Return image with labelled components (& initialize listLabel)
-			LOGGER.trace("Processing slice {}/{} of plan \"{}\"", k, depth, axesName);
-			
-			// Calculate boundaries
-			if (listLabel.size() == 1) {  // If 1 single connected component
-				//LOGGER.trace("Processing the only label {} on slice {}/{}", listLabel.get(0), k, depth);
-				List<VoxelRecord> lVoxelBoundary = detectVoxelBoundary(image, listLabel.get(0), k); // List the voxels of boundary of the component
-				if (lVoxelBoundary.size() > 5) { // When component is big enough
-					// Create temporary image of the component using the convex hull detection algorithm
-					ip = imageMaker(lVoxelBoundary, width, height);
-				} else {
-					ip = imagePlusBlack.duplicate();
-				}
-			}
-			else if (listLabel.size() > 1) { // If several connected components
-				ImageStack imageStackIp = ip.getImageStack();
-				for (Double label : listLabel) {
-					//LOGGER.trace("Processing label {} ({}/{}) on slice: {}/{}", label, listLabel.indexOf(label)+1, listLabel.size() , k, depth);
-					List<VoxelRecord> lVoxelBoundary = detectVoxelBoundary(image, label, k); // List the voxels of boundary of the component
-					if (lVoxelBoundary.size() > 5) { // When the component is big enough make image
-						// Create temporary image of the component using the convex hull detection algorithm
-						ImageStack imageTempStack = imageMaker(lVoxelBoundary, width, height).getStack();
-						
-						for (int l = 0; l < width; ++l) { // For each labelled voxels of the component put a corresponding white voxel on the result
-							for (int m = 0; m < height; ++m) {
-								if (imageTempStack.getVoxel(l, m, 0) > 0) {
-									imageStackIp.setVoxel(l, m, 0, 255);
-								}
-							}
-						}
+		this.scratch = new byte[this.width * this.height];
+		this.queue = new IntQueue();
+		this.rowMin = new int[this.height];
+		this.rowMax = new int[this.height];
+		this.hullX = new int[2 * this.height + 1];
+		this.hullY = new int[2 * this.height + 1];
+	}
+	
+	
+	/**
+	 * Computes a slice of the plan: each component of the slice filled with its convex hull.
+	 *
+	 * @param k index of the slice in the plan
+	 *
+	 * @return pixels of the slice (255 inside the hulls, 0 elsewhere)
+	 *
+	 * @see #setInput(ImagePlus, int[])
+	 */
+	public byte[] computeSlice(int k) {
+		byte[] output = new byte[this.width * this.height];
+		// Slices without object stay black
+		if (k >= this.kMin && k <= this.kMax) {
+			LOGGER.trace("Processing slice {}/{} of plan \"{}\"", k, this.depth, this.axesName);
+			loadSlice(k);
+			for (int j = this.region[1]; j <= this.region[3]; ++j) {
+				for (int i = this.region[0], n = i + j * this.width; i <= this.region[2]; ++i, ++n) {
+					if (this.scratch[n] == UNVISITED) {
+						fillComponent(n, output);
 					}
 				}
 			}
-			else { // In case nothing is found return black image
-				ip = imagePlusBlack.duplicate();
-			}
-			imageStackOutput.addSlice(ip.getProcessor()); // Add the image to the result
 		}
-		imagePlusCorrected.setStack(imageStackOutput);
-		return imagePlusCorrected;
+		return output;
 	}
-		
+	
+	
 	/**
-	 * Find all the voxels of the boundaries (near black pixels)
+	 * Computes the bounding box of the foreground voxels of the image.
 	 *
-	 * @param image image used
-	 * @param label current label
-	 * @param indice slice indice
+	 * @param imagePlusBinary input imagePlus
 	 *
-	 * @return list of the voxels of the boundaries
+	 * @return xMin, yMin, zMin, xMax, yMax, zMax (max included), with min > max if there is no foreground voxel
 	 */
-	List<VoxelRecord> detectVoxelBoundary(double[][] image, double label, int indice) {
-		LOGGER.trace("Detecting voxel boundary.");
-		List<VoxelRecord> lVoxelBoundary = new ArrayList<>();
-		// Browse through the pixels of the 2D image
-		for (int i = 1; i < image.length; ++i) {
-			for (int j = 1; j < image[i].length; ++j) {
-				if (image[i][j] == label) {
-					if (image[i - 1][j] == 0 || image[i + 1][j] == 0 || image[i][j - 1] == 0 || image[i][j + 1] == 0) {
-						VoxelRecord voxelTest = new VoxelRecord();
-						if (axesName.equals("xy")) {
-							voxelTest.setLocation(i, j, indice);
-						} else if (axesName.equals("xz")) {
-							voxelTest.setLocation(i, indice, j);
-						} else {
-							voxelTest.setLocation(indice, i, j);
-						}
-						lVoxelBoundary.add(voxelTest);
-						}
+	public static int[] computeBoundingBox(ImagePlus imagePlusBinary) {
+		ImageStack imageStackInput = imagePlusBinary.getStack();
+		int[]      box             = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, -1, -1, -1};
+		for (int z = 0; z < imageStackInput.getSize(); ++z) {
+			ImageProcessor slice = imageStackInput.getProcessor(z + 1);
+			for (int y = 0, n = 0; y < slice.getHeight(); ++y) {
+				for (int x = 0; x < slice.getWidth(); ++x, ++n) {
+					if (slice.getf(n) == FOREGROUND) {
+						box[0] = Math.min(box[0], x);
+						box[1] = Math.min(box[1], y);
+						box[2] = Math.min(box[2], z);
+						box[3] = Math.max(box[3], x);
+						box[4] = Math.max(box[4], y);
+						box[5] = Math.max(box[5], z);
 					}
 				}
 			}
-		return lVoxelBoundary;
+		}
+		return box;
+	}
+	
+	
+	/**
+	 * Reads the bounding box of the object in a slice of the plan into the scratch slice.
+	 *
+	 * @param k index of the slice in the plan
+	 */
+	private void loadSlice(int k) {
+		boolean planXY = this.axesName.equals("xy");
+		// Index of a pixel (i, j) of the plan in its input slice: offset + i * iStep + j * jStep
+		int offset;
+		int iStep;
+		int jStep;
+		if (planXY) {
+			offset = 0;
+			iStep = 1;
+			jStep = this.inputWidth;
+		} else if (this.axesName.equals("xz")) {
+			offset = k * this.inputWidth;
+			iStep = 1;
+			jStep = 0;
+		} else {
+			offset = k;
+			iStep = this.inputWidth;
+			jStep = 0;
+		}
+		for (int j = this.region[1]; j <= this.region[3]; ++j) {
+			ImageProcessor slice = this.slices[planXY ? k : j];
+			for (int i = this.region[0], n = i + j * this.width; i <= this.region[2]; ++i, ++n) {
+				float value = slice.getf(offset + i * iStep + j * jStep);
+				this.scratch[n] = value == FOREGROUND ? UNVISITED : 0;
+			}
+		}
 	}
 	
 	
 	/**
-	 * Make image plus of the convex hull detection result
+	 * Visits a 4-connected component of the scratch slice and fills its convex hull in the output slice when the
+	 * component has enough boundary pixels (pixels next to the background).
 	 *
-	 * @param lVoxelBoundary voxels of the boundaries
-	 * @param width slice width
-	 * @param height slice height
+	 * @param seed   first pixel of the component (in raster order)
+	 * @param output output slice
+	 */
+	private void fillComponent(int seed, byte[] output) {
+		int yFirst   = seed / this.width;
+		int yLast    = yFirst - 1;
+		int boundary = 0;
+		this.scratch[seed] = VISITED;
+		this.queue.add(seed);
+		while (!this.queue.isEmpty()) {
+			int n = this.queue.poll();
+			int j = n / this.width;
+			int i = n - j * this.width;
+			while (yLast < j) {
+				++yLast;
+				this.rowMin[yLast] = Integer.MAX_VALUE;
+				this.rowMax[yLast] = -1;
+			}
+			this.rowMin[j] = Math.min(this.rowMin[j], i);
+			this.rowMax[j] = Math.max(this.rowMax[j], i);
+			boolean onBoundary = visitNeighbour(i - 1, j, n - 1);
+			onBoundary |= visitNeighbour(i + 1, j, n + 1);
+			onBoundary |= visitNeighbour(i, j - 1, n - this.width);
+			onBoundary |= visitNeighbour(i, j + 1, n + this.width);
+			if (onBoundary) {
+				++boundary;
+			}
+		}
+		if (boundary >= MIN_BOUNDARY_PIXELS) {
+			fillHull(computeHull(yFirst, yLast), output);
+		}
+	}
+	
+	
+	/**
+	 * Queues a neighbour of a pixel of the component if it is a foreground pixel not visited yet.
+	 *
+	 * @param i first coordinate of the neighbour
+	 * @param j second coordinate of the neighbour
+	 * @param n index of the neighbour
 	 *
-	 * @return ImagePlus result
+	 * @return true if the neighbour is a background pixel of the slice
 	 */
-	public ImagePlus imageMaker(List<VoxelRecord> lVoxelBoundary,
-	                            int width,
-	                            int height) {
-		LOGGER.trace("Making image.");
-		
-		List<VoxelRecord> convexHull = ConvexHullDetection.runGrahamScan(axesName, lVoxelBoundary); // For testing
-		return makePolygon(convexHull, width, height);
+	private boolean visitNeighbour(int i, int j, int n) {
+		if (i < 0 || j < 0 || i >= this.width || j >= this.height) {
+			return false;
+		}
+		if (i < this.region[0] || j < this.region[1] || i > this.region[2] || j > this.region[3]) {
+			return true;
+		}
+		if (this.scratch[n] == UNVISITED) {
+			this.scratch[n] = VISITED;
+			this.queue.add(n);
+		}
+		return this.scratch[n] == 0;
 	}
 	
 	
 	/**
-	 * Connect all result voxels of the convex hull and create an image plus
+	 * Computes the convex hull of the component from the first and last pixels of its rows (monotone chain, collinear
+	 * points removed). The points are given in (j, i) lexicographic order.
 	 *
-	 * @param convexHull voxel of the convex hull
-	 * @param width slice width
-	 * @param height slice height
+	 * @param yFirst first row of the component
+	 * @param yLast  last row of the component
 	 *
-	 * @return ImagePlus result
+	 * @return number of vertices of the hull, stored in hullX and hullY
 	 */
-	public ImagePlus makePolygon(List<VoxelRecord> convexHull, int width, int height) {
-		ImagePlus     ip            = new ImagePlus();
-		BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-		int[]         tableWidth    = new int[convexHull.size() + 1];
-		int[]         tableHeight   = new int[convexHull.size() + 1];
-		for (int i = 0; i < convexHull.size(); ++i) {
-			switch (axesName) {
-				case "xy":
-					tableWidth[i] = (int) convexHull.get(i).i;
-					tableHeight[i] = (int) convexHull.get(i).j;
-					break;
-				case "xz":
-					tableWidth[i] = (int) convexHull.get(i).i;
-					tableHeight[i] = (int) convexHull.get(i).k;
-					break;
-				case "yz":
-					tableWidth[i] = (int) convexHull.get(i).j;
-					tableHeight[i] = (int) convexHull.get(i).k;
-					break;
-			}
+	private int computeHull(int yFirst, int yLast) {
+		int nbPoints = 2 * (yLast - yFirst + 1);
+		int nbHull   = 0;
+		for (int p = 0; p < nbPoints; ++p) {
+			nbHull = addHullPoint(nbHull, 2, yFirst, p);
 		}
-		
-		switch (axesName) {
-			case "xy":
-				tableWidth[convexHull.size()] = (int) convexHull.get(0).i;
-				tableHeight[convexHull.size()] = (int) convexHull.get(0).j;
-				break;
-			case "xz":
-				tableWidth[convexHull.size()] = (int) convexHull.get(0).i;
-				tableHeight[convexHull.size()] = (int) convexHull.get(0).k;
-				break;
-			case "yz":
-				tableWidth[convexHull.size()] = (int) convexHull.get(0).j;
-				tableHeight[convexHull.size()] = (int) convexHull.get(0).k;
-				break;
+		int lowerSize = nbHull + 1;
+		for (int p = nbPoints - 2; p >= 0; --p) {
+			nbHull = addHullPoint(nbHull, lowerSize, yFirst, p);
 		}
-		
-		ip.setImage(bufferedImage);
-		ip.getProcessor().setValue(255);
-		ip.getProcessor().fill(new PolygonRoi(tableWidth, tableHeight, tableWidth.length, Roi.POLYGON));
-		return ip;
+		// The last vertex is the first one
+		return nbHull - 1;
 	}
 	
 	
 	/**
-	 * Label all the connected components (set of voxels) found on the slice
+	 * Adds a point to a chain of the convex hull, removing the previous vertices which do not make a left turn.
 	 *
-	 * @param imagePlusInput stack
-	 * @param width width of the slice
-	 * @param height height of the slice
-	 * @param index index of the slice
+	 * @param nbHull  number of vertices of the hull
+	 * @param minSize minimal number of vertices to keep before testing the turns
+	 * @param yFirst  first row of the component
+	 * @param p       index of the point (2 * row + 0 for the first pixel of the row, + 1 for the last one)
+	 *
+	 * @return new number of vertices of the hull
+	 */
+	private int addHullPoint(int nbHull, int minSize, int yFirst, int p) {
+		int y = yFirst + p / 2;
+		int x = p % 2 == 0 ? this.rowMin[y] : this.rowMax[y];
+		while (nbHull >= minSize) {
+			long cross = (long) (this.hullX[nbHull - 1] - this.hullX[nbHull - 2]) * (y - this.hullY[nbHull - 2]) -
+			             (long) (this.hullY[nbHull - 1] - this.hullY[nbHull - 2]) * (x - this.hullX[nbHull - 2]);
+			if (cross > 0) {
+				break;
+			}
+			--nbHull;
+		}
+		this.hullX[nbHull] = x;
+		this.hullY[nbHull] = y;
+		return nbHull + 1;
+	}
+	
+	
+	/**
+	 * Fills the convex hull polygon in the output slice: on each row, the pixels whose center is between the two edges
+	 * crossing the row (left edge included, right edge excluded) are set to 255.
 	 *
-	 * @return list of label
+	 * @param nbVertices number of vertices of the hull
+	 * @param output     output slice
 	 */
-	double[][] giveTable(ImagePlus imagePlusInput, int width, int height, int index) {
-		ImageStack imageStackInput = imagePlusInput.getStack();
-		double[][] image           = new double[width][height];
-		for (int i = 0; i < width; ++i) {
-			for (int j = 0; j < height; ++j) {
-				if (axesName.equals("xy")) {
-					image[i][j] = imageStackInput.getVoxel(i, j, index);
-				} else if (axesName.equals("xz")) {
-					image[i][j] = imageStackInput.getVoxel(i, index, j);
-				} else {
-					image[i][j] = imageStackInput.getVoxel(index, i, j);
+	private void fillHull(int nbVertices, byte[] output) {
+		if (nbVertices < 3) {
+			return;
+		}
+		int yMin = Integer.MAX_VALUE;
+		int yMax = -1;
+		for (int v = 0; v < nbVertices; ++v) {
+			yMin = Math.min(yMin, this.hullY[v]);
+			yMax = Math.max(yMax, this.hullY[v]);
+		}
+		for (int y = yMin; y < yMax; ++y) {
+			long start = Long.MAX_VALUE;
+			long end   = Long.MIN_VALUE;
+			for (int v = 0; v < nbVertices; ++v) {
+				int w  = v + 1 == nbVertices ? 0 : v + 1;
+				int x0 = this.hullX[v];
+				int y0 = this.hullY[v];
+				int x1 = this.hullX[w];
+				int y1 = this.hullY[w];
+				if (y0 > y1) {
+					x0 = this.hullX[w];
+					y0 = this.hullY[w];
+					x1 = this.hullX[v];
+					y1 = this.hullY[v];
 				}
+				if (y0 <= y && y < y1) {
+					// Crossing at y + 0.5: x = num / den, first pixel whose center is on the right of x
+					long den   = 2L * (y1 - y0);
+					long num   = x0 * den + (2L * (y - y0) + 1) * (x1 - x0);
+					long first = -Math.floorDiv(den - 2 * num, 2 * den);
+					start = Math.min(start, first);
+					end = Math.max(end, first);
+				}
+			}
+			int rowStart = y * this.width;
+			for (long x = Math.max(start, 0); x < Math.min(end, this.width); ++x) {
+				output[rowStart + (int) x] = (byte) 255;
 			}
 		}
-		ConnectedComponents connectedComponents = new ConnectedComponents();
-		connectedComponents.setImageTable(image);
-		listLabel = connectedComponents.getListLabel(255); // One label per connected components
-		image = connectedComponents.getImageTable(); // Return the image where all connected components have a different label (value)
-		return image;
 	}
 	
 	
@@ -245,7 +397,7 @@ public class ConvexHullImageMaker {
 	 * @return current combined axis  analysing
 	 */
 	public String getAxes() {
-		return axesName;
+		return this.axesName;
 	}
 	
 	
@@ -255,7 +407,7 @@ public class ConvexHullImageMaker {
 	 * @param axes Current combined axis analysing
 	 */
 	public void setAxes(String axes) {
-		axesName = axes;
+		this.axesName = axes;
 	}
 	
-}
\ No newline at end of file
+}
@@ -1,10 +1,10 @@
 package gred.nucleus.utils;
 
+import gred.nucleus.connectedcomponent.ParallelComponentsLabeling;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.process.ImageProcessor;
 import ij.process.StackConverter;
-import inra.ijpb.binary.BinaryImages;
 
 
 /**
@@ -34,7 +34,7 @@ public final class FillingHoles {
 				}
 			}
 		}
-		imagePlusCorrected = BinaryImages.componentsLabeling(imagePlusCorrected, 26, 32);
+		imagePlusCorrected = ParallelComponentsLabeling.componentsLabeling(imagePlusCorrected, 26, 32);
 		int       label;
 		boolean[] tEdgeFlags = new boolean[(int) imagePlusCorrected.getStatistics().max + 1];
 		imageStackCorrected = imagePlusCorrected.getImageStack();
@@ -105,7 +105,7 @@ public final class FillingHoles {
 					}
 				}
 			}
-			imageProcessorLabeled = BinaryImages.componentsLabeling(imageProcessorLabeled, 26, 32);
+			imageProcessorLabeled = ParallelComponentsLabeling.componentsLabeling(imageProcessorLabeled, 26, 32);
 			int       label;
 			boolean[] tEdgeFlags = new boolean[(int) imageProcessorLabeled.getMax() + 1];
 			// Analysis of extreme plans along x axis
@@ -4,95 +4,174 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
-/** @author Tristan Dubos and Axel Poulet */
+/**
+ * Gradient and unit normals of an image, computed with central differences divided by the calibration.
+ * <p>
+ * Values are stored in flat float tables, one table per image row (j, k) holding the six components (gx, gy, gz, nx,
+ * ny, nz) one after the other. A row is only computed the first time one of its voxels is read, so the surface
+ * computation only pays for the rows crossed by the boundary of the segmented object. Rows are published atomically:
+ * once built, a gradient can be read by several threads. Voxels on the border of the image have a null gradient.
+ *
+ * @author Tristan Dubos and Axel Poulet
+ */
 public class Gradient {
+	/** Offset of the x gradient in a row */
+	private static final int GRADIENT_X = 0;
+	/** Offset of the y gradient in a row */
+	private static final int GRADIENT_Y = 1;
+	/** Offset of the z gradient in a row */
+	private static final int GRADIENT_Z = 2;
+	/** Offset of the x unit normal in a row */
+	private static final int NORMAL_X   = 3;
+	/** Offset of the y unit normal in a row */
+	private static final int NORMAL_Y   = 4;
+	/** Offset of the z unit normal in a row */
+	private static final int NORMAL_Z   = 5;
+	/** Number of components stored for each voxel */
+	private static final int COMPONENTS = 6;
+	
+	/** Stack of the image (only read) */
+	private final ImageStack                     imageStack;
+	/** Width of the image */
+	private final int                            width;
+	/** Height of the image */
+	private final int                            height;
+	/** Number of slices of the image */
+	private final int                            depth;
+	/** X calibration of the image when the gradient was created */
+	private final double                         xCalibration;
+	/** Y calibration of the image when the gradient was created */
+	private final double                         yCalibration;
+	/** Z calibration of the image when the gradient was created */
+	private final double                         zCalibration;
+	/** Rows of the gradient, indexed by k * height + j, null until computed */
+	private final AtomicReferenceArray<float[]> rows;
+	
+	
+	public Gradient(ImagePlus imagePlusInput) {
+		Calibration calibration = imagePlusInput.getCalibration();
+		this.imageStack = imagePlusInput.getStack();
+		this.width = imagePlusInput.getWidth();
+		this.height = imagePlusInput.getHeight();
+		this.depth = imagePlusInput.getStackSize();
+		this.xCalibration = calibration.pixelWidth;
+		this.yCalibration = calibration.pixelHeight;
+		this.zCalibration = calibration.pixelDepth;
+		this.rows = new AtomicReferenceArray<>(this.height * this.depth);
+	}
+	
+	
 	/**
+	 * Returns the row of a voxel, computing it if needed.
 	 *
-	 */
-	private final List<Double>[][][] tableGradient;
-	/**
+	 * @param j y coordinate of the row
+	 * @param k z coordinate of the row
 	 *
+	 * @return row values
 	 */
-	private final List<Double>[][][] tableUnitNormals;
-	
-	
-	@SuppressWarnings("unchecked")
-	public Gradient(ImagePlus imagePlusInput) {
-		int w = imagePlusInput.getWidth();
-		int h = imagePlusInput.getHeight();
-		int d = imagePlusInput.getStackSize();
-		tableGradient = new ArrayList[w][h][d];
-		tableUnitNormals = new ArrayList[w][h][d];
-		computeGradient(imagePlusInput);
+	private float[] getRow(int j, int k) {
+		int     index = k * this.height + j;
+		float[] row   = this.rows.get(index);
+		if (row == null) {
+			/* Rows are deterministic: if two threads compute the same row, the first one published is kept */
+			this.rows.compareAndSet(index, null, computeRow(j, k));
+			row = this.rows.get(index);
+		}
+		return row;
 	}
 	
 	
 	/**
-	 * @param imagePlusInput
+	 * Computes the gradient and the unit normals of a row.
+	 *
+	 * @param j y coordinate of the row
+	 * @param k z coordinate of the row
 	 *
-	 * @return
+	 * @return row values
 	 */
-	private void computeGradient(ImagePlus imagePlusInput) {
-		Calibration calibration     = imagePlusInput.getCalibration();
-		ImageStack  imageStackInput = imagePlusInput.getStack();
-		double      xCalibration    = calibration.pixelWidth;
-		double      yCalibration    = calibration.pixelHeight;
-		double      zCalibration    = calibration.pixelDepth;
-		for (int k = 1; k < imagePlusInput.getStackSize() - 1; ++k) {
-			for (int i = 1; i < imagePlusInput.getWidth() - 1; ++i) {
-				for (int j = 1; j < imagePlusInput.getHeight() - 1; ++j) {
-					List<Double> list = new ArrayList<>();
-					double       dx   = 0;
-					double       dy   = 0;
-					double       dz   = 0;
-					if (k - 1 > 1 || j - 1 > 1 || i - 1 > 1 || k + 1 < imagePlusInput.getStackSize() - 1 ||
-					    j + 1 < imagePlusInput.getHeight() - 1 || i + 1 < imagePlusInput.getWidth() - 1) {
-						dx = (1 / xCalibration) *
-						     ((imageStackInput.getVoxel(i + 1, j, k) - imageStackInput.getVoxel(i - 1, j, k)) / 2);
-						dy = (1 / yCalibration) *
-						     ((imageStackInput.getVoxel(i, j + 1, k) - imageStackInput.getVoxel(i, j - 1, k)) / 2);
-						dz = (1 / zCalibration) *
-						     ((imageStackInput.getVoxel(i, j, k + 1) - imageStackInput.getVoxel(i, j, k - 1)) / 2);
-					}
-					list.add(dx);
-					list.add(dy);
-					list.add(dz);
-					tableGradient[i][j][k] = list;
-					/* temp variable */
-					double norm = Math.sqrt(dx * dx + dy * dy + dz * dz);
-					double nx   = 0;
-					double ny   = 0;
-					double nz   = 0;
-					if (norm > 1e-15) {
-						nx = dx / norm;
-						ny = dy / norm;
-						nz = dz / norm;
-					}
-					List<Double> listN = new ArrayList<>();
-					listN.add(nx);
-					listN.add(ny);
-					listN.add(nz);
-					tableUnitNormals[i][j][k] = listN;
-				}
+	private float[] computeRow(int j, int k) {
+		float[] row = new float[COMPONENTS * this.width];
+		if (k < 1 || k >= this.depth - 1 || j < 1 || j >= this.height - 1) {
+			return row;
+		}
+		for (int i = 1; i < this.width - 1; ++i) {
+			double dx = 0;
+			double dy = 0;
+			double dz = 0;
+			if (k - 1 > 1 || j - 1 > 1 || i - 1 > 1 || k + 1 < this.depth - 1 ||
+			    j + 1 < this.height - 1 || i + 1 < this.width - 1) {
+				dx = (1 / this.xCalibration) *
+				     ((this.imageStack.getVoxel(i + 1, j, k) - this.imageStack.getVoxel(i - 1, j, k)) / 2);
+				dy = (1 / this.yCalibration) *
+				     ((this.imageStack.getVoxel(i, j + 1, k) - this.imageStack.getVoxel(i, j - 1, k)) / 2);
+				dz = (1 / this.zCalibration) *
+				     ((this.imageStack.getVoxel(i, j, k + 1) - this.imageStack.getVoxel(i, j, k - 1)) / 2);
+			}
+			row[GRADIENT_X * this.width + i] = (float) dx;
+			row[GRADIENT_Y * this.width + i] = (float) dy;
+			row[GRADIENT_Z * this.width + i] = (float) dz;
+			double norm = Math.sqrt(dx * dx + dy * dy + dz * dz);
+			if (norm > 1e-15) {
+				row[NORMAL_X * this.width + i] = (float) (dx / norm);
+				row[NORMAL_Y * this.width + i] = (float) (dy / norm);
+				row[NORMAL_Z * this.width + i] = (float) (dz / norm);
 			}
 		}
-		// IJ.log("fin Gradient");
+		return row;
+	}
+	
+	
+	/**
+	 * Returns one component of the gradient at a voxel.
+	 *
+	 * @param component offset of the component
+	 * @param i         x coordinate
+	 * @param j         y coordinate
+	 * @param k         z coordinate
+	 *
+	 * @return component value
+	 */
+	private float getComponent(int component, int i, int j, int k) {
+		return getRow(j, k)[component * this.width + i];
+	}
+	
+	
+	/** @return x gradient at voxel (i, j, k) */
+	public float getGradientX(int i, int j, int k) {
+		return getComponent(GRADIENT_X, i, j, k);
+	}
+	
+	
+	/** @return y gradient at voxel (i, j, k) */
+	public float getGradientY(int i, int j, int k) {
+		return getComponent(GRADIENT_Y, i, j, k);
+	}
+	
+	
+	/** @return z gradient at voxel (i, j, k) */
+	public float getGradientZ(int i, int j, int k) {
+		return getComponent(GRADIENT_Z, i, j, k);
+	}
+	
+	
+	/** @return x component of the unit normal at voxel (i, j, k) */
+	public float getNormalX(int i, int j, int k) {
+		return getComponent(NORMAL_X, i, j, k);
 	}
 	
 	
-	/** @return  */
-	public List<Double>[][][] getUnitNormals() {
-		return tableUnitNormals;
+	/** @return y component of the unit normal at voxel (i, j, k) */
+	public float getNormalY(int i, int j, int k) {
+		return getComponent(NORMAL_Y, i, j, k);
 	}
 	
 	
-	/** @return  */
-	public List<Double>[][][] getGradient() {
-		return tableGradient;
+	/** @return z component of the unit normal at voxel (i, j, k) */
+	public float getNormalZ(int i, int j, int k) {
+		return getComponent(NORMAL_Z, i, j, k);
 	}
 	
-}
\ No newline at end of file
+}
@@ -6,26 +6,39 @@ import ij.ImageStack;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.RecursiveTask;
 
 
 /**
  * This class permit to obtain values who are on the Input image (8, 16 or 32 bits)
+ * <p>
+ * Only the voxels with a value > 0 are counted. 8 and 16-bit images are counted in dense tables indexed by the voxel
+ * value, other images (32-bit label images) are counted in open-addressing hash tables (value, count) reading the
+ * float pixels directly. Slices are counted in parallel and the partial histograms are merged; only the distinct values
+ * are sorted at the end. Values are exposed as sorted primitive tables.
  *
  * @author Tristan Dubos and Axel Poulet
  */
 public class Histogram {
-	/** HashMap which stock the different values of voxels and the number of voxels for each value present on the image */
-	private final Map<Double, Integer> hHistogram = new TreeMap<>();
-	/** All the value present on the image */
-	private       double[]             label;
+	/** Number of slices under which the slices are counted sequentially */
+	private static final int SEQUENTIAL_SLICES = 4;
+	
+	/** All the value present on the image, sorted */
+	private double[]             label            = new double[0];
+	/** Number of voxels of each value of the label table */
+	private long[]               counts           = new long[0];
+	/** Number of voxels with a value lower or equal to each value of the label table */
+	private long[]               cumulativeCounts = new long[0];
+	/** Map view of the histogram, built on demand */
+	private Map<Double, Integer> hHistogram;
 	/**
 	 *
 	 */
-	private       double               labelMax   = -1;
+	private double               labelMax         = -1;
 	/**
 	 *
 	 */
-	private       int                  nbLabel    = 0;
+	private int                  nbLabel          = 0;
 	
 	
 	/**
@@ -35,63 +48,161 @@ public class Histogram {
 	}
 	
 	
-	/** @param imagePlusInput  */
+	/**
+	 * Computes the histogram of an image, replacing any previous result.
+	 *
+	 * @param imagePlusInput image to analyse
+	 */
 	public void run(ImagePlus imagePlusInput) {
-		Object[] tTemp = computeHistogram(imagePlusInput).keySet().toArray();
-		label = new double[tTemp.length];
-		for (int i = 0; i < tTemp.length; ++i) {
-			label[i] = Double.parseDouble(tTemp[i].toString());
+		SliceCounts sliceCounts = new HistogramTask(imagePlusInput.getImageStack(),
+		                                            imagePlusInput.getBitDepth(),
+		                                            0,
+		                                            imagePlusInput.getNSlices()).invoke();
+		sliceCounts.toSorted();
+		this.label = Arrays.copyOf(sliceCounts.values, sliceCounts.size);
+		this.counts = Arrays.copyOf(sliceCounts.valueCounts, sliceCounts.size);
+		this.cumulativeCounts = new long[sliceCounts.size];
+		long cumulativeCount = 0;
+		for (int i = 0; i < this.counts.length; ++i) {
+			cumulativeCount += this.counts[i];
+			this.cumulativeCounts[i] = cumulativeCount;
 		}
-		Arrays.sort(label);
-		if (nbLabel > 0) {
-			labelMax = label[label.length - 1];
+		this.nbLabel = this.label.length;
+		this.labelMax = this.nbLabel > 0 ? this.label[this.nbLabel - 1] : -1;
+		this.hHistogram = null;
+	}
+	
+	
+	/**
+	 * this method return a double table which contain the all the value voxel present on the input image
+	 *
+	 * @return
+	 */
+	public double[] getLabels() {
+		return label;
+	}
+	
+	
+	/**
+	 * Returns the number of voxels of each value, in the order of {@link #getLabels()}.
+	 *
+	 * @return number of voxels of each value
+	 */
+	public long[] getCounts() {
+		return counts;
+	}
+	
+	
+	/**
+	 * Returns the number of voxels with a value lower or equal to each value, in the order of {@link #getLabels()}.
+	 *
+	 * @return cumulative number of voxels
+	 */
+	public long[] getCumulativeCounts() {
+		return cumulativeCounts;
+	}
+	
+	
+	/**
+	 * Returns the number of voxels with a value.
+	 *
+	 * @param value voxel value
+	 *
+	 * @return number of voxels, 0 if the value is not present on the image
+	 */
+	public long getCount(double value) {
+		int index = Arrays.binarySearch(label, value);
+		return index >= 0 ? counts[index] : 0;
+	}
+	
+	
+	/** @return number of voxels counted (voxels > 0) */
+	public long getTotalCount() {
+		return cumulativeCounts.length > 0 ? cumulativeCounts[cumulativeCounts.length - 1] : 0;
+	}
+	
+	
+	/**
+	 * Returns the first value for which the cumulative number of voxels is greater than a rank.
+	 *
+	 * @param rank number of voxels
+	 *
+	 * @return first value above the rank, 0 if there is none
+	 */
+	public double getLabelAtRank(long rank) {
+		for (int i = 0; i < cumulativeCounts.length; ++i) {
+			if (cumulativeCounts[i] > rank) {
+				return label[i];
+			}
 		}
+		return 0;
 	}
 	
 	
 	/**
-	 * this method return a Histogram of the image input in hashMap form
+	 * Computes the median value of the histogram for a given number of voxels: the voxels not counted (value 0) are
+	 * ignored, which places the median at a higher rank than in the histogram when size is greater than the number of
+	 * voxels counted. If the median is between two values, their mean is returned.
 	 *
-	 * @param imagePlusInput
+	 * @param size number of voxels
 	 *
-	 * @return
+	 * @return median value
 	 */
-	private Map<Double, Integer> computeHistogram(ImagePlus imagePlusInput) {
-		double     voxelValue;
-		ImageStack imageStackInput = imagePlusInput.getImageStack();
-		for (int k = 0; k < imagePlusInput.getNSlices(); ++k) {
-			for (int i = 0; i < imagePlusInput.getWidth(); ++i) {
-				for (int j = 0; j < imagePlusInput.getHeight(); ++j) {
-					voxelValue = imageStackInput.getVoxel(i, j, k);
-					if (voxelValue > 0) {
-						if (hHistogram.containsKey(voxelValue)) {
-							int nbVoxel = hHistogram.get(voxelValue);
-							++nbVoxel;
-							hHistogram.put(voxelValue, nbVoxel);
-						} else {
-							hHistogram.put(voxelValue, 1);
-							++nbLabel;
-						}
-					}
-				}
+	public double getMedian(long size) {
+		return computeMedian(label, counts, size);
+	}
+	
+	
+	/**
+	 * Computes the median value of a histogram for a given number of voxels, as {@link #getMedian(long)}.
+	 *
+	 * @param values sorted values of the histogram
+	 * @param counts number of voxels of each value
+	 * @param size   number of voxels
+	 *
+	 * @return median value
+	 */
+	public static double computeMedian(double[] values, long[] counts, long size) {
+		double  voxelMedianValue = 0;
+		long    increment        = 0;
+		boolean even             = false;
+		for (int i = 0; i < values.length; ++i) {
+			increment += counts[i];
+			if (size == 2 * increment) {
+				voxelMedianValue = values[i];
+				even = true;
+			} else if (size < 2 * increment) {
+				voxelMedianValue += values[i];
+				if (even) voxelMedianValue /= 2;
+				break;
 			}
 		}
-		return hHistogram;
+		return voxelMedianValue;
 	}
 	
 	
 	/**
-	 * this method return a double table which contain the all the value voxel present on the input image
+	 * Computes the median value of the voxels counted.
 	 *
-	 * @return
+	 * @return median value
 	 */
-	public double[] getLabels() {
-		return label;
+	public double getMedian() {
+		return getMedian(getTotalCount());
 	}
 	
 	
-	/** @return  */
+	/**
+	 * Returns the histogram as a sorted map (value, number of voxels). The map is built on the first call.
+	 *
+	 * @return
+	 */
 	public Map<Double, Integer> getHistogram() {
+		if (hHistogram == null) {
+			hHistogram = new TreeMap<>();
+			for (int i = 0; i < label.length; ++i) {
+				hHistogram.put(label[i], (int) counts[i]);
+			}
+		}
 		return hHistogram;
 	}
 	
@@ -107,4 +218,221 @@ public class Histogram {
 		return nbLabel;
 	}
 	
+	
+	/**
+	 * Partial histogram of a range of slices: dense table indexed by the value for 8 and 16-bit images, hash table of
+	 * the values otherwise. Once complete, it is converted to sorted values and counts.
+	 */
+	private static class SliceCounts {
+		/** Initial capacity of the hash table (power of 2) */
+		private static final int INITIAL_CAPACITY = 256;
+		
+		/** Dense counts (null for a hash table) */
+		long[]   dense;
+		/** Hash table of the values: bits of the float values (> 0), 0 for an empty slot */
+		int[]    keys;
+		/** Counts of the values of the hash table */
+		long[]   keyCounts;
+		/** Number of values of the hash table, then of the sorted values */
+		int      size;
+		/** Sorted values */
+		double[] values;
+		/** Counts of the sorted values */
+		long[]   valueCounts;
+		
+		
+		/** Creates an empty hash table. */
+		void initHashTable() {
+			keys = new int[INITIAL_CAPACITY];
+			keyCounts = new long[INITIAL_CAPACITY];
+		}
+		
+		
+		/**
+		 * Finds the slot of a value in the hash table (linear probing).
+		 *
+		 * @param key bits of the value
+		 *
+		 * @return slot of the value, or empty slot where it can be added
+		 */
+		private int slot(int key) {
+			int mask = keys.length - 1;
+			int h    = key * 0x9E3779B9;
+			int i    = (h ^ h >>> 16) & mask;
+			while (keys[i] != 0 && keys[i] != key) {
+				i = i + 1 & mask;
+			}
+			return i;
+		}
+		
+		
+		/**
+		 * Adds voxels to a value of the hash table.
+		 *
+		 * @param key   bits of the value (not 0)
+		 * @param count number of voxels
+		 */
+		void add(int key, long count) {
+			int i = slot(key);
+			if (keys[i] == 0) {
+				if (2 * (size + 1) > keys.length) {
+					grow();
+					i = slot(key);
+				}
+				keys[i] = key;
+				++size;
+			}
+			keyCounts[i] += count;
+		}
+		
+		
+		/** Doubles the capacity of the hash table. */
+		private void grow() {
+			int[]  oldKeys   = keys;
+			long[] oldCounts = keyCounts;
+			keys = new int[2 * oldKeys.length];
+			keyCounts = new long[2 * oldKeys.length];
+			for (int i = 0; i < oldKeys.length; ++i) {
+				if (oldKeys[i] != 0) {
+					int j = slot(oldKeys[i]);
+					keys[j] = oldKeys[i];
+					keyCounts[j] = oldCounts[i];
+				}
+			}
+		}
+		
+		
+		/**
+		 * Adds another partial histogram of the same kind to this one.
+		 *
+		 * @param other partial histogram
+		 */
+		void merge(SliceCounts other) {
+			if (dense != null) {
+				for (int v = 0; v < dense.length; ++v) {
+					dense[v] += other.dense[v];
+				}
+			} else {
+				for (int i = 0; i < other.keys.length; ++i) {
+					if (other.keys[i] != 0) {
+						add(other.keys[i], other.keyCounts[i]);
+					}
+				}
+			}
+		}
+		
+		
+		/**
+		 * Converts the histogram to sorted values and counts, ignoring the value 0. Only the distinct values of a hash
+		 * table are sorted: the bits of positive floats are in the order of the values.
+		 */
+		void toSorted() {
+			if (dense != null) {
+				values = new double[dense.length];
+				valueCounts = new long[dense.length];
+				size = 0;
+				for (int v = 1; v < dense.length; ++v) {
+					if (dense[v] > 0) {
+						values[size] = v;
+						valueCounts[size++] = dense[v];
+					}
+				}
+				dense = null;
+			} else {
+				int[] sortedKeys = new int[size];
+				int   n          = 0;
+				for (int key : keys) {
+					if (key != 0) {
+						sortedKeys[n++] = key;
+					}
+				}
+				Arrays.sort(sortedKeys);
+				values = new double[size];
+				valueCounts = new long[size];
+				for (int i = 0; i < size; ++i) {
+					values[i] = Float.intBitsToFloat(sortedKeys[i]);
+					valueCounts[i] = keyCounts[slot(sortedKeys[i])];
+				}
+				keys = null;
+				keyCounts = null;
+			}
+		}
+		
+	}
+	
+	
+	/** Fork/join task counting the voxels of a range of slices. */
+	private static class HistogramTask extends RecursiveTask<SliceCounts> {
+		/** Stack of the image */
+		private final ImageStack imageStack;
+		/** Bit depth of the image */
+		private final int        bitDepth;
+		/** First slice of the range (included, from 0) */
+		private final int        start;
+		/** Last slice of the range (excluded) */
+		private final int        end;
+		
+		
+		HistogramTask(ImageStack imageStack, int bitDepth, int start, int end) {
+			this.imageStack = imageStack;
+			this.bitDepth = bitDepth;
+			this.start = start;
+			this.end = end;
+		}
+		
+		
+		@Override
+		protected SliceCounts compute() {
+			if (end - start > SEQUENTIAL_SLICES) {
+				int           middle = (start + end) >>> 1;
+				HistogramTask right  = new HistogramTask(imageStack, bitDepth, middle, end);
+				right.fork();
+				SliceCounts sliceCounts = new HistogramTask(imageStack, bitDepth, start, middle).compute();
+				sliceCounts.merge(right.join());
+				return sliceCounts;
+			}
+			SliceCounts sliceCounts = new SliceCounts();
+			if (bitDepth == 8 || bitDepth == 16) {
+				sliceCounts.dense = new long[bitDepth == 8 ? 256 : 65536];
+				for (int k = start; k < end; ++k) {
+					Object pixels = imageStack.getPixels(k + 1);
+					if (bitDepth == 8) {
+						for (byte pixel : (byte[]) pixels) {
+							sliceCounts.dense[pixel & 0xff]++;
+						}
+					} else {
+						for (short pixel : (short[]) pixels) {
+							sliceCounts.dense[pixel & 0xffff]++;
+						}
+					}
+				}
+			} else {
+				sliceCounts.initHashTable();
+				int width  = imageStack.getWidth();
+				int height = imageStack.getHeight();
+				for (int k = start; k < end; ++k) {
+					Object pixels = imageStack.getPixels(k + 1);
+					if (pixels instanceof float[]) {
+						for (float pixel : (float[]) pixels) {
+							if (pixel > 0) {
+								sliceCounts.add(Float.floatToIntBits(pixel), 1);
+							}
+						}
+					} else {
+						for (int j = 0; j < height; ++j) {
+							for (int i = 0; i < width; ++i) {
+								float voxelValue = (float) imageStack.getVoxel(i, j, k);
+								if (voxelValue > 0) {
+									sliceCounts.add(Float.floatToIntBits(voxelValue), 1);
+								}
+							}
+						}
+					}
+				}
+			}
+			return sliceCounts;
+		}
+		
+	}
+	
 }
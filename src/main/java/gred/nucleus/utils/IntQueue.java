@@ -0,0 +1,99 @@
+package gred.nucleus.utils;
+
+import java.util.NoSuchElementException;
+
+
+/**
+ * First in, first out queue of int values (for instance linear indices of voxels) stored in a growable circular array,
+ * without boxing.
+ *
+ * @author Tristan Dubos and Axel Poulet
+ */
+public class IntQueue {
+	/** Values of the queue (circular buffer, the length is a power of 2) */
+	private int[] values;
+	/** Index of the head of the queue */
+	private int   head = 0;
+	/** Number of values in the queue */
+	private int   size = 0;
+	
+	
+	/** Constructor of an empty queue */
+	public IntQueue() {
+		this(64);
+	}
+	
+	
+	/**
+	 * Constructor of an empty queue
+	 *
+	 * @param initialCapacity initial number of values which can be stored before growing
+	 */
+	public IntQueue(int initialCapacity) {
+		int capacity = Integer.highestOneBit(Math.max(2, initialCapacity - 1)) << 1;
+		this.values = new int[capacity];
+	}
+	
+	
+	/**
+	 * Adds a value at the tail of the queue.
+	 *
+	 * @param value value to add
+	 */
+	public void add(int value) {
+		if (this.size == this.values.length) {
+			grow();
+		}
+		this.values[(this.head + this.size) & (this.values.length - 1)] = value;
+		this.size++;
+	}
+	
+	
+	/**
+	 * Retrieves and removes the head of the queue.
+	 *
+	 * @return head of the queue
+	 *
+	 * @throws NoSuchElementException if the queue is empty
+	 */
+	public int poll() {
+		if (this.size == 0) {
+			throw new NoSuchElementException("Empty queue");
+		}
+		int value = this.values[this.head];
+		this.head = (this.head + 1) & (this.values.length - 1);
+		this.size--;
+		return value;
+	}
+	
+	
+	/** @return true if the queue is empty */
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+	
+	
+	/** @return number of values in the queue */
+	public int size() {
+		return this.size;
+	}
+	
+	
+	/** Removes all the values of the queue (the capacity is kept). */
+	public void clear() {
+		this.head = 0;
+		this.size = 0;
+	}
+	
+	
+	/** Doubles the capacity of the queue, moving the values to the beginning of the new array. */
+	private void grow() {
+		int[] newValues = new int[2 * this.values.length];
+		int   tailCount = this.values.length - this.head;
+		System.arraycopy(this.values, this.head, newValues, 0, tailCount);
+		System.arraycopy(this.values, 0, newValues, tailCount, this.head);
+		this.values = newValues;
+		this.head = 0;
+	}
+	
+}
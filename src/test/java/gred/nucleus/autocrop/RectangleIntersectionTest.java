@@ -0,0 +1,119 @@
+package gred.nucleus.autocrop;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.awt.Rectangle;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+class RectangleIntersectionTest {
+	
+	private static Map<Double, Box> merge(Map<Double, Box> boxes, AutocropParameters autocropParameters) {
+		RectangleIntersection rectangleIntersection = new RectangleIntersection(boxes, autocropParameters);
+		rectangleIntersection.runRectangleRecompilation();
+		return rectangleIntersection.getNewBoxes();
+	}
+	
+	
+	private static boolean contains(Box box, Box other) {
+		return box.getXMin() <= other.getXMin() && other.getXMax() <= box.getXMax() &&
+		       box.getYMin() <= other.getYMin() && other.getYMax() <= box.getYMax() &&
+		       box.getZMin() <= other.getZMin() && other.getZMax() <= box.getZMax();
+	}
+	
+	
+	private static Rectangle toRectangle(Box box) {
+		return new Rectangle(box.getXMin(),
+		                     box.getYMin(),
+		                     box.getXMax() - box.getXMin(),
+		                     box.getYMax() - box.getYMin());
+	}
+	
+	
+	@Test
+	@Tag("functional")
+	void testMergedBoxStartsAtZero() {
+		Map<Double, Box> boxes = new HashMap<>();
+		boxes.put(1.0, new Box(0, 40, 0, 40, 0, 10));
+		boxes.put(2.0, new Box(10, 50, 10, 50, 2, 12));
+		
+		Map<Double, Box> newBoxes = merge(boxes, new AutocropParameters(".", "."));
+		
+		assertEquals(1, newBoxes.size());
+		Box box = newBoxes.get(0.0);
+		assertEquals(0, box.getXMin());
+		assertEquals(50, box.getXMax());
+		assertEquals(0, box.getYMin());
+		assertEquals(50, box.getYMax());
+		assertEquals(0, box.getZMin());
+		assertEquals(12, box.getZMax());
+	}
+	
+	
+	@Test
+	@Tag("functional")
+	void testMergedBoxEndsAtLastSlice() {
+		Map<Double, Box> boxes = new HashMap<>();
+		boxes.put(1.0, new Box(10, 50, 10, 50, 2, 20));
+		boxes.put(2.0, new Box(20, 60, 20, 60, 5, 8));
+		
+		Map<Double, Box> newBoxes = merge(boxes, new AutocropParameters(".", "."));
+		
+		assertEquals(1, newBoxes.size());
+		assertEquals(2, newBoxes.get(0.0).getZMin());
+		assertEquals(20, newBoxes.get(0.0).getZMax());
+	}
+	
+	
+	@Test
+	@Tag("functional")
+	void testMergedBoxesCoverInputBoxes() {
+		AutocropParameters autocropParameters = new AutocropParameters(".", ".");
+		int                percent            = autocropParameters.getBoxesPercentSurfaceToFilter();
+		Random             random             = new Random(42);
+		for (int n = 0; n < 500; ++n) {
+			Map<Double, Box> boxes   = new HashMap<>();
+			int              nbBoxes = 1 + random.nextInt(30);
+			for (int i = 0; i < nbBoxes; ++i) {
+				int x = random.nextInt(4) == 0 ? 0 : random.nextInt(200);
+				int y = random.nextInt(4) == 0 ? 0 : random.nextInt(200);
+				int z = random.nextInt(3) == 0 ? 0 : random.nextInt(20);
+				boxes.put((double) i, new Box(x,
+				                              x + 1 + random.nextInt(60),
+				                              y,
+				                              y + 1 + random.nextInt(60),
+				                              z,
+				                              z + 1 + random.nextInt(15)));
+			}
+			
+			Map<Double, Box> newBoxes = merge(boxes, autocropParameters);
+			
+			for (Box box : boxes.values()) {
+				boolean covered = false;
+				for (Box newBox : newBoxes.values()) {
+					covered |= contains(newBox, box);
+				}
+				assertTrue(covered);
+			}
+			for (Box box1 : newBoxes.values()) {
+				for (Box box2 : newBoxes.values()) {
+					if (box1 != box2) {
+						Rectangle r1 = toRectangle(box1);
+						Rectangle r2 = toRectangle(box2);
+						assertFalse(r1.intersects(r2) &&
+						            (RectangleIntersection.percentOf2Rectangles(r1, r2) > percent ||
+						             RectangleIntersection.percentOf2Rectangles(r2, r1) > percent));
+					}
+				}
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,114 @@
+package gred.nucleus.autocrop;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import inra.ijpb.binary.BinaryImages;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static gred.nucleus.connectedcomponent.BinaryTestImages.chainsImage;
+import static gred.nucleus.connectedcomponent.BinaryTestImages.randomBinaryImage;
+import static gred.nucleus.connectedcomponent.BinaryTestImages.randomBinaryImages;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+
+class StreamingComponentLabellingTest {
+	
+	/**
+	 * Checks the labels, voxel counts, bounding boxes and border flags of the components against the 26-connected
+	 * labels of MorphoLibJ.
+	 */
+	private static void assertSameComponents(ImagePlus binaryImage) {
+		ImageStack                  expected   = BinaryImages.componentsLabeling(binaryImage, 26, 32).getStack();
+		StreamingComponentLabelling components = new StreamingComponentLabelling(binaryImage);
+		ImageStack                  actual     = components.getLabelledImage(false).getStack();
+		int                         width      = expected.getWidth();
+		int                         height     = expected.getHeight();
+		int                         depth      = expected.getSize();
+		
+		int       nbLabels = 0;
+		long[]    counts   = new long[width * height * depth + 1];
+		int[][]   bounds   = new int[counts.length][];
+		boolean[] border   = new boolean[counts.length];
+		for (int k = 0; k < depth; ++k) {
+			ImageProcessor expectedSlice = expected.getProcessor(k + 1);
+			ImageProcessor actualSlice   = actual.getProcessor(k + 1);
+			for (int j = 0, n = 0; j < height; ++j) {
+				for (int i = 0; i < width; ++i, ++n) {
+					int label = (int) expectedSlice.getf(n);
+					assertEquals(label, (int) actualSlice.getf(n), "slice " + k + ", pixel " + n);
+					if (label == 0) {
+						continue;
+					}
+					nbLabels = Math.max(nbLabels, label);
+					counts[label]++;
+					if (bounds[label] == null) {
+						bounds[label] = new int[]{i, j, k, i, j, k};
+					}
+					int[] b = bounds[label];
+					b[0] = Math.min(b[0], i);
+					b[1] = Math.min(b[1], j);
+					b[2] = Math.min(b[2], k);
+					b[3] = Math.max(b[3], i);
+					b[4] = Math.max(b[4], j);
+					b[5] = Math.max(b[5], k);
+					border[label] |= i == 0 || j == 0 || i == width - 1 || j == height - 1 ||
+					                 depth > 1 && (k == 0 || k == depth - 1);
+				}
+			}
+		}
+		
+		assertEquals(nbLabels, components.getNumberOfComponents());
+		for (int label = 1; label <= nbLabels; ++label) {
+			assertEquals(counts[label], components.getVoxelCount(label));
+			assertEquals(border[label], components.isOnBorder(label));
+			Box box = components.getBox(label);
+			assertNotNull(box);
+			assertEquals(bounds[label][0], box.getXMin());
+			assertEquals(bounds[label][1], box.getYMin());
+			assertEquals(bounds[label][2], box.getZMin());
+			assertEquals(bounds[label][3], box.getXMax());
+			assertEquals(bounds[label][4], box.getYMax());
+			assertEquals(bounds[label][5], box.getZMax());
+		}
+	}
+	
+	
+	@Test
+	@Tag("functional")
+	void testRandomImages() {
+		for (ImagePlus binaryImage : randomBinaryImages(26, 0.05, 0.03)) {
+			assertSameComponents(binaryImage);
+		}
+	}
+	
+	
+	@Test
+	@Tag("functional")
+	void testChainsCrossingSlices() {
+		ImagePlus binaryImage = chainsImage(25);
+		assertSameComponents(binaryImage);
+		assertEquals(3, new StreamingComponentLabelling(binaryImage).getNumberOfComponents());
+	}
+	
+	
+	@Test
+	@Tag("functional")
+	void testRemoveBorderComponents() {
+		ImagePlus                   binaryImage = randomBinaryImage(new Random(1), 40, 30, 25, 0.1);
+		StreamingComponentLabelling components  = new StreamingComponentLabelling(binaryImage);
+		ImageStack                  all         = components.getLabelledImage(false).getStack();
+		ImageStack                  inner       = components.getLabelledImage(true).getStack();
+		for (int k = 1; k <= all.getSize(); ++k) {
+			for (int n = 0; n < all.getWidth() * all.getHeight(); ++n) {
+				int label = (int) all.getProcessor(k).getf(n);
+				assertEquals(components.isOnBorder(label) ? 0 : label, (int) inner.getProcessor(k).getf(n));
+			}
+		}
+	}
+	
+}
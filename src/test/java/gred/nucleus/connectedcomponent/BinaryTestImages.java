@@ -0,0 +1,85 @@
+package gred.nucleus.connectedcomponent;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+/** Binary images used to test the connected components labellings against MorphoLibJ. */
+public final class BinaryTestImages {
+	
+	private BinaryTestImages() {
+	}
+	
+	
+	/**
+	 * Builds a binary image with random foreground voxels.
+	 *
+	 * @param random  random generator
+	 * @param width   width of the image
+	 * @param height  height of the image
+	 * @param depth   number of slices
+	 * @param density probability of a voxel to be foreground
+	 *
+	 * @return binary image (0 or 255)
+	 */
+	public static ImagePlus randomBinaryImage(Random random, int width, int height, int depth, double density) {
+		ImageStack stack = new ImageStack(width, height);
+		for (int k = 0; k < depth; ++k) {
+			byte[] pixels = new byte[width * height];
+			for (int n = 0; n < pixels.length; ++n) {
+				if (random.nextDouble() < density) {
+					pixels[n] = (byte) 255;
+				}
+			}
+			stack.addSlice(new ByteProcessor(width, height, pixels));
+		}
+		return new ImagePlus("binary", stack);
+	}
+	
+	
+	/**
+	 * Builds ten random binary images of 40x30x25 voxels with increasing densities.
+	 *
+	 * @param seed         seed of the random generator
+	 * @param firstDensity density of the first image
+	 * @param densityStep  density added from an image to the next one
+	 *
+	 * @return binary images
+	 */
+	public static List<ImagePlus> randomBinaryImages(long seed, double firstDensity, double densityStep) {
+		Random          random = new Random(seed);
+		List<ImagePlus> images = new ArrayList<>();
+		for (int i = 0; i < 10; ++i) {
+			images.add(randomBinaryImage(random, 40, 30, 25, firstDensity + densityStep * i));
+		}
+		return images;
+	}
+	
+	
+	/**
+	 * Builds a binary image with chains of voxels crossing all the slices: a column (6-connected), a chain moving in x
+	 * at each slice (18-connected) and a chain moving in x and y at each slice (26-connected).
+	 *
+	 * @param depth number of slices
+	 *
+	 * @return binary image (0 or 255)
+	 */
+	public static ImagePlus chainsImage(int depth) {
+		ImageStack stack = new ImageStack(24, 24);
+		for (int k = 0; k < depth; ++k) {
+			ImageProcessor slice = new ByteProcessor(24, 24);
+			slice.set(2, 2, 255);
+			slice.set(8 + k % 2, 8, 255);
+			slice.set(16 + k % 2, 16 + k % 2, 255);
+			stack.addSlice(slice);
+		}
+		return new ImagePlus("chains", stack);
+	}
+	
+}
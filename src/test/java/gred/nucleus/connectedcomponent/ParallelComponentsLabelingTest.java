@@ -0,0 +1,182 @@
+package gred.nucleus.connectedcomponent;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import inra.ijpb.binary.BinaryImages;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import static gred.nucleus.connectedcomponent.BinaryTestImages.chainsImage;
+import static gred.nucleus.connectedcomponent.BinaryTestImages.randomBinaryImage;
+import static gred.nucleus.connectedcomponent.BinaryTestImages.randomBinaryImages;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+class ParallelComponentsLabelingTest {
+	/** Numbers of threads tested: one slab, slabs of the minimal depth and more slabs than threads */
+	private static final int[] THREADS = {1, 3, 8};
+	
+	
+	/**
+	 * Labels the components of a binary image by flood fill in raster order, as MorphoLibJ does, for the
+	 * connectivities which MorphoLibJ does not handle in 3D.
+	 */
+	static ImagePlus floodFillLabels(ImagePlus binaryImage, int connectivity) {
+		int        maxDistance = connectivity == 6 ? 1 : connectivity == 18 ? 2 : 3;
+		ImageStack stack       = binaryImage.getStack();
+		int        width       = stack.getWidth();
+		int        height      = stack.getHeight();
+		int        depth       = stack.getSize();
+		float[][]  labels      = new float[depth][width * height];
+		int        nbLabels    = 0;
+		for (int k = 0; k < depth; ++k) {
+			for (int n = 0; n < width * height; ++n) {
+				if (stack.getProcessor(k + 1).getf(n) == 0 || labels[k][n] != 0) {
+					continue;
+				}
+				labels[k][n] = ++nbLabels;
+				Deque<int[]> queue = new ArrayDeque<>();
+				queue.add(new int[]{n % width, n / width, k});
+				while (!queue.isEmpty()) {
+					int[] voxel = queue.poll();
+					for (int dz = -1; dz <= 1; ++dz) {
+						for (int dy = -1; dy <= 1; ++dy) {
+							for (int dx = -1; dx <= 1; ++dx) {
+								int x = voxel[0] + dx;
+								int y = voxel[1] + dy;
+								int z = voxel[2] + dz;
+								if (Math.abs(dx) + Math.abs(dy) + Math.abs(dz) <= maxDistance &&
+								    x >= 0 && x < width && y >= 0 && y < height && z >= 0 && z < depth &&
+								    stack.getProcessor(z + 1).getf(x + y * width) != 0 &&
+								    labels[z][x + y * width] == 0) {
+									labels[z][x + y * width] = nbLabels;
+									queue.add(new int[]{x, y, z});
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+		ImageStack labelStack = new ImageStack(width, height);
+		for (float[] slice : labels) {
+			labelStack.addSlice(new FloatProcessor(width, height, slice));
+		}
+		return new ImagePlus("labels", labelStack);
+	}
+	
+	
+	static void assertSameLabels(ImagePlus expected, ImagePlus actual) {
+		assertEquals(expected.getStackSize(), actual.getStackSize());
+		for (int k = 1; k <= expected.getStackSize(); ++k) {
+			ImageProcessor expectedSlice = expected.getStack().getProcessor(k);
+			ImageProcessor actualSlice   = actual.getStack().getProcessor(k);
+			for (int n = 0; n < expectedSlice.getPixelCount(); ++n) {
+				assertEquals(expectedSlice.getf(n), actualSlice.getf(n), "slice " + k + ", pixel " + n);
+			}
+		}
+	}
+	
+	
+	private static void assertSameLabels(ImagePlus binaryImage, int connectivity) {
+		ImagePlus expected = connectivity == 18 ?
+		                     floodFillLabels(binaryImage, connectivity) :
+		                     BinaryImages.componentsLabeling(binaryImage, connectivity, 32);
+		for (int nThreads : THREADS) {
+			assertSameLabels(expected,
+			                 ParallelComponentsLabeling.componentsLabeling(binaryImage, connectivity, 32, nThreads));
+		}
+	}
+	
+	
+	@Test
+	@Tag("functional")
+	void testConnectivity6() {
+		for (ImagePlus binaryImage : randomBinaryImages(6, 0.2, 0.05)) {
+			assertSameLabels(binaryImage, 6);
+		}
+	}
+	
+	
+	@Test
+	@Tag("functional")
+	void testConnectivity18() {
+		for (ImagePlus binaryImage : randomBinaryImages(18, 0.1, 0.05)) {
+			assertSameLabels(binaryImage, 18);
+		}
+	}
+	
+	
+	@Test
+	@Tag("functional")
+	void testConnectivity26() {
+		for (ImagePlus binaryImage : randomBinaryImages(26, 0.05, 0.03)) {
+			assertSameLabels(binaryImage, 26);
+		}
+	}
+	
+	
+	@Test
+	@Tag("functional")
+	void testComponentsCrossingSlabs() {
+		ImagePlus chains = chainsImage(25);
+		assertSameLabels(chains, 6);
+		assertSameLabels(chains, 18);
+		assertSameLabels(chains, 26);
+		assertEquals(51, new ParallelComponentsLabeling(chains, 6, 8).getNumberOfLabels());
+		assertEquals(27, new ParallelComponentsLabeling(chains, 18, 8).getNumberOfLabels());
+		assertEquals(3, new ParallelComponentsLabeling(chains, 26, 8).getNumberOfLabels());
+	}
+	
+	
+	@Test
+	@Tag("functional")
+	void testMoreSlabsThanComponents() {
+		ImageStack stack = new ImageStack(16, 16);
+		for (int k = 0; k < 40; ++k) {
+			ImageProcessor slice = new ByteProcessor(16, 16);
+			if (k == 1 || k == 2 || k == 37) {
+				slice.set(5, 5, 255);
+				slice.set(6, 6, 255);
+			}
+			stack.addSlice(slice);
+		}
+		ImagePlus binaryImage = new ImagePlus("binary", stack);
+		assertSameLabels(binaryImage, 6);
+		assertSameLabels(binaryImage, 26);
+		assertSameLabels(BinaryImages.componentsLabeling(binaryImage, 26, 32),
+		                 ParallelComponentsLabeling.componentsLabeling(binaryImage, 26, 32, 16));
+		assertEquals(2, new ParallelComponentsLabeling(binaryImage, 26, 16).getNumberOfLabels());
+		
+		ImagePlus emptyImage = randomBinaryImage(new Random(0), 16, 16, 40, 0);
+		assertEquals(0, new ParallelComponentsLabeling(emptyImage, 26, 16).getNumberOfLabels());
+	}
+	
+	
+	@Test
+	@Tag("functional")
+	void test2D() {
+		Random random = new Random(2);
+		for (int i = 0; i < 10; ++i) {
+			ImagePlus binaryImage = randomBinaryImage(random, 60, 50, 1, 0.2 + 0.05 * i);
+			assertSameLabels(binaryImage, 4);
+			assertSameLabels(binaryImage, 8);
+			
+			// 6 is read as 4, and 18 or 26 as 8 (see FillingHoles)
+			ImageProcessor binary = binaryImage.getProcessor();
+			assertArrayEquals((float[]) BinaryImages.componentsLabeling(binary, 4, 32).getPixels(),
+			                  (float[]) ParallelComponentsLabeling.componentsLabeling(binary, 6, 32).getPixels());
+			assertArrayEquals((float[]) BinaryImages.componentsLabeling(binary, 8, 32).getPixels(),
+			                  (float[]) ParallelComponentsLabeling.componentsLabeling(binary, 26, 32).getPixels());
+		}
+	}
+	
+}
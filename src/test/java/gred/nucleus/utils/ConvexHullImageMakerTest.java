@@ -0,0 +1,250 @@
+package gred.nucleus.utils;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+
+class ConvexHullImageMakerTest {
+	/** Combined axis of the plans */
+	private static final String[] AXES = {"xy", "xz", "yz"};
+	
+	
+	private static void fillRectangle(ImageProcessor slice, int x, int y, int width, int height) {
+		for (int j = y; j < y + height; ++j) {
+			for (int i = x; i < x + width; ++i) {
+				slice.set(i, j, 255);
+			}
+		}
+	}
+	
+	
+	private static void fillDisc(ImageProcessor slice, int x, int y, double radius, int value) {
+		for (int j = 0; j < slice.getHeight(); ++j) {
+			for (int i = 0; i < slice.getWidth(); ++i) {
+				if ((i - x) * (i - x) + (j - y) * (j - y) <= radius * radius) {
+					slice.set(i, j, value);
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * Reads a slice of a plan as the previous implementation did (giveTable).
+	 *
+	 * @return pixels of the slice, indexed by [i][j]
+	 */
+	private static int[][] planSlice(ImagePlus image, String axes, int k) {
+		ImageStack stack  = image.getStack();
+		int        width  = axes.equals("yz") ? image.getHeight() : image.getWidth();
+		int        height = axes.equals("xy") ? image.getHeight() : image.getNSlices();
+		int[][]    slice  = new int[width][height];
+		for (int i = 0; i < width; ++i) {
+			for (int j = 0; j < height; ++j) {
+				if (axes.equals("xy")) {
+					slice[i][j] = (int) stack.getVoxel(i, j, k);
+				} else if (axes.equals("xz")) {
+					slice[i][j] = (int) stack.getVoxel(i, k, j);
+				} else {
+					slice[i][j] = (int) stack.getVoxel(k, i, j);
+				}
+			}
+		}
+		return slice;
+	}
+	
+	
+	/**
+	 * Renders a slice of a plan as the previous implementation did: boundary pixels of each 4-connected component,
+	 * Graham scan of the components with more than 5 boundary pixels and PolygonRoi fill of the hulls. The slice is
+	 * surrounded by a background margin, so that the pixels on the image border have neighbours: the previous
+	 * implementation skipped the first row and column and indexed past the last ones.
+	 *
+	 * @return pixels of the rendered slice (255 inside the hulls, 0 elsewhere)
+	 */
+	private static byte[] previousRendering(int[][] slice) {
+		int        width  = slice.length;
+		int        height = slice[0].length;
+		double[][] image  = new double[width + 2][height + 2];
+		for (int i = 0; i < width; ++i) {
+			for (int j = 0; j < height; ++j) {
+				image[i + 1][j + 1] = slice[i][j];
+			}
+		}
+		ConnectedComponents connectedComponents = new ConnectedComponents();
+		connectedComponents.setImageTable(image);
+		List<Double> labels = connectedComponents.getListLabel(255);
+		image = connectedComponents.getImageTable();
+		
+		ImageProcessor rendering = new ByteProcessor(width + 2, height + 2);
+		rendering.setValue(255);
+		for (double label : labels) {
+			List<VoxelRecord> boundary = new ArrayList<>();
+			for (int i = 1; i <= width; ++i) {
+				for (int j = 1; j <= height; ++j) {
+					if (image[i][j] == label &&
+					    (image[i - 1][j] == 0 || image[i + 1][j] == 0 ||
+					     image[i][j - 1] == 0 || image[i][j + 1] == 0)) {
+						VoxelRecord voxel = new VoxelRecord();
+						voxel.setLocation(i, j, 0);
+						boundary.add(voxel);
+					}
+				}
+			}
+			if (boundary.size() > 5) {
+				List<VoxelRecord> hull = ConvexHullDetection.runGrahamScan("xy", boundary);
+				int[]             xs   = new int[hull.size() + 1];
+				int[]             ys   = new int[hull.size() + 1];
+				for (int v = 0; v <= hull.size(); ++v) {
+					xs[v] = (int) hull.get(v % hull.size()).getI();
+					ys[v] = (int) hull.get(v % hull.size()).getJ();
+				}
+				rendering.fill(new PolygonRoi(xs, ys, xs.length, Roi.POLYGON));
+			}
+		}
+		
+		byte[] pixels = new byte[width * height];
+		for (int j = 0, n = 0; j < height; ++j) {
+			for (int i = 0; i < width; ++i, ++n) {
+				pixels[n] = (byte) rendering.get(i + 1, j + 1);
+			}
+		}
+		return pixels;
+	}
+	
+	
+	/** Checks each slice of each plan of the image against the rendering of the previous implementation. */
+	private static void assertSameRendering(ImagePlus image) {
+		int[] boundingBox = ConvexHullImageMaker.computeBoundingBox(image);
+		for (String axes : image.getNSlices() > 1 ? AXES : new String[]{"xy"}) {
+			ConvexHullImageMaker maker = new ConvexHullImageMaker();
+			maker.setAxes(axes);
+			maker.setInput(image, boundingBox);
+			int depth = axes.equals("xy") ? image.getNSlices() :
+			            axes.equals("xz") ? image.getHeight() : image.getWidth();
+			for (int k = 0; k < depth; ++k) {
+				assertArrayEquals(previousRendering(planSlice(image, axes, k)),
+				                  maker.computeSlice(k),
+				                  "plan " + axes + ", slice " + k);
+			}
+		}
+	}
+	
+	
+	@Test
+	@Tag("functional")
+	void testConvexComponent() {
+		ImageProcessor disc = new ByteProcessor(40, 32);
+		fillDisc(disc, 18, 15, 9.5, 255);
+		assertSameRendering(new ImagePlus("disc", disc));
+		
+		ImageProcessor triangle = new ByteProcessor(40, 32);
+		for (int j = 4; j < 28; ++j) {
+			fillRectangle(triangle, 6 + j / 3, j, 2 + j, 1);
+		}
+		assertSameRendering(new ImagePlus("triangle", triangle));
+	}
+	
+	
+	@Test
+	@Tag("functional")
+	void testConcaveComponent() {
+		ImageProcessor shapes = new ByteProcessor(64, 48);
+		// L
+		fillRectangle(shapes, 3, 3, 4, 20);
+		fillRectangle(shapes, 3, 19, 16, 4);
+		// U
+		fillRectangle(shapes, 25, 5, 3, 18);
+		fillRectangle(shapes, 25, 20, 15, 3);
+		fillRectangle(shapes, 37, 9, 3, 14);
+		// Ring
+		fillDisc(shapes, 50, 34, 10, 255);
+		fillDisc(shapes, 50, 34, 6, 0);
+		// Cross
+		fillRectangle(shapes, 5, 36, 21, 3);
+		fillRectangle(shapes, 14, 27, 3, 19);
+		assertSameRendering(new ImagePlus("concave", shapes));
+	}
+	
+	
+	@Test
+	@Tag("functional")
+	void testSeveralComponents() {
+		ImageProcessor components = new ByteProcessor(50, 40);
+		fillDisc(components, 10, 10, 6, 255);
+		fillRectangle(components, 25, 4, 12, 7);
+		// Two squares touching by a corner are two 4-connected components
+		fillRectangle(components, 5, 22, 8, 8);
+		fillRectangle(components, 13, 30, 8, 8);
+		// Components with too few boundary pixels are not filled
+		fillRectangle(components, 30, 20, 2, 2);
+		components.set(40, 20, 255);
+		fillRectangle(components, 30, 30, 1, 3);
+		// A component with 6 boundary pixels is filled
+		fillRectangle(components, 22, 16, 2, 3);
+		// Nested components: a disc inside a ring
+		fillDisc(components, 40, 30, 8, 255);
+		fillDisc(components, 40, 30, 6, 0);
+		fillDisc(components, 40, 30, 3, 255);
+		assertSameRendering(new ImagePlus("components", components));
+	}
+	
+	
+	@Test
+	@Tag("functional")
+	void testComponentsTouchingBorder() {
+		ImageProcessor border = new ByteProcessor(48, 36);
+		fillDisc(border, 0, 0, 7, 255);
+		fillDisc(border, 47, 35, 8, 255);
+		fillRectangle(border, 15, 0, 10, 5);
+		fillRectangle(border, 42, 8, 6, 12);
+		fillRectangle(border, 0, 15, 4, 14);
+		fillRectangle(border, 0, 25, 12, 4);
+		fillDisc(border, 24, 35, 6, 255);
+		assertSameRendering(new ImagePlus("border", border));
+		
+		ImageProcessor full = new ByteProcessor(20, 16);
+		fillRectangle(full, 0, 0, 20, 16);
+		fillDisc(full, 10, 8, 3, 0);
+		assertSameRendering(new ImagePlus("full", full));
+	}
+	
+	
+	@Test
+	@Tag("functional")
+	void testRandomPlans() {
+		Random random = new Random(24);
+		for (int n = 0; n < 5; ++n) {
+			ImageStack stack = new ImageStack(30, 26);
+			for (int k = 0; k < 14; ++k) {
+				stack.addSlice(new ByteProcessor(30, 26));
+			}
+			for (int b = 0; b < 6; ++b) {
+				int    x      = 4 + random.nextInt(22);
+				int    y      = 4 + random.nextInt(18);
+				int    z      = 3 + random.nextInt(8);
+				double radius = 2 + 4 * random.nextDouble();
+				for (int k = 0; k < stack.getSize(); ++k) {
+					double dz = (k - z) * 1.5;
+					if (dz * dz < radius * radius) {
+						fillDisc(stack.getProcessor(k + 1), x, y, Math.sqrt(radius * radius - dz * dz), 255);
+					}
+				}
+			}
+			assertSameRendering(new ImagePlus("balls", stack));
+		}
+	}
+	
+}